@@ -0,0 +1,206 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+
+import com.amazonaws.services.kinesis.producer.KinesisProducer;
+import com.amazonaws.services.kinesis.producer.KinesisProducerConfiguration;
+import com.amazonaws.services.kinesis.producer.UserRecordResult;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClientBuilder;
+import software.amazon.kinesis.common.KinesisClientUtil;
+
+/**
+ * Compares the {@link ProducerEngine}s, publishing the same records to the same stream from the
+ * same host.
+ *
+ * <p>For each engine, it reports the time taken to publish the first record, which includes the
+ * start of the KPL child process, and then the throughput and latency of publishing the records.
+ * It is not part of the tests, since it needs an existing Kinesis stream, and is run on its own:
+ *
+ * <pre>
+ * bazelisk run plugins/events-aws-kinesis:producer-benchmark -- \
+ *   [--jvm_flag=-Dregion=&lt;region&gt;] [--jvm_flag=-Dendpoint=&lt;endpoint&gt;] \
+ *   &lt;stream&gt; [records] [bytes]
+ * </pre>
+ */
+public class ProducerBenchmark {
+  private static final int DEFAULT_RECORDS = 100000;
+  private static final int DEFAULT_RECORD_BYTES = 1024;
+  private static final int MAX_IN_FLIGHT = 10000;
+  private static final long TIMEOUT_MS = 30000L;
+  private static final int PARTITION_KEYS = 64;
+
+  private final String streamName;
+  private final int records;
+  private final byte[] data;
+  private final Optional<Region> region =
+      Optional.ofNullable(System.getProperty("region")).map(Region::of);
+  private final Optional<URI> endpoint =
+      Optional.ofNullable(System.getProperty("endpoint")).map(URI::create);
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage: ProducerBenchmark <stream> [records] [bytes]");
+      System.exit(1);
+    }
+    ProducerBenchmark benchmark =
+        new ProducerBenchmark(
+            args[0],
+            args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_RECORDS,
+            args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_RECORD_BYTES);
+    for (ProducerEngine engine : ProducerEngine.values()) {
+      benchmark.run(engine);
+    }
+    System.exit(0);
+  }
+
+  ProducerBenchmark(String streamName, int records, int recordBytes) {
+    this.streamName = streamName;
+    this.records = records;
+    this.data = new byte[recordBytes];
+    Arrays.fill(data, (byte) 'x');
+  }
+
+  private void run(ProducerEngine engine) throws Exception {
+    long startNanos = System.nanoTime();
+    KinesisAsyncClient kinesisClient = null;
+    KinesisProducer kinesisProducer = null;
+    PutRecordsProducer putRecordsProducer = null;
+    RecordProducer producer;
+    if (engine == ProducerEngine.KPL) {
+      kinesisProducer = newKinesisProducer();
+      producer = new KplRecordProducer(kinesisProducer);
+    } else {
+      kinesisClient = newKinesisClient();
+      putRecordsProducer =
+          new PutRecordsProducer(
+              kinesisClient,
+              PutRecordsProducer.MAX_BATCH_COUNT,
+              PutRecordsProducer.MAX_BATCH_BYTES,
+              Configuration.DEFAULT_PUBLISH_RECORD_MAX_BUFFERED_TIME_MS,
+              Configuration.DEFAULT_PUBLISH_SINGLE_REQUEST_TIMEOUT_MS,
+              TIMEOUT_MS,
+              TIMEOUT_MS);
+      producer = putRecordsProducer;
+    }
+
+    try {
+      producer
+          .addUserRecord(streamName, "warm-up", ByteBuffer.wrap(data))
+          .get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      long firstRecordMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+
+      long[] latencies = new long[records];
+      AtomicInteger failures = new AtomicInteger();
+      Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+      CountDownLatch done = new CountDownLatch(records);
+      long publishStartNanos = System.nanoTime();
+      for (int i = 0; i < records; i++) {
+        int record = i;
+        inFlight.acquire();
+        long recordStartNanos = System.nanoTime();
+        Futures.addCallback(
+            producer.addUserRecord(
+                streamName, "pk-" + (i % PARTITION_KEYS), ByteBuffer.wrap(data)),
+            new FutureCallback<UserRecordResult>() {
+              @Override
+              public void onSuccess(UserRecordResult result) {
+                complete();
+              }
+
+              @Override
+              public void onFailure(Throwable e) {
+                failures.incrementAndGet();
+                complete();
+              }
+
+              private void complete() {
+                latencies[record] = System.nanoTime() - recordStartNanos;
+                inFlight.release();
+                done.countDown();
+              }
+            },
+            directExecutor());
+      }
+      done.await();
+      long elapsedNanos = System.nanoTime() - publishStartNanos;
+
+      Arrays.sort(latencies);
+      double seconds = elapsedNanos / 1e9;
+      System.out.printf(
+          "%-12s first record: %6d ms | %9.0f records/s | %7.2f MiB/s"
+              + " | latency p50: %5d ms, p99: %5d ms, max: %5d ms | failures: %d%n",
+          engine,
+          firstRecordMs,
+          records / seconds,
+          (double) records * data.length / seconds / (1024 * 1024),
+          millis(latencies[records / 2]),
+          millis(latencies[(int) (records * 0.99)]),
+          millis(latencies[records - 1]),
+          failures.get());
+    } finally {
+      if (kinesisProducer != null) {
+        kinesisProducer.flushSync();
+        kinesisProducer.destroy();
+      }
+      if (putRecordsProducer != null) {
+        putRecordsProducer.stop();
+        kinesisClient.close();
+      }
+    }
+  }
+
+  private KinesisProducer newKinesisProducer() {
+    KinesisProducerConfiguration conf =
+        new KinesisProducerConfiguration()
+            .setMaxConnections(1)
+            .setRequestTimeout(Configuration.DEFAULT_PUBLISH_SINGLE_REQUEST_TIMEOUT_MS)
+            .setRecordMaxBufferedTime(Configuration.DEFAULT_PUBLISH_RECORD_MAX_BUFFERED_TIME_MS)
+            .setAggregationEnabled(false);
+    region.ifPresent(r -> conf.setRegion(r.id()));
+    endpoint.ifPresent(
+        uri ->
+            conf.setKinesisEndpoint(uri.getHost())
+                .setKinesisPort(uri.getPort())
+                .setCloudwatchEndpoint(uri.getHost())
+                .setCloudwatchPort(uri.getPort())
+                .setVerifyCertificate(false));
+    return new KinesisProducer(conf);
+  }
+
+  private KinesisAsyncClient newKinesisClient() {
+    KinesisAsyncClientBuilder builder = KinesisAsyncClient.builder();
+    region.ifPresent(builder::region);
+    endpoint.ifPresent(builder::endpointOverride);
+    return KinesisClientUtil.createKinesisAsyncClient(builder);
+  }
+
+  private static long millis(long nanos) {
+    return TimeUnit.NANOSECONDS.toMillis(nanos);
+  }
+}
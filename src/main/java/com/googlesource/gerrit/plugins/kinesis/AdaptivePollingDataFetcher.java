@@ -0,0 +1,131 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import software.amazon.awssdk.services.kinesis.model.GetRecordsRequest;
+import software.amazon.awssdk.services.kinesis.model.GetRecordsResponse;
+import software.amazon.awssdk.services.kinesis.model.GetShardIteratorRequest;
+import software.amazon.kinesis.common.InitialPositionInStreamExtended;
+import software.amazon.kinesis.common.StreamIdentifier;
+import software.amazon.kinesis.retrieval.DataFetcherResult;
+import software.amazon.kinesis.retrieval.kpl.ExtendedSequenceNumber;
+import software.amazon.kinesis.retrieval.polling.DataFetcher;
+
+/**
+ * Polls a shard at an {@link AdaptivePollingInterval}.
+ *
+ * <p>The KCL already waits the minimum interval between two polls: this fetcher waits the rest of
+ * the adaptive interval before delegating the poll, and then adapts the interval to its outcome.
+ */
+class AdaptivePollingDataFetcher implements DataFetcher {
+  private final DataFetcher delegate;
+  private final AdaptivePollingInterval interval;
+
+  AdaptivePollingDataFetcher(DataFetcher delegate, AdaptivePollingInterval interval) {
+    this.delegate = delegate;
+    this.interval = interval;
+  }
+
+  @Override
+  public DataFetcherResult getRecords() {
+    long extraWaitMs = interval.get() - interval.minMs();
+    if (extraWaitMs > 0) {
+      try {
+        Thread.sleep(extraWaitMs);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    DataFetcherResult result;
+    try {
+      result = delegate.getRecords();
+    } catch (RuntimeException e) {
+      interval.throttled();
+      throw e;
+    }
+    GetRecordsResponse response = result.getResult();
+    if (response != null) {
+      interval.update(
+          response.hasRecords() ? response.records().size() : 0, response.millisBehindLatest());
+    }
+    return result;
+  }
+
+  @Override
+  public void initialize(
+      String initialCheckpoint, InitialPositionInStreamExtended initialPositionInStream) {
+    delegate.initialize(initialCheckpoint, initialPositionInStream);
+  }
+
+  @Override
+  public void initialize(
+      ExtendedSequenceNumber initialCheckpoint,
+      InitialPositionInStreamExtended initialPositionInStream) {
+    delegate.initialize(initialCheckpoint, initialPositionInStream);
+  }
+
+  @Override
+  public void advanceIteratorTo(
+      String sequenceNumber, InitialPositionInStreamExtended initialPositionInStream) {
+    delegate.advanceIteratorTo(sequenceNumber, initialPositionInStream);
+  }
+
+  @Override
+  public void restartIterator() {
+    delegate.restartIterator();
+  }
+
+  @Override
+  public void resetIterator(
+      String shardIterator,
+      String sequenceNumber,
+      InitialPositionInStreamExtended initialPositionInStream) {
+    delegate.resetIterator(shardIterator, sequenceNumber, initialPositionInStream);
+  }
+
+  @Override
+  public GetRecordsResponse getGetRecordsResponse(GetRecordsRequest request) throws Exception {
+    return delegate.getGetRecordsResponse(request);
+  }
+
+  @Override
+  public GetRecordsRequest getGetRecordsRequest(String nextIterator) {
+    return delegate.getGetRecordsRequest(nextIterator);
+  }
+
+  @Override
+  public String getNextIterator(GetShardIteratorRequest request)
+      throws ExecutionException, InterruptedException, TimeoutException {
+    return delegate.getNextIterator(request);
+  }
+
+  @Override
+  public GetRecordsResponse getRecords(String nextIterator) {
+    return delegate.getRecords(nextIterator);
+  }
+
+  @Override
+  public StreamIdentifier getStreamIdentifier() {
+    return delegate.getStreamIdentifier();
+  }
+
+  @Override
+  public boolean isShardEndReached() {
+    return delegate.isShardEndReached();
+  }
+}
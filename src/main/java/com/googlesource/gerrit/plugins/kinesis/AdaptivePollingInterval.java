@@ -0,0 +1,94 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * The interval between polls of a shard, adapted to the records retrieved by the previous poll.
+ *
+ * <ul>
+ *   <li>When a poll returns a full batch, or the consumer falls further behind the tip of the
+ *       shard, the interval drops to its minimum, to catch up as fast as possible.
+ *   <li>When a poll returns some records, the interval goes back to the base polling interval, if
+ *       it was longer.
+ *   <li>When a poll returns no records, or is throttled, the interval doubles, up to its maximum.
+ * </ul>
+ */
+class AdaptivePollingInterval {
+  private final long minMs;
+  private final long baseMs;
+  private final long maxMs;
+  private final int maxRecords;
+  private volatile long intervalMs;
+  private volatile long updatedAtMs;
+  private long lastMillisBehindLatest;
+
+  AdaptivePollingInterval(long minMs, long baseMs, long maxMs, int maxRecords) {
+    this.minMs = minMs;
+    this.baseMs = Math.max(minMs, baseMs);
+    this.maxMs = Math.max(this.baseMs, maxMs);
+    this.maxRecords = maxRecords;
+    this.intervalMs = this.baseMs;
+    this.updatedAtMs = System.currentTimeMillis();
+  }
+
+  /** @return the time to wait before the next poll, in milliseconds. */
+  long get() {
+    return intervalMs;
+  }
+
+  long minMs() {
+    return minMs;
+  }
+
+  /** @return when the interval was last updated, in milliseconds since the epoch. */
+  long updatedAtMs() {
+    return updatedAtMs;
+  }
+
+  /**
+   * Adapts the interval to the outcome of a poll.
+   *
+   * @param records the number of records returned by the poll
+   * @param millisBehindLatest how far the consumer is behind the tip of the shard, if known
+   */
+  synchronized void update(int records, Long millisBehindLatest) {
+    long behind = millisBehindLatest != null ? millisBehindLatest : 0L;
+    if (records >= maxRecords || (behind > lastMillisBehindLatest && behind > intervalMs)) {
+      set(minMs);
+    } else if (records > 0) {
+      set(Math.min(intervalMs, baseMs));
+    } else {
+      backOff();
+    }
+    lastMillisBehindLatest = behind;
+  }
+
+  /** Backs off after a throttled poll. */
+  synchronized void throttled() {
+    backOff();
+  }
+
+  private void backOff() {
+    set(Math.min(maxMs, intervalMs * 2));
+  }
+
+  @VisibleForTesting
+  void set(long intervalMs) {
+    this.intervalMs = intervalMs;
+    this.updatedAtMs = System.currentTimeMillis();
+  }
+}
@@ -0,0 +1,27 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+/** Where the metrics computed by the Kinesis Client and Producer Libraries are published. */
+enum AwsMetricsPublisher {
+  /** Uploaded to CloudWatch by the libraries themselves. */
+  CLOUDWATCH,
+
+  /** Reported as Gerrit metrics, along with the metrics of the plugin. */
+  GERRIT,
+
+  /** Neither computed by the Kinesis Client Library nor uploaded by the Producer Library. */
+  NONE
+}
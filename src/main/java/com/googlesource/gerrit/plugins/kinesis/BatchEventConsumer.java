@@ -0,0 +1,45 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.google.gerrit.server.events.Event;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Adapts a batch subscriber to the per-event consumers handled by the broker, so that it can be
+ * listed amongst the topic subscribers and re-subscribed like any other one.
+ */
+class BatchEventConsumer implements Consumer<Event> {
+  private final Consumer<List<Event>> batchConsumer;
+
+  BatchEventConsumer(Consumer<List<Event>> batchConsumer) {
+    this.batchConsumer = batchConsumer;
+  }
+
+  Consumer<List<Event>> batchConsumer() {
+    return batchConsumer;
+  }
+
+  void acceptBatch(List<Event> events) {
+    batchConsumer.accept(events);
+  }
+
+  @Override
+  public void accept(Event event) {
+    batchConsumer.accept(Collections.singletonList(event));
+  }
+}
@@ -0,0 +1,115 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of heap buffers used to serialize records before handing them over to the producer.
+ *
+ * <p>When the pool is exhausted a new buffer is allocated, and it is pooled on release if there is
+ * room for it. Buffers grown past the pooled size, to fit bigger records, are never pooled.
+ */
+@Singleton
+class ByteBufferPool {
+  private final int bufferSize;
+  private final BlockingQueue<ByteBuffer> buffers;
+  private final AtomicInteger inUse = new AtomicInteger();
+  private final Counter0 allocations;
+  private final Counter0 oversized;
+
+  @Inject
+  ByteBufferPool(Configuration configuration, MetricMaker metricMaker) {
+    this(
+        configuration.getPublishBufferPoolSize(),
+        configuration.getPublishBufferSizeBytes(),
+        metricMaker);
+  }
+
+  ByteBufferPool(int poolSize, int bufferSize, MetricMaker metricMaker) {
+    this.bufferSize = bufferSize;
+    this.buffers = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+
+    metricMaker.newCallbackMetric(
+        "publisher/buffer_pool/available",
+        Integer.class,
+        new Description("Number of serialization buffers available in the pool")
+            .setGauge()
+            .setUnit("buffers"),
+        buffers::size);
+    metricMaker.newCallbackMetric(
+        "publisher/buffer_pool/in_use",
+        Integer.class,
+        new Description("Number of serialization buffers currently in use")
+            .setGauge()
+            .setUnit("buffers"),
+        inUse::get);
+    this.allocations =
+        metricMaker.newCounter(
+            "publisher/buffer_pool/allocations",
+            new Description("Serialization buffers allocated because the pool was empty")
+                .setRate()
+                .setUnit("buffers"));
+    this.oversized =
+        metricMaker.newCounter(
+            "publisher/buffer_pool/oversized",
+            new Description("Records that did not fit into a pooled serialization buffer")
+                .setRate()
+                .setUnit("records"));
+  }
+
+  ByteBuffer acquire() {
+    inUse.incrementAndGet();
+    ByteBuffer buffer = buffers.poll();
+    if (buffer == null) {
+      allocations.increment();
+      return ByteBuffer.allocate(bufferSize);
+    }
+    return buffer;
+  }
+
+  /** Replaces a pooled buffer that has become too small with a bigger, non pooled, one. */
+  ByteBuffer grow(ByteBuffer buffer, int minCapacity) {
+    if (buffer.capacity() == bufferSize) {
+      oversized.increment();
+    }
+    ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, minCapacity));
+    buffer.flip();
+    larger.put(buffer);
+    release(buffer);
+    inUse.incrementAndGet();
+    return larger;
+  }
+
+  void release(ByteBuffer buffer) {
+    inUse.decrementAndGet();
+    if (buffer.capacity() == bufferSize) {
+      buffer.clear();
+      buffers.offer(buffer);
+    }
+  }
+
+  int available() {
+    return buffers.size();
+  }
+}
@@ -0,0 +1,164 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORGenerator;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Transcodes the JSON tree of events, as produced by the event Gson, to and from CBOR.
+ *
+ * <p>Going through the Gson tree keeps all the event type adapters registered in Gerrit, so that
+ * CBOR records carry exactly the same fields as JSON ones. CBOR payloads always start with the
+ * self-describe tag, which allows telling them apart from JSON records.
+ */
+class CborTranscoder {
+  private static final byte[] SELF_DESCRIBE_TAG =
+      new byte[] {(byte) 0xD9, (byte) 0xD9, (byte) 0xF7};
+  private static final CBORFactory CBOR_FACTORY = new CBORFactory();
+
+  static {
+    CBOR_FACTORY.configure(CBORGenerator.Feature.WRITE_TYPE_HEADER, true);
+    CBOR_FACTORY.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+    CBOR_FACTORY.configure(JsonParser.Feature.AUTO_CLOSE_SOURCE, false);
+  }
+
+  static boolean isCbor(ByteBuffer data) {
+    if (data.remaining() < SELF_DESCRIBE_TAG.length) {
+      return false;
+    }
+    for (int i = 0; i < SELF_DESCRIBE_TAG.length; i++) {
+      if (data.get(data.position() + i) != SELF_DESCRIBE_TAG[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static void write(JsonElement element, OutputStream out) throws IOException {
+    try (JsonGenerator generator = CBOR_FACTORY.createGenerator(out)) {
+      write(element, generator);
+    }
+  }
+
+  static JsonElement read(InputStream in) throws IOException {
+    try (JsonParser parser = CBOR_FACTORY.createParser(in)) {
+      if (parser.nextToken() == null) {
+        throw new JsonParseException(parser, "Empty CBOR payload");
+      }
+      return read(parser);
+    }
+  }
+
+  private static void write(JsonElement element, JsonGenerator generator) throws IOException {
+    if (element.isJsonObject()) {
+      generator.writeStartObject();
+      for (Map.Entry<String, JsonElement> field : element.getAsJsonObject().entrySet()) {
+        generator.writeFieldName(field.getKey());
+        write(field.getValue(), generator);
+      }
+      generator.writeEndObject();
+    } else if (element.isJsonArray()) {
+      generator.writeStartArray();
+      for (JsonElement item : element.getAsJsonArray()) {
+        write(item, generator);
+      }
+      generator.writeEndArray();
+    } else if (element.isJsonNull()) {
+      generator.writeNull();
+    } else {
+      JsonPrimitive primitive = element.getAsJsonPrimitive();
+      if (primitive.isBoolean()) {
+        generator.writeBoolean(primitive.getAsBoolean());
+      } else if (primitive.isNumber()) {
+        writeNumber(primitive.getAsNumber(), generator);
+      } else {
+        generator.writeString(primitive.getAsString());
+      }
+    }
+  }
+
+  private static void writeNumber(Number number, JsonGenerator generator) throws IOException {
+    if (number instanceof Integer
+        || number instanceof Long
+        || number instanceof Short
+        || number instanceof Byte) {
+      generator.writeNumber(number.longValue());
+    } else if (number instanceof Double || number instanceof Float) {
+      generator.writeNumber(number.doubleValue());
+    } else {
+      BigDecimal decimal = new BigDecimal(number.toString());
+      try {
+        generator.writeNumber(decimal.longValueExact());
+      } catch (ArithmeticException e) {
+        generator.writeNumber(decimal);
+      }
+    }
+  }
+
+  private static JsonElement read(JsonParser parser) throws IOException {
+    JsonToken token = parser.currentToken();
+    switch (token) {
+      case START_OBJECT:
+        JsonObject object = new JsonObject();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String name = parser.getCurrentName();
+          parser.nextToken();
+          object.add(name, read(parser));
+        }
+        return object;
+      case START_ARRAY:
+        JsonArray array = new JsonArray();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+          array.add(read(parser));
+        }
+        return array;
+      case VALUE_STRING:
+        return new JsonPrimitive(parser.getText());
+      case VALUE_NUMBER_INT:
+        Number integer = parser.getNumberValue();
+        return new JsonPrimitive(
+            integer instanceof BigInteger ? integer : Long.valueOf(integer.longValue()));
+      case VALUE_NUMBER_FLOAT:
+        return new JsonPrimitive(parser.getNumberValue());
+      case VALUE_TRUE:
+        return new JsonPrimitive(true);
+      case VALUE_FALSE:
+        return new JsonPrimitive(false);
+      case VALUE_NULL:
+        return JsonNull.INSTANCE;
+      default:
+        throw new JsonParseException(parser, String.format("Unexpected CBOR token %s", token));
+    }
+  }
+
+  private CborTranscoder() {}
+}
@@ -0,0 +1,40 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.google.gerrit.server.events.ChangeEvent;
+import com.google.gerrit.server.events.Event;
+
+/**
+ * Partitions events by change. Keeps all events of the same change in order. Events not related to
+ * a change are partitioned by project.
+ */
+class ChangePartitioner implements EventPartitioner {
+  static final String NAME = "change";
+
+  private final ProjectPartitioner projectPartitioner = new ProjectPartitioner();
+
+  @Override
+  public String partitionKey(Event event) {
+    if (event instanceof ChangeEvent) {
+      ChangeEvent changeEvent = (ChangeEvent) event;
+      if (changeEvent.getChangeKey() != null) {
+        return String.format(
+            "%s~%s", projectPartitioner.partitionKey(event), changeEvent.getChangeKey().get());
+      }
+    }
+    return projectPartitioner.partitionKey(event);
+  }
+}
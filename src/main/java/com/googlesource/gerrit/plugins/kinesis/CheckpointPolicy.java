@@ -0,0 +1,82 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Decides when to checkpoint a shard, based on the progress made since the last checkpoint.
+ *
+ * <p>A checkpoint is due when any of these holds, thresholds set to zero being disabled:
+ *
+ * <ul>
+ *   <li>{@code checkpointIntervalMs} elapsed since the last checkpoint;
+ *   <li>{@code checkpointMaxRecords} records have been consumed since the last checkpoint;
+ *   <li>{@code checkpointMaxBytes} bytes have been consumed since the last checkpoint;
+ *   <li>records have been consumed since the last checkpoint, but none for {@code
+ *       checkpointIdleMs}.
+ * </ul>
+ */
+class CheckpointPolicy {
+  private final long intervalMs;
+  private final long maxRecords;
+  private final long maxBytes;
+  private final long idleMs;
+
+  private long lastCheckpointAtMs;
+  private long lastRecordAtMs;
+  private long records;
+  private long bytes;
+
+  CheckpointPolicy(Configuration configuration) {
+    this(
+        configuration.getCheckpointIntervalMs(),
+        configuration.getCheckpointMaxRecords(),
+        configuration.getCheckpointMaxBytes(),
+        configuration.getCheckpointIdleMs(),
+        System.currentTimeMillis());
+  }
+
+  @VisibleForTesting
+  CheckpointPolicy(long intervalMs, long maxRecords, long maxBytes, long idleMs, long nowMs) {
+    this.intervalMs = intervalMs;
+    this.maxRecords = maxRecords;
+    this.maxBytes = maxBytes;
+    this.idleMs = idleMs;
+    this.lastCheckpointAtMs = nowMs;
+    this.lastRecordAtMs = nowMs;
+  }
+
+  void consumed(int records, long bytes, long nowMs) {
+    if (records > 0) {
+      this.records += records;
+      this.bytes += bytes;
+      this.lastRecordAtMs = nowMs;
+    }
+  }
+
+  boolean isDue(long nowMs) {
+    return (intervalMs > 0 && nowMs - lastCheckpointAtMs >= intervalMs)
+        || (maxRecords > 0 && records >= maxRecords)
+        || (maxBytes > 0 && bytes >= maxBytes)
+        || (idleMs > 0 && records > 0 && nowMs - lastRecordAtMs >= idleMs);
+  }
+
+  void checkpointed(long nowMs) {
+    lastCheckpointAtMs = nowMs;
+    records = 0;
+    bytes = 0;
+  }
+}
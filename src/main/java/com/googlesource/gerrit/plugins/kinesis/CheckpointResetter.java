@@ -15,19 +15,24 @@
 package com.googlesource.gerrit.plugins.kinesis;
 
 import static com.googlesource.gerrit.plugins.kinesis.Configuration.consumerLeaseName;
-import static software.amazon.kinesis.common.InitialPositionInStream.TRIM_HORIZON;
+import static com.googlesource.gerrit.plugins.kinesis.Configuration.multiStreamLeaseName;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.flogger.FluentLogger;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.stream.Collectors;
 import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValueUpdate;
@@ -37,6 +42,7 @@ import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
 import software.amazon.awssdk.services.dynamodb.model.ScanResponse;
 import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
 import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse;
+import software.amazon.kinesis.checkpoint.SentinelCheckpoint;
 
 @Singleton
 class CheckpointResetter {
@@ -45,6 +51,7 @@ class CheckpointResetter {
   private static final String LEASE_KEY_ATTRIBUTE_NAME = "leaseKey";
   private static final String LEASE_CHECKPOINT_ATTRIBUTE_VAUE = "checkpoint";
   private static final Integer DYNAMODB_RESPONSE_TIMEOUT_SECS = 5;
+  private static final int MAX_CONCURRENT_UPDATES = 16;
 
   private final Configuration configuration;
   private final DynamoDbAsyncClient dynamoDbAsyncClient;
@@ -55,40 +62,46 @@ class CheckpointResetter {
     this.dynamoDbAsyncClient = dynamoDbAsyncClient;
   }
 
+  /** Moves the checkpoints of all the shards of the stream to {@code TRIM_HORIZON}. */
   public void setAllShardsToBeginning(String streamName, String groupId) {
-    String leaseTable = consumerLeaseName(groupId, streamName);
-
-    try {
-      for (String shard : getAllShards(leaseTable)) {
-        logger.atInfo().log("[%s - %s] Resetting checkpoint", leaseTable, shard);
+    setAllShards(streamName, groupId, SentinelCheckpoint.TRIM_HORIZON);
+  }
 
-        Map<String, AttributeValue> updateKey = new HashMap<>();
-        updateKey.put(LEASE_KEY_ATTRIBUTE_NAME, AttributeValue.builder().s(shard).build());
+  /**
+   * Moves the checkpoints of all the shards of the stream to {@code AT_TIMESTAMP}, where consumers
+   * resume from the timestamp of their initial position.
+   */
+  public void setAllShardsToTimestamp(String streamName, String groupId) {
+    setAllShards(streamName, groupId, SentinelCheckpoint.AT_TIMESTAMP);
+  }
 
-        Map<String, AttributeValueUpdate> updateValues = new HashMap<>();
-        updateValues.put(
-            LEASE_CHECKPOINT_ATTRIBUTE_VAUE,
-            AttributeValueUpdate.builder()
-                .value(AttributeValue.builder().s(TRIM_HORIZON.name().toUpperCase()).build())
-                .build());
+  /**
+   * Updates the checkpoints of the shards concurrently, with at most {@code MAX_CONCURRENT_UPDATES}
+   * updates in flight, so that streams with many shards are reset in a few round trips.
+   */
+  private void setAllShards(String streamName, String groupId, SentinelCheckpoint checkpoint) {
+    String leaseTable =
+        configuration.isMultiStreamConsumer()
+            ? multiStreamLeaseName(groupId)
+            : consumerLeaseName(groupId, streamName);
 
-        UpdateItemResponse updateItemResponse =
-            dynamoDbAsyncClient
-                .updateItem(
-                    UpdateItemRequest.builder()
-                        .tableName(leaseTable)
-                        .key(updateKey)
-                        .attributeUpdates(updateValues)
-                        .returnValues(ReturnValue.ALL_OLD)
-                        .build())
-                .get(DYNAMODB_RESPONSE_TIMEOUT_SECS, TimeUnit.SECONDS);
-
-        logger.atInfo().log(
-            "[%s - %s] Successfully reset checkpoints. old value: %s",
-            leaseTable, shard, updateItemResponse);
+    try {
+      Semaphore permits = new Semaphore(MAX_CONCURRENT_UPDATES);
+      List<CompletableFuture<UpdateItemResponse>> updates = new ArrayList<>();
+      for (String shard : getAllShards(leaseTable, streamName)) {
+        if (!permits.tryAcquire(DYNAMODB_RESPONSE_TIMEOUT_SECS, TimeUnit.SECONDS)) {
+          throw new TimeoutException("Checkpoint updates did not complete in time");
+        }
+        updates.add(
+            setShard(leaseTable, shard, checkpoint).whenComplete((r, e) -> permits.release()));
       }
+      CompletableFuture.allOf(updates.toArray(new CompletableFuture<?>[0]))
+          .get(DYNAMODB_RESPONSE_TIMEOUT_SECS, TimeUnit.SECONDS);
+      logger.atInfo().log(
+          "%s resetOffset: %d checkpoint(s) reset to %s", leaseTable, updates.size(), checkpoint);
     } catch (InterruptedException e) {
       logger.atWarning().log("%s resetOffset: interrupted", leaseTable);
+      Thread.currentThread().interrupt();
     } catch (ExecutionException e) {
       logger.atSevere().withCause(e).log("%s resetOffset: Error", leaseTable);
     } catch (TimeoutException e) {
@@ -96,22 +109,71 @@ class CheckpointResetter {
     }
   }
 
-  private Set<String> getAllShards(String leaseTable)
+  private CompletableFuture<UpdateItemResponse> setShard(
+      String leaseTable, String shard, SentinelCheckpoint checkpoint) {
+    logger.atInfo().log("[%s - %s] Resetting checkpoint", leaseTable, shard);
+
+    Map<String, AttributeValue> updateKey = new HashMap<>();
+    updateKey.put(LEASE_KEY_ATTRIBUTE_NAME, AttributeValue.builder().s(shard).build());
+
+    Map<String, AttributeValueUpdate> updateValues = new HashMap<>();
+    updateValues.put(
+        LEASE_CHECKPOINT_ATTRIBUTE_VAUE,
+        AttributeValueUpdate.builder()
+            .value(AttributeValue.builder().s(checkpoint.name()).build())
+            .build());
+
+    return dynamoDbAsyncClient
+        .updateItem(
+            UpdateItemRequest.builder()
+                .tableName(leaseTable)
+                .key(updateKey)
+                .attributeUpdates(updateValues)
+                .returnValues(ReturnValue.ALL_OLD)
+                .build())
+        .whenComplete(
+            (updateItemResponse, e) -> {
+              if (e == null) {
+                logger.atInfo().log(
+                    "[%s - %s] Successfully reset checkpoints. old value: %s",
+                    leaseTable, shard, updateItemResponse);
+              } else {
+                logger.atSevere().withCause(e).log(
+                    "[%s - %s] Could not reset checkpoint", leaseTable, shard);
+              }
+            });
+  }
+
+  /**
+   * Scans the whole lease table, page by page.
+   *
+   * @return the lease keys of the shards of the stream, which in a multi-stream lease table are
+   *     prefixed with the stream identifier, {@code <account-id>:<stream-name>:<creation-epoch>:}
+   */
+  private Set<String> getAllShards(String leaseTable, String streamName)
       throws InterruptedException, ExecutionException, TimeoutException {
+    Set<String> shards = new HashSet<>();
+    Map<String, AttributeValue> lastEvaluatedKey = null;
     try {
-      ScanRequest scanRequest =
-          ScanRequest.builder()
-              .tableName(leaseTable)
-              .attributesToGet(LEASE_KEY_ATTRIBUTE_NAME)
-              .build();
-
-      ScanResponse scanResponse =
-          dynamoDbAsyncClient
-              .scan(scanRequest)
-              .get(DYNAMODB_RESPONSE_TIMEOUT_SECS, TimeUnit.SECONDS);
-      return scanResponse.items().stream()
-          .map(i -> i.get(LEASE_KEY_ATTRIBUTE_NAME).s())
-          .collect(Collectors.toSet());
+      do {
+        ScanRequest.Builder scanRequest =
+            ScanRequest.builder().tableName(leaseTable).attributesToGet(LEASE_KEY_ATTRIBUTE_NAME);
+        if (lastEvaluatedKey != null) {
+          scanRequest.exclusiveStartKey(lastEvaluatedKey);
+        }
+
+        ScanResponse scanResponse =
+            dynamoDbAsyncClient
+                .scan(scanRequest.build())
+                .get(DYNAMODB_RESPONSE_TIMEOUT_SECS, TimeUnit.SECONDS);
+        scanResponse.items().stream()
+            .map(i -> i.get(LEASE_KEY_ATTRIBUTE_NAME).s())
+            .filter(
+                k -> !configuration.isMultiStreamConsumer() || isLeaseOfStream(k, streamName))
+            .forEach(shards::add);
+        lastEvaluatedKey = scanResponse.lastEvaluatedKey();
+      } while (lastEvaluatedKey != null && !lastEvaluatedKey.isEmpty());
+      return shards;
     } catch (Exception e) {
       if (e.getCause() != null && e.getCause() instanceof ResourceNotFoundException) {
         logger.atWarning().log(
@@ -121,4 +183,14 @@ class CheckpointResetter {
       throw e;
     }
   }
+
+  /**
+   * Multi-stream leases are keyed by the serialized {@code StreamIdentifier} of their stream,
+   * {@code <account-id>:<stream-name>:<creation-epoch>}, followed by the shard id.
+   */
+  @VisibleForTesting
+  static boolean isLeaseOfStream(String leaseKey, String streamName) {
+    String[] parts = leaseKey.split(":");
+    return parts.length == 4 && parts[1].equals(streamName);
+  }
 }
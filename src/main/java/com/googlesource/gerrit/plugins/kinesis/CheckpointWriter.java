@@ -0,0 +1,110 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import software.amazon.kinesis.exceptions.InvalidStateException;
+import software.amazon.kinesis.exceptions.ShutdownException;
+import software.amazon.kinesis.exceptions.ThrottlingException;
+
+/**
+ * Writes the checkpoints of the shards to the lease table, away from the threads processing their
+ * records, so that a slow or throttled write does not stall the shard.
+ */
+@Singleton
+class CheckpointWriter implements LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  @FunctionalInterface
+  interface Checkpoint {
+    void save() throws InvalidStateException, ThrottlingException, ShutdownException;
+  }
+
+  private final ExecutorService ownExecutor;
+  private final Executor executor;
+  private final ConsumerMetrics metrics;
+
+  @Inject
+  CheckpointWriter(ConsumerMetrics metrics) {
+    this.ownExecutor =
+        Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("kinesis-checkpoint-writer-%d").build());
+    this.executor = ownExecutor;
+    this.metrics = metrics;
+  }
+
+  @VisibleForTesting
+  CheckpointWriter(Executor executor, ConsumerMetrics metrics) {
+    this.ownExecutor = null;
+    this.executor = executor;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public void start() {}
+
+  @Override
+  public void stop() {
+    if (ownExecutor != null) {
+      ownExecutor.shutdown();
+    }
+  }
+
+  /**
+   * Writes the checkpoint in the background.
+   *
+   * @return completes with whether the checkpoint has been written
+   */
+  CompletableFuture<Boolean> writeAsync(String shardId, Checkpoint checkpoint) {
+    return CompletableFuture.supplyAsync(() -> write(shardId, checkpoint), executor);
+  }
+
+  /**
+   * Writes the checkpoint in the calling thread.
+   *
+   * @return whether the checkpoint has been written
+   */
+  boolean write(String shardId, Checkpoint checkpoint) {
+    logger.atInfo().log("Checkpointing shard: %s", shardId);
+    long startNanos = System.nanoTime();
+    try {
+      checkpoint.save();
+      metrics.recordCheckpoint(System.nanoTime() - startNanos);
+      return true;
+    } catch (ShutdownException se) {
+      logger.atSevere().withCause(se).log("Caught shutdown exception, skipping checkpoint.");
+    } catch (ThrottlingException e) {
+      metrics.recordCheckpointThrottled();
+      logger.atSevere().withCause(e).log("Caught throttling exception, skipping checkpoint.");
+      return false;
+    } catch (InvalidStateException e) {
+      logger.atSevere().withCause(e).log(
+          "Cannot save checkpoint to the DynamoDB table used by the Amazon Kinesis Client Library.");
+    } catch (RuntimeException e) {
+      logger.atSevere().withCause(e).log("Cannot checkpoint shard %s", shardId);
+    }
+    metrics.recordCheckpointFailure();
+    return false;
+  }
+}
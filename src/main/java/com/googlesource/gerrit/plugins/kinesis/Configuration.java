@@ -15,6 +15,7 @@
 package com.googlesource.gerrit.plugins.kinesis;
 
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.flogger.FluentLogger;
 import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.server.config.PluginConfig;
@@ -22,10 +23,13 @@ import com.google.gerrit.server.config.PluginConfigFactory;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
 import org.apache.log4j.Level;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.kinesis.common.InitialPositionInStream;
+import software.amazon.kinesis.metrics.MetricsLevel;
 
 @Singleton
 class Configuration {
@@ -45,6 +49,53 @@ class Configuration {
   static final String AWS_LIB_LOG_LEVEL_FIELD = "awsLibLogLevel";
   static final String SEND_ASYNC_FIELD = "sendAsync";
   static final String SEND_STREAM_EVENTS_FIELD = "sendStreamEvents";
+  static final String AGGREGATION_ENABLED_FIELD = "aggregationEnabled";
+  static final String AGGREGATION_MAX_COUNT_FIELD = "aggregationMaxCount";
+  static final String AGGREGATION_MAX_SIZE_FIELD = "aggregationMaxSize";
+  static final String PARTITIONER_FIELD = "partitioner";
+  static final String STREAM_PARTITIONER_FIELD = "streamPartitioner";
+  static final String PUBLISH_BUFFER_POOL_SIZE_FIELD = "publishBufferPoolSize";
+  static final String PUBLISH_BUFFER_SIZE_BYTES_FIELD = "publishBufferSizeBytes";
+  static final String COMPRESSION_CODEC_FIELD = "compressionCodec";
+  static final String COMPRESSION_THRESHOLD_BYTES_FIELD = "compressionThresholdBytes";
+  static final String PUBLISH_FORMAT_FIELD = "publishFormat";
+  static final String PUBLISH_MAX_IN_FLIGHT_RECORDS_FIELD = "publishMaxInFlightRecords";
+  static final String PUBLISH_MAX_IN_FLIGHT_BYTES_FIELD = "publishMaxInFlightBytes";
+  static final String PUBLISH_BACKPRESSURE_POLICY_FIELD = "publishBackpressurePolicy";
+  static final String PUBLISH_BACKPRESSURE_TIMEOUT_MS_FIELD = "publishBackpressureTimeoutMs";
+  static final String SPOOL_ENABLED_FIELD = "spoolEnabled";
+  static final String SPOOL_MAX_SIZE_BYTES_FIELD = "spoolMaxSizeBytes";
+  static final String SPOOL_SEGMENT_SIZE_BYTES_FIELD = "spoolSegmentSizeBytes";
+  static final String SPOOL_DRAIN_INTERVAL_MS_FIELD = "spoolDrainIntervalMs";
+  static final String SPOOL_DRAIN_BATCH_SIZE_FIELD = "spoolDrainBatchSize";
+  static final String PRODUCER_ENGINE_FIELD = "producerEngine";
+  static final String PUT_RECORDS_MAX_COUNT_FIELD = "putRecordsMaxCount";
+  static final String PUT_RECORDS_MAX_BYTES_FIELD = "putRecordsMaxBytes";
+  static final String PUBLISH_GROUP_COMMIT_FIELD = "publishGroupCommit";
+  static final String PUBLISH_GROUP_COMMIT_MAX_RECORDS_FIELD = "publishGroupCommitMaxRecords";
+  static final String PUBLISH_GROUP_COMMIT_LINGER_MS_FIELD = "publishGroupCommitLingerMs";
+  static final String RETRIEVAL_MODE_FIELD = "retrievalMode";
+  static final String ADAPTIVE_POLLING_FIELD = "adaptivePolling";
+  static final String POLLING_MIN_INTERVAL_MS_FIELD = "pollingMinIntervalMs";
+  static final String POLLING_MAX_INTERVAL_MS_FIELD = "pollingMaxIntervalMs";
+  static final String PROCESSING_THREADS_FIELD = "processingThreads";
+  static final String PROCESSING_MAX_IN_FLIGHT_RECORDS_FIELD = "processingMaxInFlightRecords";
+  static final String PUBLISH_ORIGIN_HEADER_FIELD = "publishOriginHeader";
+  static final String SKIP_SELF_ORIGINATED_RECORDS_FIELD = "skipSelfOriginatedRecords";
+  static final String CHECKPOINT_MAX_RECORDS_FIELD = "checkpointMaxRecords";
+  static final String CHECKPOINT_MAX_BYTES_FIELD = "checkpointMaxBytes";
+  static final String CHECKPOINT_IDLE_MS_FIELD = "checkpointIdleMs";
+  static final String PROCESSING_MAX_RETRIES_FIELD = "processingMaxRetries";
+  static final String PROCESSING_RETRY_BACKOFF_MS_FIELD = "processingRetryBackoffMs";
+  static final String PROCESSING_RETRY_MAX_BACKOFF_MS_FIELD = "processingRetryMaxBackoffMs";
+  static final String DEAD_LETTER_STREAM_FIELD = "deadLetterStream";
+  static final String DEDUP_CACHE_SIZE_FIELD = "dedupCacheSize";
+  static final String DEDUP_CACHE_TTL_MS_FIELD = "dedupCacheTtlMs";
+  static final String DEDUP_KEY_FIELD = "dedupKey";
+  static final String MULTI_STREAM_CONSUMER_FIELD = "multiStreamConsumer";
+  static final String CONSUMER_THREAD_MODE_FIELD = "consumerThreadMode";
+  static final String AWS_METRICS_PUBLISHER_FIELD = "awsMetricsPublisher";
+  static final String AWS_METRICS_LEVEL_FIELD = "awsMetricsLevel";
 
   static final String DEFAULT_NUMBER_OF_SUBSCRIBERS = "6";
   static final String DEFAULT_STREAM_EVENTS_TOPIC = "gerrit";
@@ -60,6 +111,52 @@ class Configuration {
   static final Boolean DEFAULT_SEND_ASYNC = true;
   static final Boolean DEFAULT_SEND_STREAM_EVENTS = false;
   static final Long DEFAULT_CHECKPOINT_INTERVAL_MS = 5 * 60000L; // 5 min
+  static final Boolean DEFAULT_AGGREGATION_ENABLED = false;
+  static final Long DEFAULT_AGGREGATION_MAX_COUNT = 4294967295L;
+  static final Long DEFAULT_AGGREGATION_MAX_SIZE = 51200L;
+  static final String DEFAULT_PARTITIONER = TypePartitioner.NAME;
+  static final Integer DEFAULT_PUBLISH_BUFFER_POOL_SIZE = 16;
+  static final Integer DEFAULT_PUBLISH_BUFFER_SIZE_BYTES = 16 * 1024;
+  static final Integer DEFAULT_COMPRESSION_THRESHOLD_BYTES = 1024;
+  static final EventFormat DEFAULT_PUBLISH_FORMAT = EventFormat.JSON;
+  static final Long DEFAULT_PUBLISH_MAX_IN_FLIGHT_RECORDS = 10000L;
+  static final Long DEFAULT_PUBLISH_MAX_IN_FLIGHT_BYTES = 64 * 1024 * 1024L;
+  static final BackpressurePolicy DEFAULT_PUBLISH_BACKPRESSURE_POLICY = BackpressurePolicy.BLOCK;
+  static final Long DEFAULT_PUBLISH_BACKPRESSURE_TIMEOUT_MS = 6000L;
+  static final Boolean DEFAULT_SPOOL_ENABLED = false;
+  static final Long DEFAULT_SPOOL_MAX_SIZE_BYTES = 256 * 1024 * 1024L;
+  static final Integer DEFAULT_SPOOL_SEGMENT_SIZE_BYTES = 16 * 1024 * 1024;
+  static final Long DEFAULT_SPOOL_DRAIN_INTERVAL_MS = 1000L;
+  static final Integer DEFAULT_SPOOL_DRAIN_BATCH_SIZE = 100;
+  static final ProducerEngine DEFAULT_PRODUCER_ENGINE = ProducerEngine.KPL;
+  static final Integer DEFAULT_PUT_RECORDS_MAX_COUNT = PutRecordsProducer.MAX_BATCH_COUNT;
+  static final Long DEFAULT_PUT_RECORDS_MAX_BYTES = PutRecordsProducer.MAX_BATCH_BYTES;
+  static final Boolean DEFAULT_PUBLISH_GROUP_COMMIT = false;
+  static final Integer DEFAULT_PUBLISH_GROUP_COMMIT_MAX_RECORDS = 100;
+  static final Long DEFAULT_PUBLISH_GROUP_COMMIT_LINGER_MS = 5L;
+  static final RetrievalMode DEFAULT_RETRIEVAL_MODE = RetrievalMode.POLLING;
+  static final Boolean DEFAULT_ADAPTIVE_POLLING = false;
+  static final Long DEFAULT_POLLING_MIN_INTERVAL_MS = 200L;
+  // A shard polled with no interval would never back off, not even when throttled
+  static final long LOWEST_POLLING_MIN_INTERVAL_MS = 1L;
+  static final Long DEFAULT_POLLING_MAX_INTERVAL_MS = 10000L;
+  static final Integer DEFAULT_PROCESSING_THREADS = 0;
+  static final Integer DEFAULT_PROCESSING_MAX_IN_FLIGHT_RECORDS = 1000;
+  static final Boolean DEFAULT_PUBLISH_ORIGIN_HEADER = false;
+  static final Boolean DEFAULT_SKIP_SELF_ORIGINATED_RECORDS = true;
+  static final Long DEFAULT_CHECKPOINT_MAX_RECORDS = 0L;
+  static final Long DEFAULT_CHECKPOINT_MAX_BYTES = 0L;
+  static final Long DEFAULT_CHECKPOINT_IDLE_MS = 0L;
+  static final Integer DEFAULT_PROCESSING_MAX_RETRIES = 0;
+  static final Long DEFAULT_PROCESSING_RETRY_BACKOFF_MS = 100L;
+  static final Long DEFAULT_PROCESSING_RETRY_MAX_BACKOFF_MS = 5000L;
+  static final Integer DEFAULT_DEDUP_CACHE_SIZE = 0;
+  static final Long DEFAULT_DEDUP_CACHE_TTL_MS = 3600000L;
+  static final DedupKey DEFAULT_DEDUP_KEY = DedupKey.SEQUENCE;
+  static final Boolean DEFAULT_MULTI_STREAM_CONSUMER = false;
+  static final ThreadMode DEFAULT_CONSUMER_THREAD_MODE = ThreadMode.PLATFORM;
+  static final AwsMetricsPublisher DEFAULT_AWS_METRICS_PUBLISHER = AwsMetricsPublisher.CLOUDWATCH;
+  static final MetricsLevel DEFAULT_AWS_METRICS_LEVEL = MetricsLevel.DETAILED;
 
   private final String applicationName;
   private final String streamEventsTopic;
@@ -79,6 +176,53 @@ class Configuration {
   private final Optional<String> awsConfigurationProfileName;
   private final Long publishRecordMaxBufferedTimeMs;
   private final Long consumerFailoverTimeInMs;
+  private final Boolean aggregationEnabled;
+  private final Long aggregationMaxCount;
+  private final Long aggregationMaxSize;
+  private final String partitioner;
+  private final ImmutableMap<String, String> streamPartitioners;
+  private final Integer publishBufferPoolSize;
+  private final Integer publishBufferSizeBytes;
+  private final Optional<String> compressionCodec;
+  private final Integer compressionThresholdBytes;
+  private final EventFormat publishFormat;
+  private final Long publishMaxInFlightRecords;
+  private final Long publishMaxInFlightBytes;
+  private final BackpressurePolicy publishBackpressurePolicy;
+  private final Long publishBackpressureTimeoutMs;
+  private final Boolean spoolEnabled;
+  private final Long spoolMaxSizeBytes;
+  private final Integer spoolSegmentSizeBytes;
+  private final Long spoolDrainIntervalMs;
+  private final Integer spoolDrainBatchSize;
+  private final ProducerEngine producerEngine;
+  private final Integer putRecordsMaxCount;
+  private final Long putRecordsMaxBytes;
+  private final Boolean publishGroupCommit;
+  private final Integer publishGroupCommitMaxRecords;
+  private final Long publishGroupCommitLingerMs;
+  private final RetrievalMode retrievalMode;
+  private final Boolean adaptivePolling;
+  private final Long pollingMinIntervalMs;
+  private final Long pollingMaxIntervalMs;
+  private final Integer processingThreads;
+  private final Integer processingMaxInFlightRecords;
+  private final Boolean publishOriginHeader;
+  private final Boolean skipSelfOriginatedRecords;
+  private final Long checkpointMaxRecords;
+  private final Long checkpointMaxBytes;
+  private final Long checkpointIdleMs;
+  private final Integer processingMaxRetries;
+  private final Long processingRetryBackoffMs;
+  private final Long processingRetryMaxBackoffMs;
+  private final Optional<String> deadLetterStream;
+  private final Integer dedupCacheSize;
+  private final Long dedupCacheTtlMs;
+  private final DedupKey dedupKey;
+  private final Boolean multiStreamConsumer;
+  private final ThreadMode consumerThreadMode;
+  private final AwsMetricsPublisher awsMetricsPublisher;
+  private final MetricsLevel awsMetricsLevel;
 
   @Inject
   public Configuration(PluginConfigFactory configFactory, @PluginName String pluginName) {
@@ -159,6 +303,256 @@ class Configuration {
     this.awsConfigurationProfileName =
         Optional.ofNullable(getStringParam(pluginConfig, "profileName", null));
 
+    this.aggregationEnabled =
+        Optional.ofNullable(getStringParam(pluginConfig, AGGREGATION_ENABLED_FIELD, null))
+            .map(Boolean::parseBoolean)
+            .orElse(DEFAULT_AGGREGATION_ENABLED);
+
+    this.aggregationMaxCount =
+        Optional.ofNullable(getStringParam(pluginConfig, AGGREGATION_MAX_COUNT_FIELD, null))
+            .map(Long::parseLong)
+            .orElse(DEFAULT_AGGREGATION_MAX_COUNT);
+
+    this.aggregationMaxSize =
+        Optional.ofNullable(getStringParam(pluginConfig, AGGREGATION_MAX_SIZE_FIELD, null))
+            .map(Long::parseLong)
+            .orElse(DEFAULT_AGGREGATION_MAX_SIZE);
+
+    this.partitioner = getStringParam(pluginConfig, PARTITIONER_FIELD, DEFAULT_PARTITIONER);
+    this.streamPartitioners = parseStreamPartitioners(pluginConfig);
+
+    this.publishBufferPoolSize =
+        Optional.ofNullable(getStringParam(pluginConfig, PUBLISH_BUFFER_POOL_SIZE_FIELD, null))
+            .map(Integer::parseInt)
+            .orElse(DEFAULT_PUBLISH_BUFFER_POOL_SIZE);
+
+    this.publishBufferSizeBytes =
+        Optional.ofNullable(getStringParam(pluginConfig, PUBLISH_BUFFER_SIZE_BYTES_FIELD, null))
+            .map(Integer::parseInt)
+            .orElse(DEFAULT_PUBLISH_BUFFER_SIZE_BYTES);
+
+    this.compressionCodec =
+        Optional.ofNullable(getStringParam(pluginConfig, COMPRESSION_CODEC_FIELD, null));
+
+    this.compressionThresholdBytes =
+        Optional.ofNullable(getStringParam(pluginConfig, COMPRESSION_THRESHOLD_BYTES_FIELD, null))
+            .map(Integer::parseInt)
+            .orElse(DEFAULT_COMPRESSION_THRESHOLD_BYTES);
+
+    this.publishFormat =
+        Optional.ofNullable(getStringParam(pluginConfig, PUBLISH_FORMAT_FIELD, null))
+            .map(f -> EventFormat.valueOf(f.toUpperCase()))
+            .orElse(DEFAULT_PUBLISH_FORMAT);
+
+    this.publishMaxInFlightRecords =
+        Optional.ofNullable(getStringParam(pluginConfig, PUBLISH_MAX_IN_FLIGHT_RECORDS_FIELD, null))
+            .map(Long::parseLong)
+            .orElse(DEFAULT_PUBLISH_MAX_IN_FLIGHT_RECORDS);
+
+    this.publishMaxInFlightBytes =
+        Optional.ofNullable(getStringParam(pluginConfig, PUBLISH_MAX_IN_FLIGHT_BYTES_FIELD, null))
+            .map(Long::parseLong)
+            .orElse(DEFAULT_PUBLISH_MAX_IN_FLIGHT_BYTES);
+
+
+    this.publishBackpressureTimeoutMs =
+        Optional.ofNullable(
+                getStringParam(pluginConfig, PUBLISH_BACKPRESSURE_TIMEOUT_MS_FIELD, null))
+            .map(Long::parseLong)
+            .orElse(DEFAULT_PUBLISH_BACKPRESSURE_TIMEOUT_MS);
+
+    this.spoolEnabled =
+        Optional.ofNullable(getStringParam(pluginConfig, SPOOL_ENABLED_FIELD, null))
+            .map(Boolean::parseBoolean)
+            .orElse(DEFAULT_SPOOL_ENABLED);
+
+    BackpressurePolicy backpressurePolicy =
+        Optional.ofNullable(getStringParam(pluginConfig, PUBLISH_BACKPRESSURE_POLICY_FIELD, null))
+            .map(p -> BackpressurePolicy.valueOf(p.toUpperCase()))
+            .orElse(DEFAULT_PUBLISH_BACKPRESSURE_POLICY);
+    if (backpressurePolicy == BackpressurePolicy.SPOOL && !spoolEnabled) {
+      logger.atWarning().log(
+          "Ignoring %s '%s' since %s is false, falling back to '%s'",
+          PUBLISH_BACKPRESSURE_POLICY_FIELD,
+          backpressurePolicy,
+          SPOOL_ENABLED_FIELD,
+          DEFAULT_PUBLISH_BACKPRESSURE_POLICY);
+      backpressurePolicy = DEFAULT_PUBLISH_BACKPRESSURE_POLICY;
+    }
+    this.publishBackpressurePolicy = backpressurePolicy;
+
+    this.spoolMaxSizeBytes =
+        Optional.ofNullable(getStringParam(pluginConfig, SPOOL_MAX_SIZE_BYTES_FIELD, null))
+            .map(Long::parseLong)
+            .orElse(DEFAULT_SPOOL_MAX_SIZE_BYTES);
+
+    this.spoolSegmentSizeBytes =
+        Optional.ofNullable(getStringParam(pluginConfig, SPOOL_SEGMENT_SIZE_BYTES_FIELD, null))
+            .map(Integer::parseInt)
+            .orElse(DEFAULT_SPOOL_SEGMENT_SIZE_BYTES);
+
+    this.spoolDrainIntervalMs =
+        Optional.ofNullable(getStringParam(pluginConfig, SPOOL_DRAIN_INTERVAL_MS_FIELD, null))
+            .map(Long::parseLong)
+            .orElse(DEFAULT_SPOOL_DRAIN_INTERVAL_MS);
+
+    this.spoolDrainBatchSize =
+        Optional.ofNullable(getStringParam(pluginConfig, SPOOL_DRAIN_BATCH_SIZE_FIELD, null))
+            .map(Integer::parseInt)
+            .orElse(DEFAULT_SPOOL_DRAIN_BATCH_SIZE);
+
+    this.producerEngine =
+        Optional.ofNullable(getStringParam(pluginConfig, PRODUCER_ENGINE_FIELD, null))
+            .map(e -> ProducerEngine.valueOf(e.toUpperCase()))
+            .orElse(DEFAULT_PRODUCER_ENGINE);
+
+    this.putRecordsMaxCount =
+        Optional.ofNullable(getStringParam(pluginConfig, PUT_RECORDS_MAX_COUNT_FIELD, null))
+            .map(Integer::parseInt)
+            .orElse(DEFAULT_PUT_RECORDS_MAX_COUNT);
+
+    this.putRecordsMaxBytes =
+        Optional.ofNullable(getStringParam(pluginConfig, PUT_RECORDS_MAX_BYTES_FIELD, null))
+            .map(Long::parseLong)
+            .orElse(DEFAULT_PUT_RECORDS_MAX_BYTES);
+
+    this.publishGroupCommit =
+        Optional.ofNullable(getStringParam(pluginConfig, PUBLISH_GROUP_COMMIT_FIELD, null))
+            .map(Boolean::parseBoolean)
+            .orElse(DEFAULT_PUBLISH_GROUP_COMMIT);
+
+    this.publishGroupCommitMaxRecords =
+        Optional.ofNullable(
+                getStringParam(pluginConfig, PUBLISH_GROUP_COMMIT_MAX_RECORDS_FIELD, null))
+            .map(Integer::parseInt)
+            .orElse(DEFAULT_PUBLISH_GROUP_COMMIT_MAX_RECORDS);
+
+    this.publishGroupCommitLingerMs =
+        Optional.ofNullable(
+                getStringParam(pluginConfig, PUBLISH_GROUP_COMMIT_LINGER_MS_FIELD, null))
+            .map(Long::parseLong)
+            .orElse(DEFAULT_PUBLISH_GROUP_COMMIT_LINGER_MS);
+
+    this.retrievalMode =
+        Optional.ofNullable(getStringParam(pluginConfig, RETRIEVAL_MODE_FIELD, null))
+            .map(m -> RetrievalMode.valueOf(m.toUpperCase()))
+            .orElse(DEFAULT_RETRIEVAL_MODE);
+
+    this.adaptivePolling =
+        Optional.ofNullable(getStringParam(pluginConfig, ADAPTIVE_POLLING_FIELD, null))
+            .map(Boolean::parseBoolean)
+            .orElse(DEFAULT_ADAPTIVE_POLLING);
+
+    long pollingMinIntervalMs =
+        Optional.ofNullable(getStringParam(pluginConfig, POLLING_MIN_INTERVAL_MS_FIELD, null))
+            .map(Long::parseLong)
+            .orElse(DEFAULT_POLLING_MIN_INTERVAL_MS);
+    if (pollingMinIntervalMs < LOWEST_POLLING_MIN_INTERVAL_MS) {
+      logger.atWarning().log(
+          "Ignoring %s '%d' lower than %d ms, using %d ms",
+          POLLING_MIN_INTERVAL_MS_FIELD,
+          pollingMinIntervalMs,
+          LOWEST_POLLING_MIN_INTERVAL_MS,
+          LOWEST_POLLING_MIN_INTERVAL_MS);
+      pollingMinIntervalMs = LOWEST_POLLING_MIN_INTERVAL_MS;
+    }
+    this.pollingMinIntervalMs = pollingMinIntervalMs;
+
+    this.pollingMaxIntervalMs =
+        Optional.ofNullable(getStringParam(pluginConfig, POLLING_MAX_INTERVAL_MS_FIELD, null))
+            .map(Long::parseLong)
+            .orElse(DEFAULT_POLLING_MAX_INTERVAL_MS);
+
+    this.processingThreads =
+        Optional.ofNullable(getStringParam(pluginConfig, PROCESSING_THREADS_FIELD, null))
+            .map(Integer::parseInt)
+            .orElse(DEFAULT_PROCESSING_THREADS);
+
+    this.processingMaxInFlightRecords =
+        Optional.ofNullable(
+                getStringParam(pluginConfig, PROCESSING_MAX_IN_FLIGHT_RECORDS_FIELD, null))
+            .map(Integer::parseInt)
+            .orElse(DEFAULT_PROCESSING_MAX_IN_FLIGHT_RECORDS);
+
+    this.publishOriginHeader =
+        Optional.ofNullable(getStringParam(pluginConfig, PUBLISH_ORIGIN_HEADER_FIELD, null))
+            .map(Boolean::parseBoolean)
+            .orElse(DEFAULT_PUBLISH_ORIGIN_HEADER);
+
+    this.skipSelfOriginatedRecords =
+        Optional.ofNullable(getStringParam(pluginConfig, SKIP_SELF_ORIGINATED_RECORDS_FIELD, null))
+            .map(Boolean::parseBoolean)
+            .orElse(DEFAULT_SKIP_SELF_ORIGINATED_RECORDS);
+
+    this.checkpointMaxRecords =
+        Optional.ofNullable(getStringParam(pluginConfig, CHECKPOINT_MAX_RECORDS_FIELD, null))
+            .map(Long::parseLong)
+            .orElse(DEFAULT_CHECKPOINT_MAX_RECORDS);
+
+    this.checkpointMaxBytes =
+        Optional.ofNullable(getStringParam(pluginConfig, CHECKPOINT_MAX_BYTES_FIELD, null))
+            .map(Long::parseLong)
+            .orElse(DEFAULT_CHECKPOINT_MAX_BYTES);
+
+    this.checkpointIdleMs =
+        Optional.ofNullable(getStringParam(pluginConfig, CHECKPOINT_IDLE_MS_FIELD, null))
+            .map(Long::parseLong)
+            .orElse(DEFAULT_CHECKPOINT_IDLE_MS);
+
+    this.processingMaxRetries =
+        Optional.ofNullable(getStringParam(pluginConfig, PROCESSING_MAX_RETRIES_FIELD, null))
+            .map(Integer::parseInt)
+            .orElse(DEFAULT_PROCESSING_MAX_RETRIES);
+
+    this.processingRetryBackoffMs =
+        Optional.ofNullable(getStringParam(pluginConfig, PROCESSING_RETRY_BACKOFF_MS_FIELD, null))
+            .map(Long::parseLong)
+            .orElse(DEFAULT_PROCESSING_RETRY_BACKOFF_MS);
+
+    this.processingRetryMaxBackoffMs =
+        Optional.ofNullable(
+                getStringParam(pluginConfig, PROCESSING_RETRY_MAX_BACKOFF_MS_FIELD, null))
+            .map(Long::parseLong)
+            .orElse(DEFAULT_PROCESSING_RETRY_MAX_BACKOFF_MS);
+
+    this.deadLetterStream =
+        Optional.ofNullable(getStringParam(pluginConfig, DEAD_LETTER_STREAM_FIELD, null));
+
+    this.dedupCacheSize =
+        Optional.ofNullable(getStringParam(pluginConfig, DEDUP_CACHE_SIZE_FIELD, null))
+            .map(Integer::parseInt)
+            .orElse(DEFAULT_DEDUP_CACHE_SIZE);
+
+    this.dedupCacheTtlMs =
+        Optional.ofNullable(getStringParam(pluginConfig, DEDUP_CACHE_TTL_MS_FIELD, null))
+            .map(Long::parseLong)
+            .orElse(DEFAULT_DEDUP_CACHE_TTL_MS);
+
+    this.dedupKey =
+        Optional.ofNullable(getStringParam(pluginConfig, DEDUP_KEY_FIELD, null))
+            .map(k -> DedupKey.valueOf(k.toUpperCase()))
+            .orElse(DEFAULT_DEDUP_KEY);
+
+    this.multiStreamConsumer =
+        Optional.ofNullable(getStringParam(pluginConfig, MULTI_STREAM_CONSUMER_FIELD, null))
+            .map(Boolean::parseBoolean)
+            .orElse(DEFAULT_MULTI_STREAM_CONSUMER);
+
+    this.consumerThreadMode =
+        Optional.ofNullable(getStringParam(pluginConfig, CONSUMER_THREAD_MODE_FIELD, null))
+            .map(m -> ThreadMode.valueOf(m.toUpperCase()))
+            .orElse(DEFAULT_CONSUMER_THREAD_MODE);
+
+    this.awsMetricsPublisher =
+        Optional.ofNullable(getStringParam(pluginConfig, AWS_METRICS_PUBLISHER_FIELD, null))
+            .map(p -> AwsMetricsPublisher.valueOf(p.toUpperCase()))
+            .orElse(DEFAULT_AWS_METRICS_PUBLISHER);
+
+    this.awsMetricsLevel =
+        Optional.ofNullable(getStringParam(pluginConfig, AWS_METRICS_LEVEL_FIELD, null))
+            .map(l -> MetricsLevel.valueOf(l.toUpperCase()))
+            .orElse(DEFAULT_AWS_METRICS_LEVEL);
+
     logger.atInfo().log(
         "Kinesis client. Application:'%s'|PollingInterval: %s|maxRecords: %s%s%s%s",
         applicationName,
@@ -228,10 +622,32 @@ class Configuration {
         : System.getProperty(name);
   }
 
+  private static ImmutableMap<String, String> parseStreamPartitioners(PluginConfig pluginConfig) {
+    Map<String, String> streamPartitioners = new HashMap<>();
+    for (String streamPartitioner : pluginConfig.getStringList(STREAM_PARTITIONER_FIELD)) {
+      int separator = streamPartitioner.lastIndexOf(':');
+      if (separator <= 0 || separator == streamPartitioner.length() - 1) {
+        logger.atWarning().log(
+            "Ignoring invalid %s '%s': expected <stream>:<partitioner>",
+            STREAM_PARTITIONER_FIELD, streamPartitioner);
+        continue;
+      }
+      streamPartitioners.put(
+          streamPartitioner.substring(0, separator).trim(),
+          streamPartitioner.substring(separator + 1).trim());
+    }
+    return ImmutableMap.copyOf(streamPartitioners);
+  }
+
   public static String consumerLeaseName(String groupId, String streamName) {
     return String.format("%s-%s", groupId, streamName);
   }
 
+  /** @return the name of the lease table shared by all the streams consumed by the group */
+  public static String multiStreamLeaseName(String groupId) {
+    return String.format("%s-multi-stream", groupId);
+  }
+
   public Long getShutdownTimeoutMs() {
     return shutdownTimeoutMs;
   }
@@ -251,4 +667,192 @@ class Configuration {
   public Boolean isSendStreamEvents() {
     return sendStreamEvents;
   }
+
+  public Boolean isAggregationEnabled() {
+    return aggregationEnabled;
+  }
+
+  public Long getAggregationMaxCount() {
+    return aggregationMaxCount;
+  }
+
+  public Long getAggregationMaxSize() {
+    return aggregationMaxSize;
+  }
+
+  public String getPartitioner() {
+    return partitioner;
+  }
+
+  public Map<String, String> getStreamPartitioners() {
+    return streamPartitioners;
+  }
+
+  public Integer getPublishBufferPoolSize() {
+    return publishBufferPoolSize;
+  }
+
+  public Integer getPublishBufferSizeBytes() {
+    return publishBufferSizeBytes;
+  }
+
+  public Optional<String> getCompressionCodec() {
+    return compressionCodec;
+  }
+
+  public Integer getCompressionThresholdBytes() {
+    return compressionThresholdBytes;
+  }
+
+  public EventFormat getPublishFormat() {
+    return publishFormat;
+  }
+
+  public Long getPublishMaxInFlightRecords() {
+    return publishMaxInFlightRecords;
+  }
+
+  public Long getPublishMaxInFlightBytes() {
+    return publishMaxInFlightBytes;
+  }
+
+  public BackpressurePolicy getPublishBackpressurePolicy() {
+    return publishBackpressurePolicy;
+  }
+
+  public Long getPublishBackpressureTimeoutMs() {
+    return publishBackpressureTimeoutMs;
+  }
+
+  public Boolean isSpoolEnabled() {
+    return spoolEnabled;
+  }
+
+  public Long getSpoolMaxSizeBytes() {
+    return spoolMaxSizeBytes;
+  }
+
+  public Integer getSpoolSegmentSizeBytes() {
+    return spoolSegmentSizeBytes;
+  }
+
+  public Long getSpoolDrainIntervalMs() {
+    return spoolDrainIntervalMs;
+  }
+
+  public Integer getSpoolDrainBatchSize() {
+    return spoolDrainBatchSize;
+  }
+
+  public ProducerEngine getProducerEngine() {
+    return producerEngine;
+  }
+
+  public Integer getPutRecordsMaxCount() {
+    return putRecordsMaxCount;
+  }
+
+  public Long getPutRecordsMaxBytes() {
+    return putRecordsMaxBytes;
+  }
+
+  public Boolean isPublishGroupCommit() {
+    return publishGroupCommit;
+  }
+
+  public Integer getPublishGroupCommitMaxRecords() {
+    return publishGroupCommitMaxRecords;
+  }
+
+  public Long getPublishGroupCommitLingerMs() {
+    return publishGroupCommitLingerMs;
+  }
+
+  public RetrievalMode getRetrievalMode() {
+    return retrievalMode;
+  }
+
+  public Boolean isAdaptivePolling() {
+    return adaptivePolling;
+  }
+
+  public Long getPollingMinIntervalMs() {
+    return pollingMinIntervalMs;
+  }
+
+  public Long getPollingMaxIntervalMs() {
+    return pollingMaxIntervalMs;
+  }
+
+  public Integer getProcessingThreads() {
+    return processingThreads;
+  }
+
+  public Integer getProcessingMaxInFlightRecords() {
+    return processingMaxInFlightRecords;
+  }
+
+  public Boolean isPublishOriginHeader() {
+    return publishOriginHeader;
+  }
+
+  public Boolean isSkipSelfOriginatedRecords() {
+    return skipSelfOriginatedRecords;
+  }
+
+  public Long getCheckpointMaxRecords() {
+    return checkpointMaxRecords;
+  }
+
+  public Long getCheckpointMaxBytes() {
+    return checkpointMaxBytes;
+  }
+
+  public Long getCheckpointIdleMs() {
+    return checkpointIdleMs;
+  }
+
+  public Integer getProcessingMaxRetries() {
+    return processingMaxRetries;
+  }
+
+  public Long getProcessingRetryBackoffMs() {
+    return processingRetryBackoffMs;
+  }
+
+  public Long getProcessingRetryMaxBackoffMs() {
+    return processingRetryMaxBackoffMs;
+  }
+
+  public Optional<String> getDeadLetterStream() {
+    return deadLetterStream;
+  }
+
+  public Integer getDedupCacheSize() {
+    return dedupCacheSize;
+  }
+
+  public Long getDedupCacheTtlMs() {
+    return dedupCacheTtlMs;
+  }
+
+  public DedupKey getDedupKey() {
+    return dedupKey;
+  }
+
+  public Boolean isMultiStreamConsumer() {
+    return multiStreamConsumer;
+  }
+
+  public ThreadMode getConsumerThreadMode() {
+    return consumerThreadMode;
+  }
+
+  public AwsMetricsPublisher getAwsMetricsPublisher() {
+    return awsMetricsPublisher;
+  }
+
+  public MetricsLevel getAwsMetricsLevel() {
+    return awsMetricsLevel;
+  }
 }
@@ -17,6 +17,7 @@ package com.googlesource.gerrit.plugins.kinesis;
 import com.google.gerrit.server.git.WorkQueue;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
+import java.util.Optional;
 import java.util.concurrent.ExecutorService;
 
 class ConsumerExecutorProvider implements Provider<ExecutorService> {
@@ -31,6 +32,13 @@ class ConsumerExecutorProvider implements Provider<ExecutorService> {
 
   @Override
   public ExecutorService get() {
+    if (configuration.getConsumerThreadMode() == ThreadMode.VIRTUAL) {
+      Optional<ExecutorService> virtualThreads =
+          VirtualThreads.newThreadPerTaskExecutor("kinesis-consumers-");
+      if (virtualThreads.isPresent()) {
+        return virtualThreads.get();
+      }
+    }
     return workQueue.createQueue(configuration.getNumberOfSubscribers(), "kinesis-consumers");
   }
 }
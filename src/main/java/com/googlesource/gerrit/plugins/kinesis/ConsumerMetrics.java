@@ -0,0 +1,199 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.google.gerrit.metrics.CallbackMetric1;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Counter1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer0;
+import com.google.gerrit.metrics.Timer1;
+import com.google.gerrit.server.logging.PluginMetadata;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metrics of the records consumed from the streams.
+ *
+ * <p>Metrics of each shard are reported under a {@code shard} field, as {@code
+ * <group>/<stream>/<shard-id>}, since consumer groups of the same stream consume each shard
+ * independently.
+ */
+@Singleton
+class ConsumerMetrics {
+  private final Counter0 selfOriginatedDropped;
+  private final Timer0 checkpointLatency;
+  private final Counter0 checkpointThrottled;
+  private final Counter0 checkpointFailures;
+  private final Counter0 processingRetries;
+  private final Counter0 processingFailures;
+  private final Counter0 deadLettered;
+  private final Counter1<String> consumedRecords;
+  private final Counter1<String> consumedBytes;
+  private final Timer1<String> processingLatency;
+  private final Timer1<String> endToEndAge;
+  private final ConcurrentMap<String, Long> millisBehindLatest = new ConcurrentHashMap<>();
+
+  @Inject
+  ConsumerMetrics(MetricMaker metricMaker) {
+    this.selfOriginatedDropped =
+        metricMaker.newCounter(
+            "consumer/self_originated_dropped_records",
+            new Description("Records published by this node, dropped before being decoded")
+                .setRate()
+                .setUnit("records"));
+    this.checkpointLatency =
+        metricMaker.newTimer(
+            "consumer/checkpoint_latency",
+            new Description("Time taken to write a checkpoint to the lease table")
+                .setCumulative()
+                .setUnit(Description.Units.MILLISECONDS));
+    this.checkpointThrottled =
+        metricMaker.newCounter(
+            "consumer/checkpoint_throttled",
+            new Description("Checkpoints skipped because the lease table throttled the write")
+                .setRate()
+                .setUnit("checkpoints"));
+    this.checkpointFailures =
+        metricMaker.newCounter(
+            "consumer/checkpoint_failures",
+            new Description("Checkpoints that could not be written, other than throttled ones")
+                .setRate()
+                .setUnit("checkpoints"));
+    this.processingRetries =
+        metricMaker.newCounter(
+            "consumer/processing_retries",
+            new Description("Retries of the delivery of events to subscribers")
+                .setRate()
+                .setUnit("retries"));
+    this.processingFailures =
+        metricMaker.newCounter(
+            "consumer/processing_failures",
+            new Description("Records that could not be decoded or processed, even after retries")
+                .setRate()
+                .setUnit("records"));
+    this.deadLettered =
+        metricMaker.newCounter(
+            "consumer/dead_lettered_records",
+            new Description("Records published to the dead-letter stream")
+                .setRate()
+                .setUnit("records"));
+
+    Field<String> shardField =
+        Field.ofString(
+                "shard",
+                (metadataBuilder, shard) ->
+                    metadataBuilder.addPluginMetadata(PluginMetadata.create("shard", shard)))
+            .description(
+                "The consumer group, stream and id of the shard, as <group>/<stream>/<shard-id>")
+            .build();
+    CallbackMetric1<String, Long> behindLatest =
+        metricMaker.newCallbackMetric(
+            "consumer/millis_behind_latest",
+            Long.class,
+            new Description("How far the last records retrieved are from the tip of the shard")
+                .setGauge()
+                .setUnit(Description.Units.MILLISECONDS),
+            shardField);
+    metricMaker.newTrigger(
+        behindLatest,
+        () -> {
+          millisBehindLatest.forEach(behindLatest::set);
+          behindLatest.prune();
+        });
+    this.consumedRecords =
+        metricMaker.newCounter(
+            "consumer/consumed_records",
+            new Description("Records retrieved from a shard, after de-aggregation")
+                .setRate()
+                .setUnit("records"),
+            shardField);
+    this.consumedBytes =
+        metricMaker.newCounter(
+            "consumer/consumed_bytes",
+            new Description("Bytes of the records retrieved from a shard")
+                .setRate()
+                .setUnit(Description.Units.BYTES),
+            shardField);
+    this.processingLatency =
+        metricMaker.newTimer(
+            "consumer/processing_latency",
+            new Description("Time taken by a subscriber to process an event, or a batch of events")
+                .setCumulative()
+                .setUnit(Description.Units.MILLISECONDS),
+            shardField);
+    this.endToEndAge =
+        metricMaker.newTimer(
+            "consumer/end_to_end_age",
+            new Description("Time from the arrival of a record in the stream to its processing")
+                .setCumulative()
+                .setUnit(Description.Units.MILLISECONDS),
+            shardField);
+  }
+
+  void recordSelfOriginatedDropped() {
+    selfOriginatedDropped.increment();
+  }
+
+  void recordCheckpoint(long elapsedNanos) {
+    checkpointLatency.record(elapsedNanos, TimeUnit.NANOSECONDS);
+  }
+
+  void recordCheckpointThrottled() {
+    checkpointThrottled.increment();
+  }
+
+  void recordCheckpointFailure() {
+    checkpointFailures.increment();
+  }
+
+  void recordProcessingRetry() {
+    processingRetries.increment();
+  }
+
+  void recordProcessingFailure() {
+    processingFailures.increment();
+  }
+
+  void recordDeadLettered() {
+    deadLettered.increment();
+  }
+
+  void recordConsumed(String shard, int records, long bytes, Long behindLatestMs) {
+    consumedRecords.incrementBy(shard, records);
+    consumedBytes.incrementBy(shard, bytes);
+    if (behindLatestMs != null) {
+      millisBehindLatest.put(shard, behindLatestMs);
+    }
+  }
+
+  void recordProcessing(String shard, long elapsedNanos) {
+    processingLatency.record(shard, elapsedNanos, TimeUnit.NANOSECONDS);
+  }
+
+  void recordProcessed(String shard, long ageMs) {
+    endToEndAge.record(shard, ageMs, TimeUnit.MILLISECONDS);
+  }
+
+  /** Stops reporting how far behind the shard is, once no longer consumed by this node. */
+  void recordShardReleased(String shard) {
+    millisBehindLatest.remove(shard);
+  }
+}
@@ -0,0 +1,36 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+/**
+ * A consumed record that could not be processed, as published to the dead-letter stream.
+ *
+ * <p>The {@code payload} is the original data of the record, Base64 encoded, so that it can be
+ * published again as it was. It is omitted when the dead letter would exceed the maximum size of
+ * a record, in which case the record can only be read again from its source stream, by sequence
+ * number, until it expires.
+ */
+class DeadLetter {
+  String sourceStream;
+  String shardId;
+  String sequenceNumber;
+  long subSequenceNumber;
+  String partitionKey;
+  String instanceId;
+  long failedAt;
+  int attempts;
+  String error;
+  String payload;
+}
@@ -0,0 +1,119 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Throwables;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.server.config.GerritInstanceId;
+import com.google.gson.Gson;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+
+/** Publishes the records that could not be processed to the configured dead-letter stream. */
+@Singleton
+class DeadLetterPublisher {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  static final Gson GSON = new Gson();
+  private static final int MAX_ERROR_LENGTH = 4096;
+
+  private final RecordProducer producer;
+  private final Optional<String> deadLetterStream;
+  private final long publishTimeoutMs;
+  private final String instanceId;
+
+  @Inject
+  DeadLetterPublisher(
+      RecordProducer producer,
+      Configuration configuration,
+      @Nullable @GerritInstanceId String instanceId) {
+    this.producer = producer;
+    this.deadLetterStream = configuration.getDeadLetterStream();
+    this.publishTimeoutMs = configuration.getPublishTimeoutMs();
+    this.instanceId = instanceId;
+  }
+
+  boolean isEnabled() {
+    return deadLetterStream.isPresent();
+  }
+
+  /**
+   * Publishes the record to the dead-letter stream, waiting for it to be acknowledged.
+   *
+   * <p>The calling thread, which processes the records of a shard, is held for up to {@code
+   * publishTimeoutMs}: the failed record must not be checkpointed before it is dead-lettered.
+   *
+   * @return whether the record has been published
+   */
+  boolean publish(
+      String sourceStream,
+      String shardId,
+      KinesisClientRecord consumerRecord,
+      int attempts,
+      Throwable error) {
+    if (!deadLetterStream.isPresent()) {
+      return false;
+    }
+    DeadLetter deadLetter = new DeadLetter();
+    deadLetter.sourceStream = sourceStream;
+    deadLetter.shardId = shardId;
+    deadLetter.sequenceNumber = consumerRecord.sequenceNumber();
+    deadLetter.subSequenceNumber = consumerRecord.subSequenceNumber();
+    deadLetter.partitionKey = consumerRecord.partitionKey();
+    deadLetter.instanceId = instanceId;
+    deadLetter.failedAt = System.currentTimeMillis();
+    deadLetter.attempts = attempts;
+    String stackTrace = Throwables.getStackTraceAsString(error);
+    deadLetter.error =
+        stackTrace.length() > MAX_ERROR_LENGTH
+            ? stackTrace.substring(0, MAX_ERROR_LENGTH)
+            : stackTrace;
+
+    ByteBuffer data = consumerRecord.data().duplicate();
+    byte[] payload = new byte[data.remaining()];
+    data.get(payload);
+    deadLetter.payload = Base64.getEncoder().encodeToString(payload);
+    byte[] encoded = GSON.toJson(deadLetter).getBytes(UTF_8);
+    if (encoded.length > PutRecordsProducer.MAX_RECORD_BYTES) {
+      deadLetter.payload = null;
+      encoded = GSON.toJson(deadLetter).getBytes(UTF_8);
+    }
+
+    try {
+      producer
+          .addUserRecord(
+              deadLetterStream.get(),
+              Optional.ofNullable(consumerRecord.partitionKey())
+                  .orElse(consumerRecord.sequenceNumber()),
+              ByteBuffer.wrap(encoded))
+          .get(publishTimeoutMs, TimeUnit.MILLISECONDS);
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      logger.atSevere().withCause(e).log(
+          "Could not publish record %s of stream %s to dead-letter stream %s",
+          consumerRecord.sequenceNumber(), sourceStream, deadLetterStream.get());
+    }
+    return false;
+  }
+}
@@ -0,0 +1,211 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.gson.JsonParseException;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.awssdk.services.kinesis.model.GetRecordsRequest;
+import software.amazon.awssdk.services.kinesis.model.GetRecordsResponse;
+import software.amazon.awssdk.services.kinesis.model.GetShardIteratorRequest;
+import software.amazon.awssdk.services.kinesis.model.ListShardsRequest;
+import software.amazon.awssdk.services.kinesis.model.ListShardsResponse;
+import software.amazon.awssdk.services.kinesis.model.Shard;
+import software.amazon.awssdk.services.kinesis.model.ShardIteratorType;
+import software.amazon.kinesis.retrieval.AggregatorUtil;
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+
+/**
+ * Reads the dead-letter stream from the beginning, or from a point in time, and publishes the
+ * payload of each dead letter again to the stream it was consumed from, at a controlled rate.
+ *
+ * <p>Records are published again to their source stream, hence they are consumed again by every
+ * consumer group of that stream, not only by the one that failed to process them.
+ */
+@Singleton
+class DeadLetterRedriver {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  private static final AggregatorUtil AGGREGATOR_UTIL = new AggregatorUtil();
+  private static final int KINESIS_RESPONSE_TIMEOUT_SECS = 10;
+  // GetRecords is limited to 5 calls per second per shard
+  private static final long GET_RECORDS_INTERVAL_MS = 200L;
+
+  static class Result {
+    int redriven;
+    int skipped;
+    int failed;
+  }
+
+  private final KinesisAsyncClient kinesisClient;
+  private final RecordProducer producer;
+  private final long publishTimeoutMs;
+
+  @Inject
+  DeadLetterRedriver(
+      KinesisAsyncClient kinesisClient, RecordProducer producer, Configuration configuration) {
+    this.kinesisClient = kinesisClient;
+    this.producer = producer;
+    this.publishTimeoutMs = configuration.getPublishTimeoutMs();
+  }
+
+  /**
+   * @param deadLetterStream the stream to read the dead letters from
+   * @param since only re-drive the dead letters published after this instant, when present
+   * @param recordsPerSecond the maximum rate at which records are published again
+   * @param limit the maximum number of records to re-drive, 0 for no limit
+   * @param dryRun only report the dead letters that would be re-driven
+   * @param progress receives a line for each dead letter read
+   */
+  Result redrive(
+      String deadLetterStream,
+      Optional<Instant> since,
+      double recordsPerSecond,
+      int limit,
+      boolean dryRun,
+      Consumer<String> progress)
+      throws Exception {
+    RateLimiter rateLimiter = RateLimiter.create(recordsPerSecond);
+    Result result = new Result();
+    for (String shardId : listShards(deadLetterStream)) {
+      String shardIterator = shardIterator(deadLetterStream, shardId, since);
+      while (shardIterator != null && !isLimitReached(result, limit)) {
+        GetRecordsResponse response =
+            kinesisClient
+                .getRecords(GetRecordsRequest.builder().shardIterator(shardIterator).build())
+                .get(KINESIS_RESPONSE_TIMEOUT_SECS, TimeUnit.SECONDS);
+        List<KinesisClientRecord> records =
+            AGGREGATOR_UTIL.deaggregate(
+                response.records().stream()
+                    .map(KinesisClientRecord::fromRecord)
+                    .collect(Collectors.toList()));
+        for (KinesisClientRecord deadLetterRecord : records) {
+          if (isLimitReached(result, limit)) {
+            break;
+          }
+          redrive(deadLetterRecord, rateLimiter, dryRun, progress, result);
+        }
+        if (records.isEmpty() && Long.valueOf(0L).equals(response.millisBehindLatest())) {
+          break;
+        }
+        shardIterator = response.nextShardIterator();
+        Thread.sleep(GET_RECORDS_INTERVAL_MS);
+      }
+    }
+    return result;
+  }
+
+  private void redrive(
+      KinesisClientRecord deadLetterRecord,
+      RateLimiter rateLimiter,
+      boolean dryRun,
+      Consumer<String> progress,
+      Result result) {
+    DeadLetter deadLetter;
+    try {
+      deadLetter =
+          DeadLetterPublisher.GSON.fromJson(
+              UTF_8.decode(deadLetterRecord.data()).toString(), DeadLetter.class);
+    } catch (JsonParseException e) {
+      logger.atWarning().log(
+          "Skipping record %s of the dead-letter stream: %s",
+          deadLetterRecord.sequenceNumber(), e.getMessage());
+      result.skipped++;
+      return;
+    }
+    if (deadLetter == null || deadLetter.sourceStream == null || deadLetter.payload == null) {
+      progress.accept(
+          String.format(
+              "Skipping record %s: no payload to re-drive", deadLetterRecord.sequenceNumber()));
+      result.skipped++;
+      return;
+    }
+
+    String description =
+        String.format(
+            "record %s of %s [PK: %s]",
+            deadLetter.sequenceNumber, deadLetter.sourceStream, deadLetter.partitionKey);
+    if (dryRun) {
+      progress.accept("Would re-drive " + description);
+      result.redriven++;
+      return;
+    }
+
+    rateLimiter.acquire();
+    try {
+      producer
+          .addUserRecord(
+              deadLetter.sourceStream,
+              Optional.ofNullable(deadLetter.partitionKey).orElse(deadLetter.sequenceNumber),
+              ByteBuffer.wrap(Base64.getDecoder().decode(deadLetter.payload)))
+          .get(publishTimeoutMs, TimeUnit.MILLISECONDS);
+      progress.accept("Re-driven " + description);
+      result.redriven++;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while re-driving " + description, e);
+    } catch (Exception e) {
+      logger.atSevere().withCause(e).log("Could not re-drive %s", description);
+      progress.accept("Could not re-drive " + description + ": " + e.getMessage());
+      result.failed++;
+    }
+  }
+
+  private List<String> listShards(String stream) throws Exception {
+    List<String> shardIds = new ArrayList<>();
+    ListShardsRequest request = ListShardsRequest.builder().streamName(stream).build();
+    while (true) {
+      ListShardsResponse response =
+          kinesisClient.listShards(request).get(KINESIS_RESPONSE_TIMEOUT_SECS, TimeUnit.SECONDS);
+      response.shards().stream().map(Shard::shardId).forEach(shardIds::add);
+      if (response.nextToken() == null) {
+        return shardIds;
+      }
+      request = ListShardsRequest.builder().nextToken(response.nextToken()).build();
+    }
+  }
+
+  private String shardIterator(String stream, String shardId, Optional<Instant> since)
+      throws Exception {
+    GetShardIteratorRequest.Builder request =
+        GetShardIteratorRequest.builder().streamName(stream).shardId(shardId);
+    if (since.isPresent()) {
+      request.shardIteratorType(ShardIteratorType.AT_TIMESTAMP).timestamp(since.get());
+    } else {
+      request.shardIteratorType(ShardIteratorType.TRIM_HORIZON);
+    }
+    return kinesisClient
+        .getShardIterator(request.build())
+        .get(KINESIS_RESPONSE_TIMEOUT_SECS, TimeUnit.SECONDS)
+        .shardIterator();
+  }
+
+  private static boolean isLimitReached(Result result, int limit) {
+    return limit > 0 && result.redriven + result.failed >= limit;
+  }
+}
@@ -0,0 +1,30 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+/** What identifies consumed records as duplicates of records already processed. */
+enum DedupKey {
+  /**
+   * The shard and sequence number of the record: catches the records consumed again after a lease
+   * failover, a restart or a checkpoint reset.
+   */
+  SEQUENCE,
+
+  /**
+   * The payload of the record: also catches the events published more than once, e.g. retried by
+   * the producer or drained from the spool, at the cost of hashing each payload.
+   */
+  PAYLOAD
+}
@@ -0,0 +1,40 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.google.gerrit.extensions.annotations.ExtensionPoint;
+import com.google.gerrit.server.events.Event;
+
+/**
+ * Computes the Kinesis partition key of an event.
+ *
+ * <p>Kinesis maps partition keys to shards and guarantees ordering only amongst records sharing the
+ * same partition key. Implementations should therefore produce keys with enough cardinality to
+ * spread the traffic across all shards, whilst assigning the same key to events whose relative
+ * ordering matters.
+ *
+ * <p>Implementations are bound by name and selected via the {@code partitioner} and {@code
+ * streamPartitioner} settings.
+ */
+@ExtensionPoint
+public interface EventPartitioner {
+
+  /**
+   * @param event the event being published
+   * @return the partition key of the event. A {@code null} or empty key makes the publisher fall
+   *     back to the event type.
+   */
+  String partitionKey(Event event);
+}
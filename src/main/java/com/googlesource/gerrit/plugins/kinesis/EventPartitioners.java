@@ -0,0 +1,90 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.google.common.base.Strings;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.hash.Hashing;
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.extensions.registration.DynamicMap;
+import com.google.gerrit.server.events.Event;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves the {@link EventPartitioner} configured for each stream and computes partition keys
+ * that are always accepted by Kinesis.
+ */
+@Singleton
+class EventPartitioners {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  // Kinesis rejects partition keys longer than 256 unicode characters
+  static final int MAX_PARTITION_KEY_LENGTH = 256;
+
+  private final DynamicMap<EventPartitioner> partitioners;
+  private final String pluginName;
+  private final String defaultPartitioner;
+  private final Map<String, String> streamPartitioners;
+  private final EventPartitioner fallbackPartitioner = new TypePartitioner();
+
+  @Inject
+  EventPartitioners(
+      DynamicMap<EventPartitioner> partitioners,
+      @PluginName String pluginName,
+      Configuration configuration) {
+    this.partitioners = partitioners;
+    this.pluginName = pluginName;
+    this.defaultPartitioner = configuration.getPartitioner();
+    this.streamPartitioners = configuration.getStreamPartitioners();
+  }
+
+  String partitionKey(String streamName, Event event) {
+    String partitionKey = forStream(streamName).partitionKey(event);
+    if (Strings.isNullOrEmpty(partitionKey)) {
+      partitionKey = fallbackPartitioner.partitionKey(event);
+    }
+    if (partitionKey.length() > MAX_PARTITION_KEY_LENGTH) {
+      return Hashing.murmur3_128().hashUnencodedChars(partitionKey).toString();
+    }
+    return partitionKey;
+  }
+
+  EventPartitioner forStream(String streamName) {
+    String name = streamPartitioners.getOrDefault(streamName, defaultPartitioner);
+    EventPartitioner partitioner = lookup(name);
+    if (partitioner == null) {
+      logger.atWarning().atMostEvery(1, TimeUnit.MINUTES).log(
+          "Partitioner '%s' of stream '%s' is not registered, partitioning by '%s' instead",
+          name, streamName, TypePartitioner.NAME);
+      return fallbackPartitioner;
+    }
+    return partitioner;
+  }
+
+  /**
+   * Partitioners are looked up by export name. Partitioners exported by other plugins are
+   * referenced as {@code <plugin-name>/<export-name>}.
+   */
+  private EventPartitioner lookup(String name) {
+    int slash = name.indexOf('/');
+    if (slash < 0) {
+      return partitioners.get(pluginName, name);
+    }
+    return partitioners.get(name.substring(0, slash), name.substring(slash + 1));
+  }
+}
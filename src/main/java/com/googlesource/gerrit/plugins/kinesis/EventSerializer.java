@@ -0,0 +1,60 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.google.gerrit.server.events.Event;
+import com.google.gerrit.server.events.EventGson;
+import com.google.gson.Gson;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+
+/** Serializes events in the configured {@link EventFormat}, straight into pooled buffers. */
+@Singleton
+class EventSerializer {
+  private final Gson gson;
+  private final ByteBufferPool pool;
+  private final EventFormat format;
+
+  @Inject
+  EventSerializer(@EventGson Gson gson, ByteBufferPool pool, Configuration configuration) {
+    this(gson, pool, configuration.getPublishFormat());
+  }
+
+  EventSerializer(Gson gson, ByteBufferPool pool, EventFormat format) {
+    this.gson = gson;
+    this.pool = pool;
+    this.format = format;
+  }
+
+  /**
+   * @param event the event to serialize
+   * @return the serialized event. Callers must close it once the data has been consumed, to return
+   *     the underlying buffer to the pool.
+   */
+  PooledRecord serialize(Event event) throws IOException {
+    try (PooledByteBufferOutputStream out = new PooledByteBufferOutputStream(pool)) {
+      switch (format) {
+        case CBOR:
+          CborTranscoder.write(gson.toJsonTree(event), out);
+          break;
+        case JSON:
+        default:
+          gson.toJson(event, out.utf8Writer());
+      }
+      return out.toRecord();
+    }
+  }
+}
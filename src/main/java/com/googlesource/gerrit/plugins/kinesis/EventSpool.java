@@ -0,0 +1,392 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.extensions.annotations.PluginData;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only store of the records that could not be published, kept under the plugin data
+ * directory so that they survive restarts.
+ *
+ * <p>The spool is a sequence of fixed-size, memory-mapped segment files. Each entry is made of:
+ *
+ * <ul>
+ *   <li>the length of its body (4 bytes), written last, so that a zero length marks the end of the
+ *       entries of a segment;
+ *   <li>the CRC32 of its body (4 bytes), to detect entries torn by a crash;
+ *   <li>the body: stream name and partition key (2 bytes length followed by their UTF-8 bytes) and
+ *       the encoded record.
+ * </ul>
+ *
+ * <p>A length of -1 marks a segment closed before being full. The position of the oldest entry
+ * not yet published is kept in a separate, memory-mapped position file. Segments are deleted once
+ * all their entries have been published.
+ */
+@Singleton
+class EventSpool {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  static final String SPOOL_DIRECTORY = "spool";
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final String POSITION_FILE = "position";
+  private static final int POSITION_SIZE = Long.BYTES + Integer.BYTES;
+  private static final int ENTRY_HEADER_SIZE = 2 * Integer.BYTES;
+  private static final int END_OF_SEGMENT = -1;
+
+  private final boolean enabled;
+  private final Path directory;
+  private final int segmentSize;
+  private final int maxSegments;
+  private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+  private final AtomicLong depthRecords = new AtomicLong();
+  private final AtomicLong depthBytes = new AtomicLong();
+  private final Counter0 spooledRecords;
+  private final Counter0 rejectedRecords;
+
+  private MappedByteBuffer position;
+  private Cursor reader;
+  private Cursor writer;
+
+  @Inject
+  EventSpool(Configuration configuration, @PluginData Path pluginData, MetricMaker metricMaker) {
+    this(
+        configuration.isSpoolEnabled(),
+        pluginData.resolve(SPOOL_DIRECTORY),
+        configuration.getSpoolSegmentSizeBytes(),
+        configuration.getSpoolMaxSizeBytes(),
+        metricMaker);
+  }
+
+  @VisibleForTesting
+  EventSpool(
+      boolean enabled, Path directory, int segmentSize, long maxSize, MetricMaker metricMaker) {
+    this.enabled = enabled;
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.maxSegments = (int) Math.max(2, maxSize / segmentSize);
+
+    metricMaker.newCallbackMetric(
+        "spool/depth_records",
+        Long.class,
+        new Description("Records in the spool, waiting to be published")
+            .setGauge()
+            .setUnit("records"),
+        depthRecords::get);
+    metricMaker.newCallbackMetric(
+        "spool/depth_bytes",
+        Long.class,
+        new Description("Bytes of the records in the spool, waiting to be published")
+            .setGauge()
+            .setUnit(Description.Units.BYTES),
+        depthBytes::get);
+    this.spooledRecords =
+        metricMaker.newCounter(
+            "spool/spooled_records",
+            new Description("Records that could not be published and were spooled")
+                .setRate()
+                .setUnit("records"));
+    this.rejectedRecords =
+        metricMaker.newCounter(
+            "spool/rejected_records",
+            new Description("Records that could not be spooled, because the spool is full")
+                .setRate()
+                .setUnit("records"));
+  }
+
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  synchronized boolean isOpen() {
+    return position != null;
+  }
+
+  /** Maps the existing segments and recovers the position of the reader and of the writer. */
+  synchronized void open() throws IOException {
+    Files.createDirectories(directory);
+    try (Stream<Path> files = Files.list(directory)) {
+      List<Long> segmentIds = new ArrayList<>();
+      files
+          .map(p -> p.getFileName().toString())
+          .filter(n -> n.endsWith(SEGMENT_SUFFIX))
+          .forEach(n -> segmentIds.add(Long.parseLong(n.replace(SEGMENT_SUFFIX, ""))));
+      for (long segmentId : segmentIds) {
+        segments.put(segmentId, map(segmentFile(segmentId), segmentSize));
+      }
+    }
+
+    position = map(directory.resolve(POSITION_FILE), POSITION_SIZE);
+    reader = new Cursor(position.getLong(0), position.getInt(Long.BYTES));
+    if (segments.isEmpty()) {
+      reader = new Cursor(reader.segment, 0);
+      segments.put(reader.segment, map(segmentFile(reader.segment), segmentSize));
+    } else if (!segments.containsKey(reader.segment)) {
+      reader = new Cursor(segments.firstKey(), 0);
+    }
+
+    long lastSegment = segments.lastKey();
+    writer = new Cursor(lastSegment, lastSegment == reader.segment ? reader.offset : 0);
+    for (int length = entryLength(segments.get(lastSegment), writer.offset);
+        length > 0;
+        length = entryLength(segments.get(lastSegment), writer.offset)) {
+      writer.offset += ENTRY_HEADER_SIZE + length;
+    }
+
+    Cursor cursor = reader.copy();
+    for (SpooledRecord record = read(cursor); record != null; record = read(cursor)) {
+      depthRecords.incrementAndGet();
+      depthBytes.addAndGet(record.size());
+    }
+    logger.atInfo().log(
+        "Opened spool %s with %d records (%d bytes) to publish",
+        directory, depthRecords.get(), depthBytes.get());
+  }
+
+  synchronized void close() {
+    if (position == null) {
+      return;
+    }
+    segments.values().forEach(MappedByteBuffer::force);
+    position.force();
+    segments.clear();
+    position = null;
+  }
+
+  /**
+   * Appends a record to the spool.
+   *
+   * @return true when the record has been spooled, false when the spool is not open or full.
+   */
+  synchronized boolean append(String streamName, String partitionKey, ByteBuffer data) {
+    if (position == null) {
+      logger.atWarning().atMostEvery(1, TimeUnit.MINUTES).log(
+          "Spool is not open, cannot spool record [PK: %s]", partitionKey);
+      return false;
+    }
+
+    byte[] stream = streamName.getBytes(UTF_8);
+    byte[] key = partitionKey.getBytes(UTF_8);
+    int bodyLength = Short.BYTES + stream.length + Short.BYTES + key.length + data.remaining();
+    int entrySize = ENTRY_HEADER_SIZE + bodyLength;
+    if (entrySize > segmentSize) {
+      logger.atWarning().log(
+          "Record of %d bytes is too big for spool segments of %d bytes [PK: %s]",
+          data.remaining(), segmentSize, partitionKey);
+      rejectedRecords.increment();
+      return false;
+    }
+
+    try {
+      if (writer.offset + entrySize > segmentSize) {
+        if (segments.size() >= maxSegments) {
+          logger.atWarning().atMostEvery(1, TimeUnit.MINUTES).log(
+              "Spool is full, cannot spool record [PK: %s]", partitionKey);
+          rejectedRecords.increment();
+          return false;
+        }
+        MappedByteBuffer current = segments.get(writer.segment);
+        if (writer.offset + Integer.BYTES <= segmentSize) {
+          current.putInt(writer.offset, END_OF_SEGMENT);
+        }
+        writer = new Cursor(writer.segment + 1, 0);
+        segments.put(writer.segment, map(segmentFile(writer.segment), segmentSize));
+      }
+    } catch (IOException e) {
+      logger.atSevere().withCause(e).log("Could not create spool segment %d", writer.segment);
+      rejectedRecords.increment();
+      return false;
+    }
+
+    int recordSize = data.remaining();
+    MappedByteBuffer segment = segments.get(writer.segment);
+    ByteBuffer body = segment.duplicate();
+    body.position(writer.offset + ENTRY_HEADER_SIZE);
+    body.putShort((short) stream.length).put(stream);
+    body.putShort((short) key.length).put(key);
+    body.put(data.duplicate());
+    segment.putInt(writer.offset + Integer.BYTES, crc(segment, writer.offset, bodyLength));
+    segment.putInt(writer.offset, bodyLength);
+    writer.offset += entrySize;
+
+    depthRecords.incrementAndGet();
+    depthBytes.addAndGet(recordSize);
+    spooledRecords.increment();
+    return true;
+  }
+
+  /**
+   * Returns, in order, up to {@code max} of the oldest records in the spool, without removing them.
+   */
+  synchronized List<SpooledRecord> peek(int max) {
+    List<SpooledRecord> records = new ArrayList<>();
+    if (position == null) {
+      return records;
+    }
+    Cursor cursor = reader.copy();
+    while (records.size() < max) {
+      SpooledRecord record = read(cursor);
+      if (record == null) {
+        break;
+      }
+      records.add(record);
+    }
+    return records;
+  }
+
+  /** Removes the {@code count} oldest records, deleting the segments no longer needed. */
+  synchronized void remove(int count) {
+    if (position == null) {
+      return;
+    }
+    for (int i = 0; i < count; i++) {
+      SpooledRecord record = read(reader);
+      if (record == null) {
+        break;
+      }
+      depthRecords.decrementAndGet();
+      depthBytes.addAndGet(-record.size());
+    }
+    position.putLong(0, reader.segment);
+    position.putInt(Long.BYTES, reader.offset);
+
+    while (segments.firstKey() < reader.segment) {
+      long segmentId = segments.pollFirstEntry().getKey();
+      try {
+        Files.deleteIfExists(segmentFile(segmentId));
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log("Could not delete spool segment %d", segmentId);
+      }
+    }
+  }
+
+  long depth() {
+    return depthRecords.get();
+  }
+
+  /** Reads the entry at the cursor, moving the cursor past it. */
+  private SpooledRecord read(Cursor cursor) {
+    while (true) {
+      MappedByteBuffer segment = segments.get(cursor.segment);
+      if (segment == null) {
+        return null;
+      }
+      boolean lastSegment = cursor.segment == writer.segment;
+      if (lastSegment && cursor.offset >= writer.offset) {
+        return null;
+      }
+
+      int length = entryLength(segment, cursor.offset);
+      if (length <= 0) {
+        if (lastSegment) {
+          return null;
+        }
+        cursor.segment++;
+        cursor.offset = 0;
+        continue;
+      }
+
+      int bodyOffset = cursor.offset + ENTRY_HEADER_SIZE;
+      ByteBuffer body = segment.duplicate();
+      body.position(bodyOffset).limit(bodyOffset + length);
+      byte[] stream = new byte[body.getShort() & 0xFFFF];
+      body.get(stream);
+      byte[] key = new byte[body.getShort() & 0xFFFF];
+      body.get(key);
+      cursor.offset = bodyOffset + length;
+      return new SpooledRecord(
+          new String(stream, UTF_8), new String(key, UTF_8), body.slice().asReadOnlyBuffer());
+    }
+  }
+
+  /**
+   * Returns the length of the body of the entry at the given offset, or a non-positive value when
+   * there is no valid entry there.
+   */
+  private int entryLength(MappedByteBuffer segment, int offset) {
+    if (offset + ENTRY_HEADER_SIZE > segmentSize) {
+      return END_OF_SEGMENT;
+    }
+    int length = segment.getInt(offset);
+    if (length <= 0 || offset + ENTRY_HEADER_SIZE + length > segmentSize) {
+      return length <= 0 ? length : END_OF_SEGMENT;
+    }
+    if (segment.getInt(offset + Integer.BYTES) != crc(segment, offset, length)) {
+      logger.atWarning().log(
+          "Ignoring torn spool entry at offset %d, and the following ones in its segment", offset);
+      return END_OF_SEGMENT;
+    }
+    return length;
+  }
+
+  private static int crc(MappedByteBuffer segment, int offset, int bodyLength) {
+    ByteBuffer body = segment.duplicate();
+    body.position(offset + ENTRY_HEADER_SIZE).limit(offset + ENTRY_HEADER_SIZE + bodyLength);
+    CRC32 crc = new CRC32();
+    crc.update(body);
+    return (int) crc.getValue();
+  }
+
+  private Path segmentFile(long segmentId) {
+    return directory.resolve(String.format("%020d%s", segmentId, SEGMENT_SUFFIX));
+  }
+
+  private static MappedByteBuffer map(Path file, int size) throws IOException {
+    try (FileChannel channel =
+        FileChannel.open(
+            file,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE)) {
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+  }
+
+  private static class Cursor {
+    long segment;
+    int offset;
+
+    Cursor(long segment, int offset) {
+      this.segment = segment;
+      this.offset = offset;
+    }
+
+    Cursor copy() {
+      return new Cursor(segment, offset);
+    }
+  }
+}
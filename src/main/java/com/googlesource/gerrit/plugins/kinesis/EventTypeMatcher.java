@@ -0,0 +1,80 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.googlesource.gerrit.plugins.kinesis.api.EventTypeFilter;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/** Matches the type of consumed events against the types accepted by an {@link EventTypeFilter}. */
+class EventTypeMatcher {
+  static final EventTypeMatcher ALL = new EventTypeMatcher(null);
+  static final byte[] TYPE_FIELD = "type".getBytes(UTF_8);
+
+  private final Set<String> types;
+  private final byte[][] encodedTypes;
+
+  static EventTypeMatcher of(Object consumer) {
+    return consumer instanceof EventTypeFilter
+        ? new EventTypeMatcher(((EventTypeFilter) consumer).acceptedEventTypes())
+        : ALL;
+  }
+
+  /** @return a matcher of the types matched by any of the matchers */
+  static EventTypeMatcher anyOf(Collection<EventTypeMatcher> matchers) {
+    Set<String> types = new HashSet<>();
+    for (EventTypeMatcher matcher : matchers) {
+      if (matcher.types == null) {
+        return ALL;
+      }
+      types.addAll(matcher.types);
+    }
+    return matchers.isEmpty() ? ALL : new EventTypeMatcher(types);
+  }
+
+  private EventTypeMatcher(Set<String> types) {
+    this.types = types;
+    this.encodedTypes =
+        types == null ? null : types.stream().map(t -> t.getBytes(UTF_8)).toArray(byte[][]::new);
+  }
+
+  boolean matches(String type) {
+    return types == null || types.contains(type);
+  }
+
+  /**
+   * @param json a JSON encoded event
+   * @return false when the event is known to be of a type that is not accepted
+   */
+  boolean matches(ByteBuffer json) {
+    if (types == null) {
+      return true;
+    }
+    int typeStart = JsonPeek.findStringField(json, TYPE_FIELD);
+    if (typeStart == JsonPeek.NOT_FOUND) {
+      return true;
+    }
+    for (byte[] type : encodedTypes) {
+      if (JsonPeek.valueEquals(json, typeStart, type)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
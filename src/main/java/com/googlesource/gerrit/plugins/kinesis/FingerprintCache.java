@@ -0,0 +1,130 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+
+/**
+ * A set of 64-bit fingerprints bounded in size and in age, stored in primitive arrays allocated
+ * upfront: each entry takes 24 bytes at most, without any per-entry object.
+ *
+ * <p>Fingerprints are kept in a ring, in insertion order, which is also their order of expiry, so
+ * that the oldest ones are evicted first, when expired or when the ring is full. An open-addressing
+ * index with linear probing, at most half full, maps each fingerprint to its position in the ring.
+ */
+class FingerprintCache {
+  static final int MAX_CAPACITY = 1 << 28;
+  private static final int EMPTY = -1;
+
+  private final int capacity;
+  private final long ttlMs;
+  private final long[] fingerprints;
+  private final long[] insertedAtMs;
+  private final int[] index;
+  private final int mask;
+  private int head;
+  private int size;
+
+  FingerprintCache(int capacity, long ttlMs) {
+    checkArgument(
+        capacity > 0 && capacity <= MAX_CAPACITY,
+        "capacity must be between 1 and %s: %s",
+        MAX_CAPACITY,
+        capacity);
+    this.capacity = capacity;
+    this.ttlMs = ttlMs;
+    this.fingerprints = new long[capacity];
+    this.insertedAtMs = new long[capacity];
+    this.index = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+    this.mask = index.length - 1;
+    Arrays.fill(index, EMPTY);
+  }
+
+  /**
+   * Adds the fingerprint, unless already present and not expired.
+   *
+   * @return whether the fingerprint has been added, false when already present
+   */
+  synchronized boolean add(long fingerprint, long nowMs) {
+    expire(nowMs);
+    int slot = find(fingerprint);
+    if (index[slot] != EMPTY) {
+      return false;
+    }
+    if (size == capacity) {
+      evictOldest();
+      slot = find(fingerprint);
+    }
+    int position = (head + size) % capacity;
+    fingerprints[position] = fingerprint;
+    insertedAtMs[position] = nowMs;
+    index[slot] = position;
+    size++;
+    return true;
+  }
+
+  synchronized boolean contains(long fingerprint, long nowMs) {
+    expire(nowMs);
+    return index[find(fingerprint)] != EMPTY;
+  }
+
+  synchronized int size() {
+    return size;
+  }
+
+  long memoryBytes() {
+    return (long) capacity * (Long.BYTES * 2) + (long) index.length * Integer.BYTES;
+  }
+
+  private void expire(long nowMs) {
+    while (size > 0 && nowMs - insertedAtMs[head] >= ttlMs) {
+      evictOldest();
+    }
+  }
+
+  private void evictOldest() {
+    remove(find(fingerprints[head]));
+    head = (head + 1) % capacity;
+    size--;
+  }
+
+  /** @return the slot of the fingerprint in the index, or the empty slot where it would go */
+  private int find(long fingerprint) {
+    int slot = home(fingerprint);
+    while (index[slot] != EMPTY && fingerprints[index[slot]] != fingerprint) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /** Removes the slot, moving back the following entries of the probe sequence into the hole. */
+  private void remove(int slot) {
+    int hole = slot;
+    for (int next = (hole + 1) & mask; index[next] != EMPTY; next = (next + 1) & mask) {
+      int home = home(fingerprints[index[next]]);
+      if (((next - home) & mask) >= ((next - hole) & mask)) {
+        index[hole] = index[next];
+        hole = next;
+      }
+    }
+    index[hole] = EMPTY;
+  }
+
+  private int home(long fingerprint) {
+    return (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+  }
+}
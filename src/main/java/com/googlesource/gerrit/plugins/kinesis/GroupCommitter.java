@@ -0,0 +1,140 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Groups the records published synchronously, so that concurrent publishers share a single round
+ * trip to Kinesis.
+ *
+ * <p>Records join the group of their stream once handed over to the producer. The group is flushed
+ * as soon as it reaches the maximum number of records, or once the first record joined it since
+ * the linger time, rather than waiting for the producer buffering time to expire. All the
+ * publishers of a group are then released by the acknowledgement of the same batch.
+ */
+@Singleton
+class GroupCommitter implements LifecycleListener {
+  private final RecordProducer recordProducer;
+  private final boolean enabled;
+  private final int maxRecords;
+  private final long lingerMs;
+  private final Map<String, Group> groups = new HashMap<>();
+  private final ScheduledExecutorService scheduler;
+
+  @Inject
+  GroupCommitter(RecordProducer recordProducer, Configuration configuration) {
+    this(
+        recordProducer,
+        configuration.isPublishGroupCommit() && !configuration.isSendAsync(),
+        configuration.getPublishGroupCommitMaxRecords(),
+        configuration.getPublishGroupCommitLingerMs());
+  }
+
+  @VisibleForTesting
+  GroupCommitter(RecordProducer recordProducer, boolean enabled, int maxRecords, long lingerMs) {
+    this.recordProducer = recordProducer;
+    this.enabled = enabled;
+    this.maxRecords = maxRecords;
+    this.lingerMs = lingerMs;
+    this.scheduler =
+        enabled
+            ? Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("kinesis-group-commit-%d").build())
+            : null;
+  }
+
+  @Override
+  public void start() {}
+
+  @Override
+  public void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Adds a record, already handed over to the producer, to the group of its stream.
+   *
+   * @param streamName the stream the record has been published to
+   */
+  void join(String streamName) {
+    boolean flush = false;
+    synchronized (this) {
+      Group group = groups.get(streamName);
+      if (group == null) {
+        group = newGroup(streamName);
+      }
+      if (++group.records >= maxRecords) {
+        closeGroup(streamName);
+        flush = true;
+      }
+    }
+
+    if (flush) {
+      recordProducer.flush(streamName);
+    }
+  }
+
+  private Group newGroup(String streamName) {
+    Group group = new Group();
+    groups.put(streamName, group);
+    try {
+      group.lingerTask =
+          scheduler.schedule(() -> linger(streamName, group), lingerMs, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // Shutting down: the records are sent once the producer buffering time expires
+    }
+    return group;
+  }
+
+  private void closeGroup(String streamName) {
+    Group group = groups.remove(streamName);
+    if (group.lingerTask != null) {
+      group.lingerTask.cancel(false);
+    }
+  }
+
+  private void linger(String streamName, Group group) {
+    synchronized (this) {
+      if (groups.get(streamName) != group) {
+        return;
+      }
+      groups.remove(streamName);
+    }
+    recordProducer.flush(streamName);
+  }
+
+  private static class Group {
+    int records;
+    ScheduledFuture<?> lingerTask;
+  }
+}
@@ -0,0 +1,41 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+class GzipCodec implements PayloadCodec {
+  static final String NAME = "gzip";
+  static final byte ID = 1;
+
+  @Override
+  public byte id() {
+    return ID;
+  }
+
+  @Override
+  public OutputStream compress(OutputStream out) throws IOException {
+    return new GZIPOutputStream(out);
+  }
+
+  @Override
+  public InputStream decompress(InputStream in) throws IOException {
+    return new GZIPInputStream(in);
+  }
+}
@@ -0,0 +1,53 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Strings;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.gerrit.server.events.ChangeEvent;
+import com.google.gerrit.server.events.Event;
+import com.google.gerrit.server.events.ProjectEvent;
+import com.google.gerrit.server.events.RefEvent;
+
+/**
+ * Partitions events by a consistent hash of their project, ref and change.
+ *
+ * <p>Events of the same change or, when not related to a change, of the same ref are kept in order,
+ * like the {@link ChangePartitioner} and {@link RefPartitioner} do. Hashing produces fixed-length
+ * keys, regardless of the size of project and ref names, which are uniformly spread across the
+ * shards.
+ */
+class HashPartitioner implements EventPartitioner {
+  static final String NAME = "hash";
+
+  @Override
+  public String partitionKey(Event event) {
+    Hasher hasher = Hashing.murmur3_128().newHasher();
+    if (event instanceof ProjectEvent && ((ProjectEvent) event).getProjectNameKey() != null) {
+      hasher.putString(((ProjectEvent) event).getProjectNameKey().get(), UTF_8);
+    }
+    if (event instanceof ChangeEvent && ((ChangeEvent) event).getChangeKey() != null) {
+      hasher.putString(((ChangeEvent) event).getChangeKey().get(), UTF_8);
+    } else if (event instanceof RefEvent && ((RefEvent) event).getRefName() != null) {
+      hasher.putString(((RefEvent) event).getRefName(), UTF_8);
+    } else if (!(event instanceof ProjectEvent)) {
+      hasher.putString(Strings.nullToEmpty(event.getType()), UTF_8);
+    }
+    return hasher.hash().toString();
+  }
+}
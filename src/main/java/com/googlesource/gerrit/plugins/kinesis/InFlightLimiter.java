@@ -0,0 +1,198 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.gerrit.metrics.Counter1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.server.logging.PluginMetadata;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Caps the number of records, and of bytes, handed over to the producer and not yet acknowledged.
+ *
+ * <p>When Kinesis throttles, the producer keeps buffering records in memory. Limiting what is in
+ * flight prevents the producer buffers, and the heap, from growing without bounds. What happens
+ * once the limits are reached is decided by the {@link BackpressurePolicy}.
+ */
+@Singleton
+class InFlightLimiter {
+  // Upper bound of each wait for room, in case a completion is missed
+  private static final long MAX_WAIT_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+  private final long maxRecords;
+  private final long maxBytes;
+  private final BackpressurePolicy policy;
+  private final long timeoutMs;
+  private final LongSupplier outstandingRecords;
+  private final AtomicLong inFlightBytes = new AtomicLong();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition released = lock.newCondition();
+  private final Counter1<String> droppedRecords;
+
+  @Inject
+  InFlightLimiter(
+      Configuration configuration, RecordProducer recordProducer, MetricMaker metricMaker) {
+    this(
+        configuration.getPublishMaxInFlightRecords(),
+        configuration.getPublishMaxInFlightBytes(),
+        configuration.getPublishBackpressurePolicy(),
+        configuration.getPublishBackpressureTimeoutMs(),
+        recordProducer::getOutstandingRecordsCount,
+        metricMaker);
+  }
+
+  @VisibleForTesting
+  InFlightLimiter(
+      long maxRecords,
+      long maxBytes,
+      BackpressurePolicy policy,
+      long timeoutMs,
+      LongSupplier outstandingRecords,
+      MetricMaker metricMaker) {
+    this.maxRecords = maxRecords;
+    this.maxBytes = maxBytes;
+    this.policy = policy;
+    this.timeoutMs = timeoutMs;
+    this.outstandingRecords = outstandingRecords;
+
+    metricMaker.newCallbackMetric(
+        "publisher/in_flight_records",
+        Long.class,
+        new Description("Records handed over to the producer and not yet acknowledged")
+            .setGauge()
+            .setUnit("records"),
+        outstandingRecords::getAsLong);
+    metricMaker.newCallbackMetric(
+        "publisher/in_flight_bytes",
+        Long.class,
+        new Description("Bytes handed over to the producer and not yet acknowledged")
+            .setGauge()
+            .setUnit(Description.Units.BYTES),
+        inFlightBytes::get);
+    this.droppedRecords =
+        metricMaker.newCounter(
+            "publisher/backpressure_dropped_records",
+            new Description("Records dropped because of the in-flight limits")
+                .setRate()
+                .setUnit("records"),
+            Field.ofString(
+                    "stream",
+                    (metadataBuilder, stream) ->
+                        metadataBuilder.addPluginMetadata(PluginMetadata.create("stream", stream)))
+                .description("The stream the records were published to")
+                .build());
+  }
+
+  /**
+   * Reserves room for a record, applying the backpressure policy when the limits are reached.
+   *
+   * @param streamName the stream the record is published to
+   * @param bytes the size of the record
+   * @return true when the record can be published, in which case {@link #release(int)} must be
+   *     called once it is acknowledged, false otherwise. Unless the policy is {@link
+   *     BackpressurePolicy#SPOOL}, the record is then counted as dropped: spooled records are only
+   *     counted, through {@link #dropped(String)}, when they cannot be spooled.
+   * @throws InterruptedException when interrupted whilst blocked
+   */
+  boolean acquire(String streamName, int bytes) throws InterruptedException {
+    if (hasRoomFor(bytes)) {
+      inFlightBytes.addAndGet(bytes);
+      return true;
+    }
+
+    if (policy == BackpressurePolicy.BLOCK && awaitRoomFor(bytes)) {
+      inFlightBytes.addAndGet(bytes);
+      return true;
+    }
+
+    if (policy != BackpressurePolicy.SPOOL) {
+      droppedRecords.increment(streamName);
+    }
+    return false;
+  }
+
+  /**
+   * Reserves room for a record when the limits allow it, without applying the backpressure policy.
+   *
+   * @return true when the record can be published, in which case {@link #release(int)} must be
+   *     called once it is acknowledged, false otherwise
+   */
+  boolean tryAcquire(int bytes) {
+    lock.lock();
+    try {
+      if (!hasRoomFor(bytes)) {
+        return false;
+      }
+      inFlightBytes.addAndGet(bytes);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Counts a record that could neither be published nor spooled. */
+  void dropped(String streamName) {
+    droppedRecords.increment(streamName);
+  }
+
+  BackpressurePolicy policy() {
+    return policy;
+  }
+
+  void release(int bytes) {
+    inFlightBytes.addAndGet(-bytes);
+    lock.lock();
+    try {
+      released.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private boolean awaitRoomFor(int bytes) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    lock.lock();
+    try {
+      while (!hasRoomFor(bytes)) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return false;
+        }
+        released.awaitNanos(Math.min(remaining, MAX_WAIT_SLICE_NANOS));
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private boolean hasRoomFor(int bytes) {
+    if (maxRecords > 0 && outstandingRecords.getAsLong() >= maxRecords) {
+      return false;
+    }
+    // A record bigger than the limit is let through when nothing else is in flight
+    long inFlight = inFlightBytes.get();
+    return maxBytes <= 0 || inFlight == 0 || inFlight + bytes <= maxBytes;
+  }
+}
@@ -0,0 +1,188 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads top-level string fields of a JSON object straight from its UTF-8 encoded bytes, without
+ * allocating nor moving the position of the buffer.
+ *
+ * <p>Only what is needed to skip over the other fields is parsed, hence malformed payloads are not
+ * necessarily detected: callers are expected to fully deserialize the payload when the field is
+ * not found.
+ */
+class JsonPeek {
+  static final int NOT_FOUND = -1;
+
+  private JsonPeek() {}
+
+  /**
+   * Finds the value of a top-level string field.
+   *
+   * @param json the UTF-8 encoded JSON object, from its position to its limit
+   * @param name the UTF-8 encoded name of the field
+   * @return the index of the first byte of the value, or {@link #NOT_FOUND} when the payload is
+   *     not a JSON object, the field is missing, its value is not a string or contains escape
+   *     sequences
+   */
+  static int findStringField(ByteBuffer json, byte[] name) {
+    int limit = json.limit();
+    int i = skipWhitespace(json, json.position(), limit);
+    if (i >= limit || json.get(i) != '{') {
+      return NOT_FOUND;
+    }
+    i++;
+    while (true) {
+      i = skipWhitespace(json, i, limit);
+      if (i >= limit || json.get(i) != '"') {
+        return NOT_FOUND;
+      }
+      int keyEnd = skipString(json, i, limit);
+      if (keyEnd == NOT_FOUND) {
+        return NOT_FOUND;
+      }
+      boolean matches = regionEquals(json, i + 1, keyEnd - 1, name);
+      i = skipWhitespace(json, keyEnd, limit);
+      if (i >= limit || json.get(i) != ':') {
+        return NOT_FOUND;
+      }
+      i = skipWhitespace(json, i + 1, limit);
+      if (matches) {
+        return stringValueStart(json, i, limit);
+      }
+      i = skipValue(json, i, limit);
+      if (i == NOT_FOUND) {
+        return NOT_FOUND;
+      }
+      i = skipWhitespace(json, i, limit);
+      if (i >= limit || json.get(i) != ',') {
+        return NOT_FOUND;
+      }
+      i++;
+    }
+  }
+
+  /**
+   * @param json the UTF-8 encoded JSON object
+   * @param valueStart the index returned by {@link #findStringField(ByteBuffer, byte[])}
+   * @param value the UTF-8 encoded value to compare with
+   * @return whether the string value starting at {@code valueStart} is equal to {@code value}
+   */
+  static boolean valueEquals(ByteBuffer json, int valueStart, byte[] value) {
+    int valueEnd = valueStart + value.length;
+    return valueEnd < json.limit()
+        && json.get(valueEnd) == '"'
+        && regionEquals(json, valueStart, valueEnd, value);
+  }
+
+  private static int stringValueStart(ByteBuffer json, int i, int limit) {
+    if (i >= limit || json.get(i) != '"') {
+      return NOT_FOUND;
+    }
+    for (int j = i + 1; j < limit; j++) {
+      byte b = json.get(j);
+      if (b == '"') {
+        return i + 1;
+      }
+      if (b == '\\') {
+        return NOT_FOUND;
+      }
+    }
+    return NOT_FOUND;
+  }
+
+  private static boolean regionEquals(ByteBuffer json, int start, int end, byte[] expected) {
+    if (end - start != expected.length) {
+      return false;
+    }
+    for (int k = 0; k < expected.length; k++) {
+      if (json.get(start + k) != expected[k]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int skipWhitespace(ByteBuffer json, int i, int limit) {
+    while (i < limit && isWhitespace(json.get(i))) {
+      i++;
+    }
+    return i;
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+  }
+
+  /** @return the index following the closing quote of the string starting at {@code i}. */
+  private static int skipString(ByteBuffer json, int i, int limit) {
+    int j = i + 1;
+    while (j < limit) {
+      byte b = json.get(j);
+      if (b == '\\') {
+        j += 2;
+      } else if (b == '"') {
+        return j + 1;
+      } else {
+        j++;
+      }
+    }
+    return NOT_FOUND;
+  }
+
+  /** @return the index following the value starting at {@code i}. */
+  private static int skipValue(ByteBuffer json, int i, int limit) {
+    if (i >= limit) {
+      return NOT_FOUND;
+    }
+    byte first = json.get(i);
+    if (first == '"') {
+      return skipString(json, i, limit);
+    }
+    if (first == '{' || first == '[') {
+      int depth = 0;
+      int j = i;
+      while (j < limit) {
+        byte b = json.get(j);
+        if (b == '"') {
+          j = skipString(json, j, limit);
+          if (j == NOT_FOUND) {
+            return NOT_FOUND;
+          }
+          continue;
+        }
+        if (b == '{' || b == '[') {
+          depth++;
+        } else if (b == '}' || b == ']') {
+          if (--depth == 0) {
+            return j + 1;
+          }
+        }
+        j++;
+      }
+      return NOT_FOUND;
+    }
+    int j = i;
+    while (j < limit) {
+      byte b = json.get(j);
+      if (b == ',' || b == '}' || b == ']' || isWhitespace(b)) {
+        break;
+      }
+      j++;
+    }
+    return j > i ? j : NOT_FOUND;
+  }
+}
@@ -0,0 +1,229 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.metrics.CallbackMetric1;
+import com.google.gerrit.metrics.Counter1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer1;
+import com.google.gerrit.server.logging.PluginMetadata;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import software.amazon.awssdk.services.cloudwatch.model.StandardUnit;
+import software.amazon.kinesis.metrics.MetricsFactory;
+import software.amazon.kinesis.metrics.MetricsLevel;
+import software.amazon.kinesis.metrics.MetricsScope;
+
+/**
+ * Reports the metrics of the Kinesis Client Library as Gerrit metrics, prefixed by {@code
+ * consumer/kcl/}, instead of uploading them to CloudWatch.
+ *
+ * <p>Metrics in milliseconds are reported as timers. Metrics counting or measuring what happened
+ * during an operation, such as records or bytes processed, are reported as counters. Metrics
+ * measuring a level, such as the number of leases or workers, are reported as gauges, holding
+ * the last value reported. They are reported for each KCL operation, but not for each shard nor
+ * worker, to keep their number bounded: see {@link ConsumerMetrics} for the metrics of each shard.
+ */
+@Singleton
+class KclMetricsFactory implements MetricsFactory {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  private static final String OPERATION_DIMENSION = "Operation";
+
+  /** The metrics of the KCL with a {@link StandardUnit#COUNT} unit which measure a level. */
+  private static final ImmutableSet<String> GAUGES =
+      ImmutableSet.of(
+          "CurrentLeases",
+          "ExpiredLeases",
+          "LeaseSpillover",
+          "LeasesToTake",
+          "NeededLeases",
+          "NumStreamsToSync",
+          "NumStreamsWithPartialLeases",
+          "NumWorkers",
+          "TotalLeases",
+          "VeryOldLeases");
+
+  private final MetricMaker metricMaker;
+  private final MetricsLevel metricsLevel;
+  private final Field<String> operationField;
+  // By Gerrit metric name: KCL metric names differing only by the characters Gerrit does not
+  // allow share the same Gerrit metric, which can only be created once
+  private final ConcurrentMap<String, Recorder> recorders = new ConcurrentHashMap<>();
+
+  @Inject
+  KclMetricsFactory(MetricMaker metricMaker, Configuration configuration) {
+    this.metricMaker = metricMaker;
+    this.metricsLevel = configuration.getAwsMetricsLevel();
+    this.operationField =
+        Field.ofString(
+                "operation",
+                (metadataBuilder, operation) ->
+                    metadataBuilder.addPluginMetadata(
+                        PluginMetadata.create("operation", operation)))
+            .description("The KCL operation the metric was measured for")
+            .build();
+  }
+
+  @Override
+  public MetricsScope createMetrics() {
+    return new Scope();
+  }
+
+  /** @return the name of the Gerrit metric, with the characters Gerrit does not allow replaced */
+  static String metricName(String kclName) {
+    return "consumer/kcl/" + kclName.replaceAll("[^a-zA-Z0-9_-]", "_");
+  }
+
+  private void record(String name, double value, StandardUnit unit, String operation) {
+    Kind kind = Kind.of(name, unit);
+    Recorder recorder =
+        recorders.computeIfAbsent(metricName(name), n -> newRecorder(n, name, unit, kind));
+    if (recorder.kind != kind) {
+      logger.atWarning().atMostEvery(10, TimeUnit.MINUTES).log(
+          "KCL metric %s not reported: %s is already reported as a %s",
+          name, recorder.name, recorder.kind.name().toLowerCase());
+      return;
+    }
+    recorder.record(operation, value);
+  }
+
+  private Recorder newRecorder(String metricName, String kclName, StandardUnit unit, Kind kind) {
+    Description description = new Description("KCL metric " + kclName);
+    switch (kind) {
+      case TIMER:
+        Timer1<String> timer =
+            metricMaker.newTimer(
+                metricName,
+                description.setCumulative().setUnit(Description.Units.MILLISECONDS),
+                operationField);
+        return new Recorder(
+            metricName,
+            kind,
+            (operation, value) ->
+                timer.record(operation, Math.round(value), TimeUnit.MILLISECONDS));
+      case GAUGE:
+        Map<String, Double> lastValues = new ConcurrentHashMap<>();
+        CallbackMetric1<String, Double> gauge =
+            metricMaker.newCallbackMetric(
+                metricName,
+                Double.class,
+                description.setGauge().setUnit(unit.toString().toLowerCase()),
+                operationField);
+        metricMaker.newTrigger(gauge, () -> lastValues.forEach(gauge::set));
+        return new Recorder(metricName, kind, lastValues::put);
+      case COUNTER:
+      default:
+        Counter1<String> counter =
+            metricMaker.newCounter(
+                metricName,
+                description.setRate().setUnit(unit.toString().toLowerCase()),
+                operationField);
+        return new Recorder(
+            metricName,
+            kind,
+            (operation, value) -> counter.incrementBy(operation, Math.round(value)));
+    }
+  }
+
+  private enum Kind {
+    TIMER,
+    COUNTER,
+    GAUGE;
+
+    static Kind of(String kclName, StandardUnit unit) {
+      if (unit == StandardUnit.MILLISECONDS) {
+        return TIMER;
+      }
+      if (GAUGES.contains(kclName)
+          || (unit != StandardUnit.COUNT && unit != StandardUnit.BYTES)) {
+        return GAUGE;
+      }
+      return COUNTER;
+    }
+  }
+
+  private static class Recorder {
+    final String name;
+    final Kind kind;
+    final BiConsumer<String, Double> consumer;
+
+    Recorder(String name, Kind kind, BiConsumer<String, Double> consumer) {
+      this.name = name;
+      this.kind = kind;
+      this.consumer = consumer;
+    }
+
+    void record(String operation, double value) {
+      consumer.accept(operation, value);
+    }
+  }
+
+  /**
+   * Collects the data of an operation until its end, since the KCL sets the operation dimension
+   * once the scope is created.
+   */
+  private class Scope implements MetricsScope {
+    private final List<Datum> data = new ArrayList<>();
+    private String operation = "unknown";
+
+    @Override
+    public void addData(String name, double value, StandardUnit unit) {
+      addData(name, value, unit, MetricsLevel.DETAILED);
+    }
+
+    @Override
+    public void addData(String name, double value, StandardUnit unit, MetricsLevel level) {
+      if (level.getValue() >= metricsLevel.getValue()) {
+        data.add(new Datum(name, value, unit));
+      }
+    }
+
+    @Override
+    public void addDimension(String name, String value) {
+      if (OPERATION_DIMENSION.equals(name)) {
+        operation = value;
+      }
+    }
+
+    @Override
+    public void end() {
+      data.forEach(d -> record(d.name, d.value, d.unit, operation));
+      data.clear();
+    }
+  }
+
+  private static class Datum {
+    final String name;
+    final double value;
+    final StandardUnit unit;
+
+    Datum(String name, double value, StandardUnit unit) {
+      this.name = name;
+      this.value = value;
+      this.unit = unit;
+    }
+  }
+}
@@ -0,0 +1,151 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.google.common.flogger.FluentLogger;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import software.amazon.kinesis.retrieval.kpl.ExtendedSequenceNumber;
+
+/**
+ * Runs the records of a shard on a shared executor, in parallel across keys but in order for each
+ * key, and tracks up to which sequence number all the records have been processed.
+ *
+ * <p>The number of records dispatched and not yet processed is bounded, so that a slow key applies
+ * backpressure to the retrieval of the shard rather than piling up records in memory.
+ *
+ * <p>A task that fails, or that the executor rejects, leaves its record unprocessed: the
+ * dispatcher is then failed, and the sequence number completed stops before that record for good.
+ */
+class KeyOrderedDispatcher {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final Executor executor;
+  private final int maxInFlight;
+  private final Map<String, CompletableFuture<Void>> lanes = new HashMap<>();
+  private final Deque<InFlightRecord> inFlight = new ArrayDeque<>();
+  private ExtendedSequenceNumber completed;
+  private boolean failed;
+
+  KeyOrderedDispatcher(Executor executor, int maxInFlight) {
+    this.executor = executor;
+    this.maxInFlight = maxInFlight;
+  }
+
+  /**
+   * Runs the task after all the tasks previously dispatched with the same key, waiting while too
+   * many records are in flight.
+   *
+   * @param key the ordering key of the record
+   * @param sequenceNumber the sequence number of the record, dispatched in shard order
+   * @param task processes the record
+   * @throws InterruptedException if interrupted while waiting for a record to complete
+   * @throws RejectedExecutionException if the executor is shutting down
+   */
+  synchronized void dispatch(String key, ExtendedSequenceNumber sequenceNumber, Runnable task)
+      throws InterruptedException {
+    while (inFlight.size() >= maxInFlight) {
+      wait();
+    }
+    InFlightRecord record = new InFlightRecord(sequenceNumber);
+    inFlight.addLast(record);
+
+    CompletableFuture<Void> previous = lanes.get(key);
+    CompletableFuture<Void> next;
+    try {
+      next =
+          previous == null
+              ? CompletableFuture.runAsync(task, executor)
+              : previous.exceptionally(e -> null).thenRunAsync(task, executor);
+    } catch (RejectedExecutionException e) {
+      inFlight.removeLast();
+      throw e;
+    }
+    lanes.put(key, next);
+    next.whenComplete((v, e) -> complete(key, next, record, e));
+  }
+
+  private synchronized void complete(
+      String key, CompletableFuture<Void> lane, InFlightRecord record, Throwable error) {
+    lanes.remove(key, lane);
+    record.done = true;
+    if (error != null) {
+      record.failed = true;
+      logger.atSevere().withCause(error).log(
+          "Record %s was not processed: no record is completed from it onwards",
+          record.sequenceNumber);
+    }
+    while (!inFlight.isEmpty() && inFlight.peekFirst().done) {
+      InFlightRecord first = inFlight.removeFirst();
+      failed |= first.failed;
+      if (!failed) {
+        completed = first.sequenceNumber;
+      }
+    }
+    notifyAll();
+  }
+
+  /**
+   * @return the highest sequence number up to which all the dispatched records have been
+   *     processed, if any.
+   */
+  synchronized Optional<ExtendedSequenceNumber> completedUpTo() {
+    return Optional.ofNullable(completed);
+  }
+
+  /** @return whether a record was left unprocessed, no later record being completed since */
+  synchronized boolean isFailed() {
+    return failed;
+  }
+
+  synchronized int inFlight() {
+    return inFlight.size();
+  }
+
+  /**
+   * Waits for all the dispatched records to be processed.
+   *
+   * @param timeoutMs maximum time to wait, in milliseconds
+   * @return true if all records have been processed, false if the timeout expired
+   * @throws InterruptedException if interrupted while waiting
+   */
+  synchronized boolean awaitCompletion(long timeoutMs) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    while (!inFlight.isEmpty()) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        return false;
+      }
+      wait(remaining);
+    }
+    return true;
+  }
+
+  private static class InFlightRecord {
+    final ExtendedSequenceNumber sequenceNumber;
+    boolean done;
+    boolean failed;
+
+    InFlightRecord(ExtendedSequenceNumber sequenceNumber) {
+      this.sequenceNumber = sequenceNumber;
+    }
+  }
+}
@@ -14,26 +14,30 @@
 
 package com.googlesource.gerrit.plugins.kinesis;
 
-import com.gerritforge.gerrit.eventbroker.BrokerApi;
+import static com.googlesource.gerrit.plugins.kinesis.Configuration.consumerLeaseName;
+
 import com.gerritforge.gerrit.eventbroker.TopicSubscriber;
 import com.gerritforge.gerrit.eventbroker.TopicSubscriberWithGroupId;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.gerrit.common.Nullable;
 import com.google.gerrit.server.events.Event;
 import com.google.inject.Inject;
-import java.util.Collections;
+import com.googlesource.gerrit.plugins.kinesis.api.BatchBrokerApi;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
-class KinesisBrokerApi implements BrokerApi {
+class KinesisBrokerApi implements BatchBrokerApi {
   private final KinesisConsumer.Factory consumerFactory;
   private final Configuration configuration;
 
   private final KinesisPublisher kinesisPublisher;
-  private final Set<KinesisConsumer> consumers;
+  private final Map<String, KinesisConsumer> consumers;
 
   @Inject
   public KinesisBrokerApi(
@@ -43,7 +47,7 @@ class KinesisBrokerApi implements BrokerApi {
     this.kinesisPublisher = kinesisPublisher;
     this.consumerFactory = consumerFactory;
     this.configuration = configuration;
-    this.consumers = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    this.consumers = new ConcurrentHashMap<>();
   }
 
   @Override
@@ -61,54 +65,89 @@ class KinesisBrokerApi implements BrokerApi {
     receive(streamName, consumer, groupId);
   }
 
+  @Override
+  public void receiveBatchAsync(String streamName, Consumer<List<Event>> batchConsumer) {
+    receive(streamName, new BatchEventConsumer(batchConsumer), null);
+  }
+
+  @Override
+  public void receiveBatchAsync(
+      String streamName, String groupId, Consumer<List<Event>> batchConsumer) {
+    receive(streamName, new BatchEventConsumer(batchConsumer), groupId);
+  }
+
   @Override
   public Set<TopicSubscriber> topicSubscribers() {
-    return consumers.stream()
-        .map(s -> TopicSubscriber.topicSubscriber(s.getStreamName(), s.getMessageProcessor()))
+    return consumers.values().stream()
+        .flatMap(
+            c ->
+                c.getMessageProcessors().stream()
+                    .map(p -> TopicSubscriber.topicSubscriber(c.getStreamName(), p)))
         .collect(Collectors.toSet());
   }
 
   @Override
   public void disconnect() {
-    consumers.parallelStream().forEach(KinesisConsumer::shutdown);
+    consumers.values().parallelStream().forEach(KinesisConsumer::shutdown);
     consumers.clear();
   }
 
   @Override
   public void disconnect(String topic, String groupId) {
-    Set<KinesisConsumer> consumersOfTopic =
-        consumers
-            .parallelStream()
-            .filter(c -> topic.equals(c.getStreamName()) && groupId.equals(c.getGroupId()))
-            .collect(Collectors.toSet());
-
-    consumersOfTopic.forEach(KinesisConsumer::shutdown);
-    consumers.removeAll(consumersOfTopic);
+    KinesisConsumer consumer = consumers.remove(consumerLeaseName(groupId, topic));
+    if (consumer != null) {
+      consumer.shutdown();
+    }
+  }
+
+  @Override
+  public void disconnect(String topic, String groupId, Consumer<?> subscriber) {
+    consumers.computeIfPresent(
+        consumerLeaseName(groupId, topic), (k, c) -> c.unsubscribe(subscriber) ? c : null);
   }
 
   @Override
   public void replayAllEvents(String topic) {
-    consumers.stream()
+    consumers.values().stream()
         .filter(subscriber -> topic.equals(subscriber.getStreamName()))
         .forEach(KinesisConsumer::resetOffset);
   }
 
+  @Override
+  public void replayEventsSince(String topic, Instant since) {
+    consumers.values().stream()
+        .filter(subscriber -> topic.equals(subscriber.getStreamName()))
+        .forEach(subscriber -> subscriber.resetOffset(since));
+  }
+
   @Override
   public Set<TopicSubscriberWithGroupId> topicSubscribersWithGroupId() {
-    return consumers.stream()
-        .map(
-            s ->
-                TopicSubscriberWithGroupId.topicSubscriberWithGroupId(
-                    s.getGroupId(),
-                    TopicSubscriber.topicSubscriber(s.getStreamName(), s.getMessageProcessor())))
+    return consumers.values().stream()
+        .flatMap(
+            c ->
+                c.getMessageProcessors().stream()
+                    .map(
+                        p ->
+                            TopicSubscriberWithGroupId.topicSubscriberWithGroupId(
+                                c.getGroupId(),
+                                TopicSubscriber.topicSubscriber(c.getStreamName(), p))))
         .collect(Collectors.toSet());
   }
 
+  /**
+   * Subscribers of the same stream within the same consumer group share a single consumer, named
+   * after their lease table, and receive every record it consumes.
+   */
   private void receive(
       String streamName, Consumer<Event> eventConsumer, @Nullable String maybeGroupId) {
     String groupId = Optional.ofNullable(maybeGroupId).orElse(configuration.getApplicationName());
-    KinesisConsumer consumer = consumerFactory.create(streamName, groupId, eventConsumer);
-    consumers.add(consumer);
-    consumer.subscribe();
+    consumers.compute(
+        consumerLeaseName(groupId, streamName),
+        (k, existing) -> {
+          KinesisConsumer consumer =
+              existing != null ? existing : consumerFactory.create(streamName, groupId);
+          consumer.subscribe(eventConsumer);
+          return consumer;
+        });
   }
 }
@@ -18,19 +18,29 @@ import com.google.common.flogger.FluentLogger;
 import com.google.gerrit.server.events.Event;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import software.amazon.kinesis.common.InitialPositionInStream;
+import software.amazon.kinesis.common.InitialPositionInStreamExtended;
 import software.amazon.kinesis.coordinator.Scheduler;
 
+/**
+ * Consumes a stream on behalf of all the subscribers of a consumer group, through a single
+ * scheduler, so that the stream is only retrieved, and its leases only renewed, once per node.
+ *
+ * <p>When {@code multiStreamConsumer} is enabled, the scheduler is shared with the other streams
+ * consumed by the group, see {@link MultiStreamSchedulers}.
+ */
 class KinesisConsumer {
   interface Factory {
     KinesisConsumer create(
-        @Assisted("streamName") String streamName,
-        @Assisted("groupId") String groupId,
-        Consumer<Event> messageProcessor);
+        @Assisted("streamName") String streamName, @Assisted("groupId") String groupId);
   }
 
   private static final FluentLogger logger = FluentLogger.forEnclosingClass();
@@ -38,13 +48,16 @@ class KinesisConsumer {
   private final CheckpointResetter checkpointResetter;
   private final Configuration configuration;
   private final ExecutorService executor;
+  private final MultiStreamSchedulers multiStreamSchedulers;
 
   private final String groupId;
   private Scheduler kinesisScheduler;
+  private boolean multiStreamRegistered;
 
-  private final java.util.function.Consumer<Event> messageProcessor;
+  private final StreamSubscribers subscribers = new StreamSubscribers();
   private final String streamName;
-  private AtomicBoolean resetOffset = new AtomicBoolean(false);
+  private final AtomicReference<InitialPositionInStreamExtended> replayPosition =
+      new AtomicReference<>();
 
   @Inject
   public KinesisConsumer(
@@ -52,32 +65,80 @@ class KinesisConsumer {
       CheckpointResetter checkpointResetter,
       Configuration configuration,
       @ConsumerExecutor ExecutorService executor,
+      MultiStreamSchedulers multiStreamSchedulers,
       @Assisted("streamName") String streamName,
-      @Assisted("groupId") String groupId,
-      @Assisted java.util.function.Consumer<Event> messageProcessor) {
+      @Assisted("groupId") String groupId) {
     this.schedulerFactory = schedulerFactory;
     this.checkpointResetter = checkpointResetter;
     this.configuration = configuration;
     this.executor = executor;
+    this.multiStreamSchedulers = multiStreamSchedulers;
     this.groupId = groupId;
     this.streamName = streamName;
-    this.messageProcessor = messageProcessor;
   }
 
-  public void subscribe() {
-    logger.atInfo().log("Subscribe kinesis consumer to stream [%s]", streamName);
-    runReceiver(groupId, messageProcessor);
+  /** Adds the subscriber, starting the consumption of the stream for the first one. */
+  public synchronized void subscribe(Consumer<Event> messageProcessor) {
+    subscribers.add(messageProcessor);
+    if (kinesisScheduler == null && !multiStreamRegistered) {
+      logger.atInfo().log("Subscribe kinesis consumer to stream [%s]", streamName);
+      runReceiver();
+    } else {
+      logger.atInfo().log(
+          "Add subscriber to the kinesis consumer of stream [%s] for group [%s]",
+          streamName, groupId);
+    }
+  }
+
+  /**
+   * Removes the subscriber, identified by the consumer passed to the broker, shutting down the
+   * consumption of the stream after the last one.
+   *
+   * @return whether subscribers are left
+   */
+  public synchronized boolean unsubscribe(Consumer<?> messageProcessor) {
+    if (subscribers.remove(messageProcessor) && subscribers.isEmpty()) {
+      stopReceiver();
+    }
+    return !subscribers.isEmpty();
   }
 
-  private void runReceiver(String groupId, java.util.function.Consumer<Event> messageProcessor) {
+  private void runReceiver() {
+    InitialPositionInStreamExtended initialPosition = replayPosition.getAndSet(null);
+    if (initialPosition == null) {
+      initialPosition =
+          InitialPositionInStreamExtended.newInitialPosition(configuration.getInitialPosition());
+    }
+    if (configuration.isMultiStreamConsumer()) {
+      multiStreamRegistered =
+          multiStreamSchedulers.register(streamName, groupId, initialPosition, subscribers);
+      if (multiStreamRegistered) {
+        return;
+      }
+      logger.atWarning().log(
+          "Falling back to a dedicated kinesis consumer for stream [%s]", streamName);
+    }
     this.kinesisScheduler =
         schedulerFactory
-            .create(streamName, groupId, resetOffset.getAndSet(false), messageProcessor)
+            .create(streamName, groupId, initialPosition, subscribers)
             .get();
     executor.execute(kinesisScheduler);
   }
 
-  public void shutdown() {
+  public synchronized void shutdown() {
+    stopReceiver();
+  }
+
+  /** @return whether the stream was being consumed */
+  private boolean stopReceiver() {
+    if (multiStreamRegistered) {
+      multiStreamSchedulers.unregister(streamName, groupId);
+      multiStreamRegistered = false;
+      return true;
+    }
+    if (kinesisScheduler == null) {
+      return false;
+    }
     Future<Boolean> gracefulShutdownFuture = kinesisScheduler.startGracefulShutdown();
     logger.atInfo().log(
         "Waiting up to '%s' milliseconds to complete shutdown of kinesis consumer of stream '%s'",
@@ -89,10 +150,12 @@ class KinesisConsumer {
           "Error caught when shutting down kinesis consumer for stream %s", getStreamName());
     }
     logger.atInfo().log("Shutdown kinesis consumer of stream %s completed.", getStreamName());
+    kinesisScheduler = null;
+    return true;
   }
 
-  public java.util.function.Consumer<Event> getMessageProcessor() {
-    return messageProcessor;
+  public List<Consumer<Event>> getMessageProcessors() {
+    return subscribers.consumers();
   }
 
   public String getStreamName() {
@@ -103,14 +166,42 @@ class KinesisConsumer {
     return groupId;
   }
 
+  /** Replays all the events retained by the stream. */
   public void resetOffset() {
     // Move all checkpoints (if any) to TRIM_HORIZON, so that the consumer
     // scheduler will start consuming from beginning.
-    checkpointResetter.setAllShardsToBeginning(streamName, groupId);
-
+    //
     // Even when no checkpoints have been persisted, instruct the consumer
     // scheduler to start from TRIM_HORIZON, irrespective of 'initialPosition'
     // configuration.
-    resetOffset.set(true);
+    replay(
+        InitialPositionInStreamExtended.newInitialPosition(InitialPositionInStream.TRIM_HORIZON),
+        () -> checkpointResetter.setAllShardsToBeginning(streamName, groupId));
+  }
+
+  /**
+   * Replays the events added to the stream since the timestamp, rather than all the events retained
+   * by the stream.
+   */
+  public void resetOffset(Instant since) {
+    // AT_TIMESTAMP checkpoints carry no timestamp: the consumer scheduler
+    // reads it from the initial position it is started with.
+    replay(
+        InitialPositionInStreamExtended.newInitialPositionAtTimestamp(Date.from(since)),
+        () -> checkpointResetter.setAllShardsToTimestamp(streamName, groupId));
+  }
+
+  /**
+   * Stops consuming the stream while its checkpoints are reset, so that the checkpoints of the
+   * records being processed do not overwrite the reset ones, then resumes from the position.
+   */
+  private synchronized void replay(
+      InitialPositionInStreamExtended position, Runnable resetCheckpoints) {
+    boolean running = stopReceiver();
+    resetCheckpoints.run();
+    replayPosition.set(position);
+    if (running) {
+      runReceiver();
+    }
   }
 }
@@ -39,12 +39,19 @@ public class KinesisProducerProvider implements Provider<KinesisProducer> {
   public KinesisProducer get() {
     KinesisProducerConfiguration conf =
         new KinesisProducerConfiguration()
-            .setAggregationEnabled(false)
+            .setAggregationEnabled(configuration.isAggregationEnabled())
+            .setAggregationMaxCount(configuration.getAggregationMaxCount())
+            .setAggregationMaxSize(configuration.getAggregationMaxSize())
             .setMaxConnections(1)
             .setRequestTimeout(configuration.getPublishSingleRequestTimeoutMs())
             .setRecordMaxBufferedTime(configuration.getPublishRecordMaxBufferedTimeMs());
 
     conf.setRegion(configuration.getRegion().orElseGet(regionProvider::getRegion).toString());
+    // Metrics are still computed, and reported by KplMetrics, when not uploaded to CloudWatch
+    conf.setMetricsLevel(
+        configuration.getAwsMetricsPublisher() == AwsMetricsPublisher.CLOUDWATCH
+            ? configuration.getAwsMetricsLevel().name().toLowerCase()
+            : "none");
 
     configuration
         .getAwsConfigurationProfileName()
@@ -59,8 +66,13 @@ public class KinesisProducerProvider implements Provider<KinesisProducer> {
                     .setCloudwatchPort(uri.getPort())
                     .setVerifyCertificate(false));
     logger.atInfo().log(
-        "Kinesis producer configured. Request Timeout (ms):'%s'%s%s%s",
+        "Kinesis producer configured. Request Timeout (ms):'%s'|aggregation: %s%s%s%s",
         configuration.getPublishSingleRequestTimeoutMs(),
+        conf.isAggregationEnabled()
+            ? String.format(
+                "'enabled' (max count: %s, max size: %s)",
+                conf.getAggregationMaxCount(), conf.getAggregationMaxSize())
+            : "'disabled'",
         String.format("|region: '%s'", conf.getRegion()),
         configuration
             .getEndpoint()
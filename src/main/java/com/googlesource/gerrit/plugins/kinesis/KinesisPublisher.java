@@ -14,17 +14,18 @@
 
 package com.googlesource.gerrit.plugins.kinesis;
 
-import com.amazonaws.services.kinesis.producer.KinesisProducer;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+
+import com.amazonaws.services.kinesis.producer.UserRecordFailedException;
 import com.amazonaws.services.kinesis.producer.UserRecordResult;
 import com.google.common.flogger.FluentLogger;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.gerrit.common.Nullable;
 import com.google.gerrit.server.events.Event;
-import com.google.gerrit.server.events.EventGson;
 import com.google.gerrit.server.events.EventListener;
-import com.google.gson.Gson;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import java.nio.ByteBuffer;
@@ -38,22 +39,39 @@ import java.util.concurrent.TimeoutException;
 class KinesisPublisher implements EventListener {
   private static final FluentLogger logger = FluentLogger.forEnclosingClass();
 
-  private final KinesisProducer kinesisProducer;
+  private final RecordProducer recordProducer;
   private final Configuration configuration;
   private final ExecutorService callBackExecutor;
-
-  private final Gson gson;
+  private final EventPartitioners partitioners;
+  private final EventSerializer eventSerializer;
+  private final RecordEncoder recordEncoder;
+  private final InFlightLimiter inFlightLimiter;
+  private final EventSpool eventSpool;
+  private final GroupCommitter groupCommitter;
+  private final ProducerMetrics producerMetrics;
 
   @Inject
   public KinesisPublisher(
-      @EventGson Gson gson,
-      KinesisProducer kinesisProducer,
+      RecordProducer recordProducer,
       Configuration configuration,
-      @ProducerCallbackExecutor ExecutorService callBackExecutor) {
-    this.gson = gson;
-    this.kinesisProducer = kinesisProducer;
+      @ProducerCallbackExecutor ExecutorService callBackExecutor,
+      EventPartitioners partitioners,
+      EventSerializer eventSerializer,
+      RecordEncoder recordEncoder,
+      InFlightLimiter inFlightLimiter,
+      EventSpool eventSpool,
+      GroupCommitter groupCommitter,
+      ProducerMetrics producerMetrics) {
+    this.recordProducer = recordProducer;
     this.configuration = configuration;
     this.callBackExecutor = callBackExecutor;
+    this.partitioners = partitioners;
+    this.eventSerializer = eventSerializer;
+    this.recordEncoder = recordEncoder;
+    this.inFlightLimiter = inFlightLimiter;
+    this.eventSpool = eventSpool;
+    this.groupCommitter = groupCommitter;
+    this.producerMetrics = producerMetrics;
   }
 
   @Override
@@ -62,25 +80,31 @@ class KinesisPublisher implements EventListener {
   }
 
   ListenableFuture<Boolean> publish(String streamName, Event event) {
+    String partitionKey = partitioners.partitionKey(streamName, event);
     if (configuration.isSendAsync()) {
-      return publishAsync(streamName, gson.toJson(event), event.getType());
+      return publishAsync(streamName, event, partitionKey);
     }
-    return publishSync(streamName, gson.toJson(event), event.getType());
+    return publishSync(streamName, event, partitionKey);
   }
 
   private ListenableFuture<Boolean> publishSync(
-      String streamName, String stringEvent, String partitionKey) {
+      String streamName, Event event, String partitionKey) {
     SettableFuture<Boolean> resultFuture = SettableFuture.create();
     try {
-      resultFuture.set(
-          publishAsync(streamName, stringEvent, partitionKey)
-              .get(configuration.getPublishTimeoutMs(), TimeUnit.MILLISECONDS));
+      ListenableFuture<Boolean> publishF = publishAsync(streamName, event, partitionKey);
+      if (groupCommitter.isEnabled()) {
+        groupCommitter.join(streamName);
+      }
+      resultFuture.set(publishF.get(configuration.getPublishTimeoutMs(), TimeUnit.MILLISECONDS));
     } catch (CancellationException
         | ExecutionException
         | InterruptedException
         | TimeoutException futureException) {
+      if (futureException instanceof TimeoutException) {
+        producerMetrics.recordTimeout(streamName);
+      }
       logger.atSevere().withCause(futureException).log(
-          "KINESIS PRODUCER - Failed publishing event %s [PK: %s]", stringEvent, partitionKey);
+          "KINESIS PRODUCER - Failed publishing event %s [PK: %s]", event.getType(), partitionKey);
       resultFuture.set(false);
     }
 
@@ -88,20 +112,58 @@ class KinesisPublisher implements EventListener {
   }
 
   private ListenableFuture<Boolean> publishAsync(
-      String streamName, String stringEvent, String partitionKey) {
+      String streamName, Event event, String partitionKey) {
+    String eventType = event.getType();
     try {
-      ListenableFuture<UserRecordResult> publishF =
-          kinesisProducer.addUserRecord(
-              streamName, partitionKey, ByteBuffer.wrap(stringEvent.getBytes()));
+      ListenableFuture<UserRecordResult> publishF;
+      int recordSize;
+      long startNanos;
+      byte[] spoolableData;
+      try (PooledRecord record = recordEncoder.encode(eventSerializer.serialize(event))) {
+        recordSize = record.size();
+        if (!inFlightLimiter.acquire(streamName, recordSize)) {
+          if (inFlightLimiter.policy() == BackpressurePolicy.SPOOL) {
+            if (eventSpool.append(streamName, partitionKey, record.data())) {
+              return Futures.immediateFuture(true);
+            }
+            inFlightLimiter.dropped(streamName);
+          }
+          logger.atWarning().atMostEvery(1, TimeUnit.MINUTES).log(
+              "KINESIS PRODUCER - Too many records in flight, dropped event %s [PK: %s]",
+              eventType, partitionKey);
+          return Futures.immediateFuture(false);
+        }
+
+        // The producer copies the record data before returning, hence the
+        // buffer can go back to the pool straight away. When the spool is
+        // enabled, a copy of the encoded record is kept until it is published,
+        // to spool it as it is if publishing fails.
+        spoolableData = eventSpool.isEnabled() ? copyOf(record.data()) : null;
+        startNanos = System.nanoTime();
+        try {
+          publishF = recordProducer.addUserRecord(streamName, partitionKey, record.data());
+        } catch (RuntimeException e) {
+          inFlightLimiter.release(recordSize);
+          throw e;
+        }
+        publishF.addListener(() -> inFlightLimiter.release(recordSize), directExecutor());
+      }
 
+      // Only what is needed for metrics and logging is captured, so that the
+      // event is not kept alive until the record is published.
       Futures.addCallback(
           publishF,
           new FutureCallback<UserRecordResult>() {
             @Override
             public void onSuccess(UserRecordResult result) {
+              producerMetrics.recordSuccess(
+                  streamName,
+                  System.nanoTime() - startNanos,
+                  result.getAttempts().size(),
+                  recordSize);
               logger.atFine().log(
                   "KINESIS PRODUCER - Successfully published event '%s' to shardId '%s' [PK: %s] [Sequence: %s] after %s attempt(s)",
-                  stringEvent,
+                  eventType,
                   result.getShardId(),
                   partitionKey,
                   result.getSequenceNumber(),
@@ -110,19 +172,71 @@ class KinesisPublisher implements EventListener {
 
             @Override
             public void onFailure(Throwable e) {
+              producerMetrics.recordFailure(
+                  streamName,
+                  System.nanoTime() - startNanos,
+                  e instanceof UserRecordFailedException
+                      ? ((UserRecordFailedException) e).getResult().getAttempts().size()
+                      : 0);
               logger.atSevere().withCause(e).log(
                   "KINESIS PRODUCER - Failed publishing event %s [PK: %s]",
-                  stringEvent, partitionKey);
+                  eventType, partitionKey);
             }
           },
           callBackExecutor);
 
-      return Futures.transform(
-          publishF, res -> res != null && res.isSuccessful(), callBackExecutor);
+      return spoolOnFailure(
+          Futures.transform(publishF, res -> res != null && res.isSuccessful(), callBackExecutor),
+          streamName,
+          eventType,
+          partitionKey,
+          spoolableData);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      logger.atSevere().withCause(e).log(
+          "KINESIS PRODUCER - Interrupted when publishing event %s [PK: %s]",
+          eventType, partitionKey);
+      return Futures.immediateFailedFuture(e);
     } catch (Exception e) {
       logger.atSevere().withCause(e).log(
-          "KINESIS PRODUCER - Error when publishing event %s [PK: %s]", stringEvent, partitionKey);
+          "KINESIS PRODUCER - Error when publishing event %s [PK: %s]", eventType, partitionKey);
       return Futures.immediateFailedFuture(e);
     }
   }
+
+  /**
+   * Stores in the spool the records the producer failed to publish, so that they are published
+   * again later. Spooled records are reported as published, since they will be: the failure is
+   * only visible in the logs and in the spool metrics.
+   */
+  private ListenableFuture<Boolean> spoolOnFailure(
+      ListenableFuture<Boolean> publishF,
+      String streamName,
+      String eventType,
+      String partitionKey,
+      @Nullable byte[] data) {
+    if (data == null) {
+      return publishF;
+    }
+    return Futures.transform(
+        Futures.catching(publishF, Exception.class, e -> false, directExecutor()),
+        published -> published || spool(streamName, eventType, partitionKey, data),
+        callBackExecutor);
+  }
+
+  private boolean spool(String streamName, String eventType, String partitionKey, byte[] data) {
+    if (eventSpool.append(streamName, partitionKey, ByteBuffer.wrap(data))) {
+      logger.atWarning().atMostEvery(1, TimeUnit.MINUTES).log(
+          "KINESIS PRODUCER - Spooled event %s [PK: %s], it will be published again later",
+          eventType, partitionKey);
+      return true;
+    }
+    return false;
+  }
+
+  private static byte[] copyOf(ByteBuffer data) {
+    byte[] copy = new byte[data.remaining()];
+    data.duplicate().get(copy);
+    return copy;
+  }
 }
@@ -14,17 +14,25 @@
 
 package com.googlesource.gerrit.plugins.kinesis;
 
-import com.gerritforge.gerrit.eventbroker.EventDeserializer;
 import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.server.config.GerritInstanceId;
 import com.google.gerrit.server.events.Event;
 import com.google.gerrit.server.util.ManualRequestContext;
 import com.google.gerrit.server.util.OneOffRequestContext;
 import com.google.inject.Inject;
+import com.google.inject.Provider;
 import com.google.inject.assistedinject.Assisted;
-import java.util.function.Consumer;
-import software.amazon.kinesis.exceptions.InvalidStateException;
-import software.amazon.kinesis.exceptions.ShutdownException;
-import software.amazon.kinesis.exceptions.ThrottlingException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 import software.amazon.kinesis.lifecycle.events.InitializationInput;
 import software.amazon.kinesis.lifecycle.events.LeaseLostInput;
 import software.amazon.kinesis.lifecycle.events.ProcessRecordsInput;
@@ -32,106 +40,513 @@ import software.amazon.kinesis.lifecycle.events.ShardEndedInput;
 import software.amazon.kinesis.lifecycle.events.ShutdownRequestedInput;
 import software.amazon.kinesis.processor.RecordProcessorCheckpointer;
 import software.amazon.kinesis.processor.ShardRecordProcessor;
+import software.amazon.kinesis.retrieval.AggregatorUtil;
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+import software.amazon.kinesis.retrieval.kpl.ExtendedSequenceNumber;
 
 class KinesisRecordProcessor implements ShardRecordProcessor {
   interface Factory {
-    KinesisRecordProcessor create(Consumer<Event> recordProcessor);
+    KinesisRecordProcessor create(
+        @Assisted("streamName") String streamName,
+        @Assisted("groupId") String groupId,
+        StreamSubscribers subscribers);
   }
 
   private static final FluentLogger logger = FluentLogger.forEnclosingClass();
-  private final Consumer<Event> recordProcessor;
+  private static final AggregatorUtil AGGREGATOR_UTIL = new AggregatorUtil();
+  private static final int MAX_LOGGED_ERROR_LENGTH = 256;
+
+  private final String streamName;
+  private final String groupId;
+  private final String leaseName;
+  private final StreamSubscribers subscribers;
   private final OneOffRequestContext oneOffCtx;
-  private final EventDeserializer eventDeserializer;
   private final Configuration configuration;
+  private final RecordDecoder recordDecoder;
+  private final KeyOrderedDispatcher dispatcher;
+  private final byte[] selfOrigin;
+  private final ConsumerMetrics consumerMetrics;
+  private final CheckpointWriter checkpointWriter;
+  private final ProcessingRetryPolicy retryPolicy;
+  private final DeadLetterPublisher deadLetterPublisher;
+  private final RecordDeduplicator deduplicator;
 
-  private long nextCheckpointTimeInMillis;
+  private CheckpointPolicy checkpointPolicy;
   private String kinesisShardId;
+  // The shard as reported in the metrics: consumer groups of the same stream report their own
+  private String shard;
+  private ExtendedSequenceNumber lastProcessed;
+  private volatile ExtendedSequenceNumber lastCheckpoint;
+  private CompletableFuture<Boolean> pendingCheckpoint = CompletableFuture.completedFuture(true);
 
   @Inject
   KinesisRecordProcessor(
-      @Assisted Consumer<Event> recordProcessor,
+      @Assisted("streamName") String streamName,
+      @Assisted("groupId") String groupId,
+      @Assisted StreamSubscribers subscribers,
       OneOffRequestContext oneOffCtx,
-      EventDeserializer eventDeserializer,
-      Configuration configuration) {
-    this.recordProcessor = recordProcessor;
+      Configuration configuration,
+      RecordDecoder recordDecoder,
+      @ProcessingExecutor Provider<ExecutorService> processingExecutor,
+      @Nullable @GerritInstanceId String instanceId,
+      ConsumerMetrics consumerMetrics,
+      CheckpointWriter checkpointWriter,
+      DeadLetterPublisher deadLetterPublisher,
+      RecordDeduplicator deduplicator) {
+    this.streamName = streamName;
+    this.groupId = groupId;
+    this.leaseName = Configuration.consumerLeaseName(groupId, streamName);
+    this.subscribers = subscribers;
+    this.shard = groupId + "/" + streamName;
     this.oneOffCtx = oneOffCtx;
-    this.eventDeserializer = eventDeserializer;
     this.configuration = configuration;
+    this.recordDecoder = recordDecoder;
+    this.selfOrigin =
+        configuration.isSkipSelfOriginatedRecords() ? RecordHeader.origin(instanceId) : null;
+    this.consumerMetrics = consumerMetrics;
+    this.checkpointWriter = checkpointWriter;
+    this.retryPolicy = new ProcessingRetryPolicy(configuration);
+    this.deadLetterPublisher = deadLetterPublisher;
+    this.deduplicator = deduplicator;
+    this.checkpointPolicy = new CheckpointPolicy(configuration);
+    this.dispatcher =
+        configuration.getProcessingThreads() > 0
+            ? new KeyOrderedDispatcher(
+                processingExecutor.get(), configuration.getProcessingMaxInFlightRecords())
+            : null;
   }
 
   @Override
   public void initialize(InitializationInput initializationInput) {
     kinesisShardId = initializationInput.shardId();
+    shard = groupId + "/" + streamName + "/" + kinesisShardId;
     logger.atInfo().log(
         "Initializing @ Sequence: %s", initializationInput.extendedSequenceNumber());
-    setNextCheckpointTime();
+    checkpointPolicy = new CheckpointPolicy(configuration);
   }
 
   @Override
   public void processRecords(ProcessRecordsInput processRecordsInput) {
     try {
       logger.atFiner().log("Processing %s record(s)", processRecordsInput.records().size());
-      processRecordsInput
-          .records()
-          .forEach(
-              consumerRecord -> {
-                logger.atFiner().log(
-                    "GERRIT > Processing record pk: %s -- %s",
-                    consumerRecord.partitionKey(), consumerRecord.sequenceNumber());
-                byte[] byteRecord = new byte[consumerRecord.data().remaining()];
-                consumerRecord.data().get(byteRecord);
-                String jsonMessage = new String(byteRecord);
-                logger.atFiner().log("Kinesis consumed event: '%s'", jsonMessage);
-                try (ManualRequestContext ctx = oneOffCtx.open()) {
-                  Event eventMessage = eventDeserializer.deserialize(jsonMessage);
-                  recordProcessor.accept(eventMessage);
-                } catch (Exception e) {
-                  logger.atSevere().withCause(e).log("Could not process event '%s'", jsonMessage);
-                }
-              });
-
-      if (System.currentTimeMillis() >= nextCheckpointTimeInMillis) {
-        checkpoint(processRecordsInput.checkpointer());
-        setNextCheckpointTime();
+      List<KinesisClientRecord> records = deaggregate(processRecordsInput);
+      long bytes = sizeOf(records);
+      checkpointPolicy.consumed(records.size(), bytes, System.currentTimeMillis());
+      consumerMetrics.recordConsumed(
+          shard, records.size(), bytes, processRecordsInput.millisBehindLatest());
+      if (dispatcher != null && !subscribers.hasBatchSubscribers()) {
+        for (KinesisClientRecord consumerRecord : records) {
+          dispatcher.dispatch(
+              consumerRecord.partitionKey(),
+              sequenceNumberOf(consumerRecord),
+              () -> processRecord(consumerRecord));
+        }
+      } else {
+        if (dispatcher != null) {
+          logger.atWarning().atMostEvery(10, TimeUnit.MINUTES).log(
+              "Stream %s has batch subscribers: its records are processed in the thread retrieving"
+                  + " them, rather than by the processing threads",
+              streamName);
+          // Records dispatched before a batch subscriber joined go first, to keep the shard order
+          awaitProcessed();
+        }
+        if (subscribers.hasBatchSubscribers()) {
+          processBatch(records);
+        } else {
+          records.forEach(this::processRecord);
+        }
+        if (!records.isEmpty()) {
+          lastProcessed = sequenceNumberOf(records.get(records.size() - 1));
+        }
+      }
+
+      long now = System.currentTimeMillis();
+      if (checkpointPolicy.isDue(now)) {
+        checkpointProcessedAsync(processRecordsInput.checkpointer(), now);
       }
+    } catch (InterruptedException e) {
+      logger.atWarning().log("Interrupted while dispatching records of shard %s", kinesisShardId);
+      Thread.currentThread().interrupt();
     } catch (Throwable t) {
       logger.atSevere().withCause(t).log("Caught throwable while processing records. Aborting.");
     }
   }
 
-  private void setNextCheckpointTime() {
-    nextCheckpointTimeInMillis =
-        System.currentTimeMillis() + configuration.getCheckpointIntervalMs();
+  private void processBatch(List<KinesisClientRecord> records) {
+    EventTypeMatcher acceptedTypes = subscribers.acceptedTypes();
+    List<KinesisClientRecord> delivered = new ArrayList<>(records.size());
+    long[] fingerprints = new long[records.size()];
+    List<Event> events = new ArrayList<>(records.size());
+    for (KinesisClientRecord consumerRecord : records) {
+      if (isSelfOriginated(consumerRecord)) {
+        continue;
+      }
+      long fingerprint = fingerprint(consumerRecord);
+      if (isDuplicate(consumerRecord, fingerprint)) {
+        continue;
+      }
+      try {
+        Optional<Event> event = recordDecoder.decode(consumerRecord.data(), acceptedTypes);
+        if (event.isPresent()) {
+          fingerprints[delivered.size()] = fingerprint;
+          delivered.add(consumerRecord);
+          events.add(event.get());
+        }
+      } catch (Exception e) {
+        failed(consumerRecord, 1, e);
+      }
+    }
+    if (events.isEmpty()) {
+      return;
+    }
+
+    logger.atFiner().log("Kinesis consumed batch of %d event(s)", events.size());
+    DeliveryFailure[] failures = new DeliveryFailure[events.size()];
+    for (StreamSubscribers.Subscriber subscriber : subscribers.subscribers()) {
+      if (subscriber.isBatch()) {
+        List<Integer> accepted = new ArrayList<>(events.size());
+        for (int i = 0; i < events.size(); i++) {
+          if (subscriber.accepts(events.get(i))) {
+            accepted.add(i);
+          }
+        }
+        if (accepted.isEmpty()) {
+          continue;
+        }
+        List<Event> batch =
+            accepted.size() == events.size()
+                ? events
+                : accepted.stream().map(events::get).collect(Collectors.toList());
+        DeliveryFailure failure = deliver(() -> subscriber.acceptBatch(batch));
+        if (failure != null) {
+          accepted.forEach(i -> failures[i] = failure);
+        }
+      } else {
+        for (int i = 0; i < events.size(); i++) {
+          Event event = events.get(i);
+          if (subscriber.accepts(event)) {
+            DeliveryFailure failure = deliver(() -> subscriber.accept(event));
+            if (failure != null) {
+              failures[i] = failure;
+            }
+          }
+        }
+      }
+    }
+
+    for (int i = 0; i < delivered.size(); i++) {
+      if (failures[i] != null) {
+        failed(delivered.get(i), failures[i].attempts, failures[i].error);
+      } else {
+        processed(delivered.get(i), fingerprints[i]);
+      }
+    }
+  }
+
+  private void processRecord(KinesisClientRecord consumerRecord) {
+    logger.atFiner().log(
+        "GERRIT > Processing record pk: %s -- %s/%s",
+        consumerRecord.partitionKey(),
+        consumerRecord.sequenceNumber(),
+        consumerRecord.subSequenceNumber());
+    if (isSelfOriginated(consumerRecord)) {
+      return;
+    }
+    long fingerprint = fingerprint(consumerRecord);
+    if (isDuplicate(consumerRecord, fingerprint)) {
+      return;
+    }
+    Optional<Event> maybeEvent;
+    try {
+      maybeEvent = recordDecoder.decode(consumerRecord.data(), subscribers.acceptedTypes());
+    } catch (Exception e) {
+      // Records that cannot be decoded never will, hence are not retried
+      failed(consumerRecord, 1, e);
+      return;
+    }
+    if (!maybeEvent.isPresent()) {
+      logger.atFinest().log("Skipping record %s of unwanted type", consumerRecord.sequenceNumber());
+      return;
+    }
+
+    Event eventMessage = maybeEvent.get();
+    logger.atFiner().log(
+        "Kinesis consumed event: '%s' [instanceId: %s]",
+        eventMessage.getType(), eventMessage.instanceId);
+    DeliveryFailure failure = null;
+    for (StreamSubscribers.Subscriber subscriber : subscribers.subscribers()) {
+      if (subscriber.accepts(eventMessage)) {
+        DeliveryFailure subscriberFailure = deliver(() -> subscriber.accept(eventMessage));
+        if (subscriberFailure != null) {
+          failure = subscriberFailure;
+        }
+      }
+    }
+    if (failure != null) {
+      failed(consumerRecord, failure.attempts, failure.error);
+    } else {
+      processed(consumerRecord, fingerprint);
+    }
+  }
+
+  private void processed(KinesisClientRecord consumerRecord, long fingerprint) {
+    if (deduplicator.isEnabled()) {
+      deduplicator.processed(fingerprint);
+    }
+    Instant arrival = consumerRecord.approximateArrivalTimestamp();
+    if (arrival != null) {
+      consumerMetrics.recordProcessed(shard, System.currentTimeMillis() - arrival.toEpochMilli());
+    }
+  }
+
+  private long fingerprint(KinesisClientRecord consumerRecord) {
+    return deduplicator.isEnabled()
+        ? deduplicator.fingerprint(leaseName, kinesisShardId, consumerRecord)
+        : 0L;
+  }
+
+  private boolean isDuplicate(KinesisClientRecord consumerRecord, long fingerprint) {
+    if (deduplicator.isEnabled() && deduplicator.isDuplicate(fingerprint)) {
+      logger.atFine().log(
+          "Skipping record %s [PK: %s] already processed",
+          consumerRecord.sequenceNumber(), consumerRecord.partitionKey());
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Delivers events to a subscriber within a request context, retrying as per the {@link
+   * ProcessingRetryPolicy} when it fails. Each subscriber is retried on its own, so that the other
+   * subscribers of the stream do not receive the events twice.
+   *
+   * @return null when the events have been delivered, the failure of the last attempt otherwise
+   */
+  @Nullable
+  private DeliveryFailure deliver(Runnable delivery) {
+    for (int attempt = 1; ; attempt++) {
+      long startNanos = System.nanoTime();
+      try (ManualRequestContext ctx = oneOffCtx.open()) {
+        delivery.run();
+        consumerMetrics.recordProcessing(shard, System.nanoTime() - startNanos);
+        return null;
+      } catch (Exception e) {
+        consumerMetrics.recordProcessing(shard, System.nanoTime() - startNanos);
+        if (!retryPolicy.shouldRetry(attempt) || !backOff(attempt)) {
+          return new DeliveryFailure(attempt, e);
+        }
+        consumerMetrics.recordProcessingRetry();
+        logger.atWarning().log(
+            "Retrying the processing of events of shard %s after attempt %d failed: %s",
+            kinesisShardId, attempt, describe(e));
+      }
+    }
+  }
+
+  private boolean backOff(int attempt) {
+    try {
+      Thread.sleep(retryPolicy.backoffMs(attempt));
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Publishes the record to the dead-letter stream, when configured. Only a summary of the error is
+   * logged, since the messages of parsing errors may include large parts of the payload.
+   */
+  private void failed(KinesisClientRecord consumerRecord, int attempts, Exception error) {
+    consumerMetrics.recordProcessingFailure();
+    boolean deadLettered =
+        deadLetterPublisher.publish(streamName, kinesisShardId, consumerRecord, attempts, error);
+    if (deadLettered) {
+      consumerMetrics.recordDeadLettered();
+    }
+    logger.atSevere().log(
+        "Could not process record %s [PK: %s] after %d attempt(s)%s: %s",
+        consumerRecord.sequenceNumber(),
+        consumerRecord.partitionKey(),
+        attempts,
+        deadLettered ? ", published to the dead-letter stream" : "",
+        describe(error));
+    logger.atFine().withCause(error).log(
+        "Processing failure of record %s", consumerRecord.sequenceNumber());
+  }
+
+  private static String describe(Throwable error) {
+    String message = String.valueOf(error.getMessage());
+    if (message.length() > MAX_LOGGED_ERROR_LENGTH) {
+      message = message.substring(0, MAX_LOGGED_ERROR_LENGTH) + "...";
+    }
+    return error.getClass().getName() + ": " + message;
+  }
+
+  /**
+   * Records published by this node are dropped before being decoded, since subscribers such as
+   * multi-site ignore the events of their own node anyway.
+   */
+  private boolean isSelfOriginated(KinesisClientRecord consumerRecord) {
+    if (selfOrigin == null || !RecordHeader.isFrom(consumerRecord.data(), selfOrigin)) {
+      return false;
+    }
+    logger.atFinest().log("Dropping self-originated record %s", consumerRecord.sequenceNumber());
+    consumerMetrics.recordSelfOriginatedDropped();
+    return true;
+  }
+
+  /**
+   * Producers may publish KPL aggregated records, when aggregation is enabled. The KCL retrieval
+   * normally unpacks them before handing them over to the processor, however records are passed
+   * through the aggregator again so that each user record is always processed on its own. Records
+   * that are not aggregated are returned as they are.
+   */
+  private static List<KinesisClientRecord> deaggregate(ProcessRecordsInput processRecordsInput) {
+    List<KinesisClientRecord> records = processRecordsInput.records();
+    if (records.isEmpty()) {
+      return records;
+    }
+    return AGGREGATOR_UTIL.deaggregate(records);
+  }
+
+  private static long sizeOf(List<KinesisClientRecord> records) {
+    long size = 0;
+    for (KinesisClientRecord record : records) {
+      size += record.data().remaining();
+    }
+    return size;
+  }
+
+  private static ExtendedSequenceNumber sequenceNumberOf(KinesisClientRecord consumerRecord) {
+    return new ExtendedSequenceNumber(
+        consumerRecord.sequenceNumber(), consumerRecord.subSequenceNumber());
   }
 
   @Override
   public void leaseLost(LeaseLostInput leaseLostInput) {
     logger.atInfo().log("Lost lease, so terminating.");
+    consumerMetrics.recordShardReleased(shard);
+    // The records being processed cannot be checkpointed anymore, but they are still delivered
+    // before the new lease holder starts from the last checkpoint, as far as the timeout allows.
+    awaitProcessed();
   }
 
   @Override
   public void shardEnded(ShardEndedInput shardEndedInput) {
     logger.atInfo().log("Reached shard end checkpointing.");
-    checkpoint(shardEndedInput.checkpointer());
+    consumerMetrics.recordShardReleased(shard);
+    // The shard end can only be checkpointed once all its records have been processed, otherwise
+    // the KCL retries later.
+    if (awaitProcessed()) {
+      awaitPendingCheckpoint();
+      RecordProcessorCheckpointer checkpointer = shardEndedInput.checkpointer();
+      checkpointWriter.write(kinesisShardId, checkpointer::checkpoint);
+    }
   }
 
   @Override
   public void shutdownRequested(ShutdownRequestedInput shutdownRequestedInput) {
     logger.atInfo().log("Scheduler is shutting down, checkpointing.");
-    checkpoint(shutdownRequestedInput.checkpointer());
+    consumerMetrics.recordShardReleased(shard);
+    awaitProcessed();
+    awaitPendingCheckpoint();
+    Optional<ExtendedSequenceNumber> processed = processedUpTo();
+    if (processed.isPresent() && !processed.get().equals(lastCheckpoint)) {
+      checkpointWriter.write(
+          kinesisShardId, checkpointAt(shutdownRequestedInput.checkpointer(), processed.get()));
+    }
   }
 
-  private void checkpoint(RecordProcessorCheckpointer checkpointer) {
-    logger.atInfo().log("Checkpointing shard: %s", kinesisShardId);
+  private boolean awaitProcessed() {
+    if (dispatcher == null) {
+      return true;
+    }
+    try {
+      if (dispatcher.awaitCompletion(configuration.getShutdownTimeoutMs())) {
+        return true;
+      }
+      logger.atWarning().log(
+          "Records of shard %s still being processed after %s ms",
+          kinesisShardId, configuration.getShutdownTimeoutMs());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return false;
+  }
+
+  private void awaitPendingCheckpoint() {
     try {
-      checkpointer.checkpoint();
-    } catch (ShutdownException se) {
-      logger.atSevere().withCause(se).log("Caught shutdown exception, skipping checkpoint.");
-    } catch (ThrottlingException e) {
-      logger.atSevere().withCause(e).log("Caught throttling exception, skipping checkpoint.");
-    } catch (InvalidStateException e) {
-      logger.atSevere().withCause(e).log(
-          "Cannot save checkpoint to the DynamoDB table used by the Amazon Kinesis Client Library.");
+      pendingCheckpoint.get(configuration.getShutdownTimeoutMs(), TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException | TimeoutException e) {
+      logger.atWarning().withCause(e).log(
+          "Pending checkpoint of shard %s did not complete", kinesisShardId);
+    }
+  }
+
+  /**
+   * Records processed in parallel may complete out of order, hence the checkpoint only advances
+   * past records whose predecessors have all completed. Records of streams with batch subscribers
+   * are processed in the retrieving thread, in order, even when records are processed in parallel.
+   * Once a dispatched record is left unprocessed, the checkpoint never moves past it.
+   *
+   * @return the sequence number up to which all the records of the shard have been processed
+   */
+  private Optional<ExtendedSequenceNumber> processedUpTo() {
+    Optional<ExtendedSequenceNumber> dispatched =
+        dispatcher != null ? dispatcher.completedUpTo() : Optional.empty();
+    if (dispatcher != null && dispatcher.isFailed()) {
+      return dispatched;
+    }
+    if (lastProcessed == null
+        || (dispatched.isPresent() && dispatched.get().compareTo(lastProcessed) > 0)) {
+      return dispatched;
+    }
+    return Optional.of(lastProcessed);
+  }
+
+  /**
+   * Checkpoints the records processed so far in the background. While the previous checkpoint is
+   * still being written, the checkpoint is postponed to the next batch of records.
+   */
+  private void checkpointProcessedAsync(RecordProcessorCheckpointer checkpointer, long now) {
+    if (!pendingCheckpoint.isDone()) {
+      return;
+    }
+    checkpointPolicy.checkpointed(now);
+    Optional<ExtendedSequenceNumber> processed = processedUpTo();
+    if (!processed.isPresent() || processed.get().equals(lastCheckpoint)) {
+      return;
+    }
+    ExtendedSequenceNumber sequenceNumber = processed.get();
+    pendingCheckpoint =
+        checkpointWriter
+            .writeAsync(kinesisShardId, checkpointAt(checkpointer, sequenceNumber))
+            .thenApply(
+                written -> {
+                  if (written) {
+                    lastCheckpoint = sequenceNumber;
+                  }
+                  return written;
+                });
+  }
+
+  private static CheckpointWriter.Checkpoint checkpointAt(
+      RecordProcessorCheckpointer checkpointer, ExtendedSequenceNumber sequenceNumber) {
+    return () ->
+        checkpointer.checkpoint(
+            sequenceNumber.sequenceNumber(), sequenceNumber.subSequenceNumber());
+  }
+
+  private static class DeliveryFailure {
+    final int attempts;
+    final Exception error;
+
+    DeliveryFailure(int attempts, Exception error) {
+      this.attempts = attempts;
+      this.error = error;
     }
   }
 }
@@ -14,29 +14,37 @@
 
 package com.googlesource.gerrit.plugins.kinesis;
 
-import com.google.gerrit.server.events.Event;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
-import java.util.function.Consumer;
 import software.amazon.kinesis.processor.ShardRecordProcessor;
 import software.amazon.kinesis.processor.ShardRecordProcessorFactory;
 
 class KinesisRecordProcessorFactory implements ShardRecordProcessorFactory {
   interface Factory {
-    KinesisRecordProcessorFactory create(Consumer<Event> recordProcessor);
+    KinesisRecordProcessorFactory create(
+        @Assisted("streamName") String streamName,
+        @Assisted("groupId") String groupId,
+        StreamSubscribers subscribers);
   }
 
-  private final Consumer<Event> recordProcessor;
+  private final String streamName;
+  private final String groupId;
+  private final StreamSubscribers subscribers;
   private final KinesisRecordProcessor.Factory processorFactory;
 
   @Inject
   KinesisRecordProcessorFactory(
-      @Assisted Consumer<Event> recordProcessor, KinesisRecordProcessor.Factory processorFactory) {
-    this.recordProcessor = recordProcessor;
+      @Assisted("streamName") String streamName,
+      @Assisted("groupId") String groupId,
+      @Assisted StreamSubscribers subscribers,
+      KinesisRecordProcessor.Factory processorFactory) {
+    this.streamName = streamName;
+    this.groupId = groupId;
+    this.subscribers = subscribers;
     this.processorFactory = processorFactory;
   }
 
   public ShardRecordProcessor shardRecordProcessor() {
-    return processorFactory.create(recordProcessor);
+    return processorFactory.create(streamName, groupId, subscribers);
   }
 }
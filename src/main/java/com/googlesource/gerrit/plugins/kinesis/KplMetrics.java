@@ -0,0 +1,102 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.amazonaws.services.kinesis.producer.KinesisProducer;
+import com.amazonaws.services.kinesis.producer.Metric;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.metrics.CallbackMetric0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Reports the metrics of the Kinesis Producer Library as Gerrit metrics, prefixed by {@code
+ * publisher/kpl/}, instead of uploading them to CloudWatch.
+ *
+ * <p>Each metric is read from the producer when Gerrit metrics are reported, aggregated over all
+ * the streams and shards for the last minute: its sum for the metrics counting records or errors,
+ * its mean for the other ones.
+ */
+@Singleton
+class KplMetrics {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  private static final int WINDOW_SECS = 60;
+
+  private static final ToDoubleFunction<Metric> SUM = Metric::getSum;
+  private static final ToDoubleFunction<Metric> MEAN = Metric::getMean;
+
+  /** The metrics of the KPL, with the statistic reported for each. */
+  private static final ImmutableMap<String, ToDoubleFunction<Metric>> METRICS =
+      ImmutableMap.<String, ToDoubleFunction<Metric>>builder()
+          .put("UserRecordsReceived", SUM)
+          .put("UserRecordsPending", MEAN)
+          .put("UserRecordsPut", SUM)
+          .put("UserRecordsDataPut", SUM)
+          .put("KinesisRecordsPut", SUM)
+          .put("KinesisRecordsDataPut", SUM)
+          .put("ErrorsByCode", SUM)
+          .put("AllErrors", SUM)
+          .put("RetriesPerRecord", MEAN)
+          .put("BufferingTime", MEAN)
+          .put("Request Time", MEAN)
+          .put("User Records per Kinesis Record", MEAN)
+          .put("Amazon Kinesis Records per PutRecordsRequest", MEAN)
+          .put("User Records per PutRecordsRequest", MEAN)
+          .build();
+
+  @Inject
+  KplMetrics(MetricMaker metricMaker, Provider<KinesisProducer> producer) {
+    for (Map.Entry<String, ToDoubleFunction<Metric>> metric : METRICS.entrySet()) {
+      String name = metric.getKey();
+      CallbackMetric0<Double> callback =
+          metricMaker.newCallbackMetric(
+              "publisher/kpl/" + name.replaceAll("[^a-zA-Z0-9_-]", "_"),
+              Double.class,
+              new Description(
+                      String.format(
+                          "KPL metric %s, %s over the last minute",
+                          name, metric.getValue() == SUM ? "sum" : "mean"))
+                  .setGauge());
+      metricMaker.newTrigger(
+          callback, () -> callback.set(read(producer.get(), name, metric.getValue())));
+    }
+  }
+
+  /** @return the statistic of the metric aggregated over all streams and shards, 0 when unknown */
+  private static double read(
+      KinesisProducer producer, String name, ToDoubleFunction<Metric> statistic) {
+    try {
+      List<Metric> metrics = producer.getMetrics(name, WINDOW_SECS);
+      // The aggregate over all streams and shards only has the metric name as dimension
+      return metrics.stream()
+          .filter(m -> m.getDimensions().size() == 1)
+          .mapToDouble(statistic)
+          .findFirst()
+          .orElse(0);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      logger.atFine().withCause(e).log("Could not read KPL metric %s", name);
+    }
+    return 0;
+  }
+}
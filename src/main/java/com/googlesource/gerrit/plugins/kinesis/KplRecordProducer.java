@@ -0,0 +1,49 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.amazonaws.services.kinesis.producer.KinesisProducer;
+import com.amazonaws.services.kinesis.producer.UserRecordResult;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.nio.ByteBuffer;
+
+/** Publishes records through the Kinesis Producer Library. */
+@Singleton
+class KplRecordProducer implements RecordProducer {
+  private final KinesisProducer kinesisProducer;
+
+  @Inject
+  KplRecordProducer(KinesisProducer kinesisProducer) {
+    this.kinesisProducer = kinesisProducer;
+  }
+
+  @Override
+  public ListenableFuture<UserRecordResult> addUserRecord(
+      String streamName, String partitionKey, ByteBuffer data) {
+    return kinesisProducer.addUserRecord(streamName, partitionKey, data);
+  }
+
+  @Override
+  public void flush(String streamName) {
+    kinesisProducer.flush(streamName);
+  }
+
+  @Override
+  public long getOutstandingRecordsCount() {
+    return kinesisProducer.getOutstandingRecordsCount();
+  }
+}
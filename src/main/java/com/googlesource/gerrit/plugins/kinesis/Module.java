@@ -20,8 +20,10 @@ import com.amazonaws.services.kinesis.producer.KinesisProducer;
 import com.gerritforge.gerrit.eventbroker.BrokerApi;
 import com.gerritforge.gerrit.eventbroker.TopicSubscriber;
 import com.google.common.collect.Sets;
+import com.google.gerrit.extensions.annotations.Exports;
 import com.google.gerrit.extensions.events.LifecycleListener;
 import com.google.gerrit.extensions.registration.DynamicItem;
+import com.google.gerrit.extensions.registration.DynamicMap;
 import com.google.gerrit.extensions.registration.DynamicSet;
 import com.google.gerrit.lifecycle.LifecycleModule;
 import com.google.gerrit.server.events.EventListener;
@@ -74,7 +76,20 @@ public class Module extends LifecycleModule {
         .annotatedWith(ProducerCallbackExecutor.class)
         .toProvider(ProducerCallbackExecutorProvider.class)
         .in(SINGLETON);
-    bind(KinesisProducer.class).toProvider(KinesisProducerProvider.class).in(Scopes.SINGLETON);
+    bind(ExecutorService.class)
+        .annotatedWith(ProcessingExecutor.class)
+        .toProvider(ProcessingExecutorProvider.class)
+        .in(SINGLETON);
+    if (configuration.getProducerEngine() == ProducerEngine.KPL) {
+      bind(KinesisProducer.class).toProvider(KinesisProducerProvider.class).in(Scopes.SINGLETON);
+      bind(RecordProducer.class).to(KplRecordProducer.class);
+      if (configuration.getAwsMetricsPublisher() == AwsMetricsPublisher.GERRIT) {
+        bind(KplMetrics.class).asEagerSingleton();
+      }
+    } else {
+      bind(RecordProducer.class).to(PutRecordsProducer.class);
+      listener().to(PutRecordsProducer.class);
+    }
     bind(KinesisAsyncClient.class).toProvider(KinesisAsyncClientProvider.class).in(SINGLETON);
     bind(DynamoDbAsyncClient.class).toProvider(DynamoDbAsyncClientProvider.class).in(SINGLETON);
     bind(CloudWatchAsyncClient.class).toProvider(CloudWatchAsyncClientProvider.class).in(SINGLETON);
@@ -87,6 +102,26 @@ public class Module extends LifecycleModule {
     if (configuration.isSendStreamEvents()) {
       DynamicSet.bind(binder(), EventListener.class).to(KinesisPublisher.class);
     }
+    DynamicMap.mapOf(binder(), EventPartitioner.class);
+    bind(EventPartitioner.class)
+        .annotatedWith(Exports.named(TypePartitioner.NAME))
+        .to(TypePartitioner.class);
+    bind(EventPartitioner.class)
+        .annotatedWith(Exports.named(ProjectPartitioner.NAME))
+        .to(ProjectPartitioner.class);
+    bind(EventPartitioner.class)
+        .annotatedWith(Exports.named(ChangePartitioner.NAME))
+        .to(ChangePartitioner.class);
+    bind(EventPartitioner.class)
+        .annotatedWith(Exports.named(RefPartitioner.NAME))
+        .to(RefPartitioner.class);
+    bind(EventPartitioner.class)
+        .annotatedWith(Exports.named(HashPartitioner.NAME))
+        .to(HashPartitioner.class);
+    DynamicMap.mapOf(binder(), PayloadCodec.class);
     listener().to(AWSLogLevelListener.class);
+    listener().to(SpoolDrainer.class);
+    listener().to(GroupCommitter.class);
+    listener().to(CheckpointWriter.class);
   }
 }
@@ -0,0 +1,276 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.awssdk.services.kinesis.model.DescribeStreamSummaryRequest;
+import software.amazon.awssdk.services.kinesis.model.StreamDescriptionSummary;
+import software.amazon.kinesis.common.InitialPositionInStreamExtended;
+import software.amazon.kinesis.common.StreamConfig;
+import software.amazon.kinesis.common.StreamIdentifier;
+import software.amazon.kinesis.coordinator.Scheduler;
+import software.amazon.kinesis.lifecycle.events.InitializationInput;
+import software.amazon.kinesis.lifecycle.events.LeaseLostInput;
+import software.amazon.kinesis.lifecycle.events.ProcessRecordsInput;
+import software.amazon.kinesis.lifecycle.events.ShardEndedInput;
+import software.amazon.kinesis.lifecycle.events.ShutdownRequestedInput;
+import software.amazon.kinesis.processor.FormerStreamsLeasesDeletionStrategy;
+import software.amazon.kinesis.processor.MultiStreamTracker;
+import software.amazon.kinesis.processor.ShardRecordProcessor;
+import software.amazon.kinesis.processor.ShardRecordProcessorFactory;
+
+/**
+ * Consumes all the streams subscribed by a consumer group through a single scheduler per group,
+ * sharing a single lease table, when {@code multiStreamConsumer} is enabled.
+ *
+ * <p>Streams subscribed once the scheduler of the group is running are picked up by the scheduler
+ * at its next synchronization of the tracked streams. Since the scheduler cannot stop consuming a
+ * stream without deleting its leases, hence its checkpoints, it is restarted instead whenever a
+ * stream is no longer subscribed.
+ *
+ * <p>The leases of streams no longer subscribed stay in the lease table, and the scheduler still
+ * takes them. Their shards are given a record processor which neither delivers nor checkpoints
+ * their records, so that they are consumed again from their checkpoints once subscribed again,
+ * which restarts the scheduler.
+ */
+@Singleton
+class MultiStreamSchedulers {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  private static final int DESCRIBE_STREAM_TIMEOUT_SECS = 5;
+
+  private final SchedulerProvider.Factory schedulerFactory;
+  private final KinesisRecordProcessor.Factory processorFactory;
+  private final KinesisAsyncClient kinesisAsyncClient;
+  private final Configuration configuration;
+  private final ExecutorService executor;
+  private final Map<String, GroupScheduler> groups = new HashMap<>();
+
+  @Inject
+  MultiStreamSchedulers(
+      SchedulerProvider.Factory schedulerFactory,
+      KinesisRecordProcessor.Factory processorFactory,
+      KinesisAsyncClient kinesisAsyncClient,
+      Configuration configuration,
+      @ConsumerExecutor ExecutorService executor) {
+    this.schedulerFactory = schedulerFactory;
+    this.processorFactory = processorFactory;
+    this.kinesisAsyncClient = kinesisAsyncClient;
+    this.configuration = configuration;
+    this.executor = executor;
+  }
+
+  /**
+   * Adds the stream to the ones consumed by the scheduler of the group, starting it for the first
+   * stream.
+   *
+   * @return false when the stream could not be described, hence cannot be tracked
+   */
+  synchronized boolean register(
+      String streamName,
+      String groupId,
+      InitialPositionInStreamExtended initialPosition,
+      StreamSubscribers subscribers) {
+    StreamIdentifier streamIdentifier;
+    try {
+      streamIdentifier = streamIdentifier(streamName);
+    } catch (Exception e) {
+      logger.atSevere().withCause(e).log(
+          "Could not describe stream %s to consume it in multi-stream mode", streamName);
+      return false;
+    }
+    StreamConfig streamConfig = new StreamConfig(streamIdentifier, initialPosition);
+    groups
+        .computeIfAbsent(groupId, GroupScheduler::new)
+        .add(streamName, new TrackedStream(streamConfig, subscribers));
+    return true;
+  }
+
+  /** Removes the stream from the ones consumed by the scheduler of the group. */
+  synchronized void unregister(String streamName, String groupId) {
+    GroupScheduler group = groups.get(groupId);
+    if (group != null && group.remove(streamName)) {
+      groups.remove(groupId);
+    }
+  }
+
+  /**
+   * Identifies the stream as the multi-stream leases do, by account and creation time, so that
+   * the leases of a stream deleted and created again are not reused.
+   */
+  private StreamIdentifier streamIdentifier(String streamName) throws Exception {
+    StreamDescriptionSummary summary =
+        kinesisAsyncClient
+            .describeStreamSummary(
+                DescribeStreamSummaryRequest.builder().streamName(streamName).build())
+            .get(DESCRIBE_STREAM_TIMEOUT_SECS, TimeUnit.SECONDS)
+            .streamDescriptionSummary();
+    // arn:<partition>:kinesis:<region>:<account-id>:stream/<stream-name>
+    String accountId = summary.streamARN().split(":")[4];
+    return StreamIdentifier.multiStreamInstance(
+        String.join(
+            ":",
+            accountId,
+            streamName,
+            String.valueOf(summary.streamCreationTimestamp().getEpochSecond())));
+  }
+
+  private static class TrackedStream {
+    final StreamConfig config;
+    final StreamSubscribers subscribers;
+
+    TrackedStream(StreamConfig config, StreamSubscribers subscribers) {
+      this.config = config;
+      this.subscribers = subscribers;
+    }
+  }
+
+  private class GroupScheduler implements MultiStreamTracker, ShardRecordProcessorFactory {
+    private final String groupId;
+    private final Map<String, TrackedStream> streams = new ConcurrentHashMap<>();
+    // Streams whose shards were given an UntrackedShardProcessor by the running scheduler
+    private final Set<String> untrackedStreams = ConcurrentHashMap.newKeySet();
+    private Scheduler scheduler;
+
+    GroupScheduler(String groupId) {
+      this.groupId = groupId;
+    }
+
+    void add(String streamName, TrackedStream stream) {
+      streams.put(streamName, stream);
+      if (scheduler == null) {
+        start();
+      } else if (untrackedStreams.remove(streamName)) {
+        logger.atInfo().log(
+            "Restarting multi-stream consumer of group %s to consume stream %s again",
+            groupId, streamName);
+        shutdown();
+        start();
+      } else {
+        logger.atInfo().log(
+            "Stream %s added to the multi-stream consumer of group %s", streamName, groupId);
+      }
+    }
+
+    /** @return whether no streams are left */
+    boolean remove(String streamName) {
+      if (streams.remove(streamName) != null) {
+        shutdown();
+        if (!streams.isEmpty()) {
+          start();
+        }
+      }
+      return streams.isEmpty();
+    }
+
+    private void start() {
+      untrackedStreams.clear();
+      logger.atInfo().log(
+          "Starting multi-stream consumer of group %s for streams %s", groupId, streams.keySet());
+      scheduler = schedulerFactory.create(groupId, this, this).get();
+      executor.execute(scheduler);
+    }
+
+    private void shutdown() {
+      Future<Boolean> gracefulShutdownFuture = scheduler.startGracefulShutdown();
+      try {
+        gracefulShutdownFuture.get(configuration.getShutdownTimeoutMs(), TimeUnit.MILLISECONDS);
+      } catch (Exception e) {
+        logger.atSevere().withCause(e).log(
+            "Error caught when shutting down multi-stream consumer of group %s", groupId);
+      }
+      scheduler = null;
+    }
+
+    @Override
+    public List<StreamConfig> streamConfigList() {
+      return streams.values().stream().map(s -> s.config).collect(Collectors.toList());
+    }
+
+    @Override
+    public FormerStreamsLeasesDeletionStrategy formerStreamsLeasesDeletionStrategy() {
+      return new FormerStreamsLeasesDeletionStrategy.NoLeaseDeletionStrategy();
+    }
+
+    /**
+     * Not used: the scheduler creates the record processors through {@link
+     * #shardRecordProcessor(StreamIdentifier)}, and a processor cannot be created without knowing
+     * the stream of its shard.
+     */
+    @Override
+    public ShardRecordProcessor shardRecordProcessor() {
+      throw new UnsupportedOperationException("Record processors are created for a stream");
+    }
+
+    @Override
+    public ShardRecordProcessor shardRecordProcessor(StreamIdentifier streamIdentifier) {
+      String streamName = streamIdentifier.streamName();
+      TrackedStream stream = streams.get(streamName);
+      if (stream == null) {
+        untrackedStreams.add(streamName);
+        // Subscribed again meanwhile: the scheduler is restarted anyway
+        stream = streams.get(streamName);
+      }
+      if (stream == null) {
+        return new UntrackedShardProcessor(streamName, groupId);
+      }
+      return processorFactory.create(streamName, groupId, stream.subscribers);
+    }
+  }
+
+  /**
+   * Holds the lease of a shard of a stream no longer subscribed, without delivering nor
+   * checkpointing its records, so that none is lost when the stream is subscribed again.
+   */
+  static class UntrackedShardProcessor implements ShardRecordProcessor {
+    private final String streamName;
+    private final String groupId;
+
+    UntrackedShardProcessor(String streamName, String groupId) {
+      this.streamName = streamName;
+      this.groupId = groupId;
+    }
+
+    @Override
+    public void initialize(InitializationInput initializationInput) {
+      logger.atInfo().log(
+          "Not consuming shard %s of stream %s, no longer subscribed by group %s",
+          initializationInput.shardId(), streamName, groupId);
+    }
+
+    @Override
+    public void processRecords(ProcessRecordsInput processRecordsInput) {}
+
+    @Override
+    public void leaseLost(LeaseLostInput leaseLostInput) {}
+
+    @Override
+    public void shardEnded(ShardEndedInput shardEndedInput) {}
+
+    @Override
+    public void shutdownRequested(ShutdownRequestedInput shutdownRequestedInput) {}
+  }
+}
@@ -0,0 +1,51 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.google.gerrit.extensions.annotations.ExtensionPoint;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compresses the payload of published records.
+ *
+ * <p>Compressed records carry a {@link RecordHeader} identifying the codec, so that consumers can
+ * decompress them regardless of the codec configured locally. Implementations are bound by name
+ * and selected via the {@code compressionCodec} setting.
+ */
+@ExtensionPoint
+public interface PayloadCodec {
+
+  /**
+   * @return the identifier written into the header of compressed records. It must be unique
+   *     amongst the registered codecs and never change, since consumers rely on it to decode the
+   *     records. Values from 1 to 15 are reserved for the built-in codecs.
+   */
+  byte id();
+
+  /**
+   * @param out where the compressed payload is written to
+   * @return a stream compressing what is written into {@code out}. Closing it must flush all the
+   *     compressed data.
+   */
+  OutputStream compress(OutputStream out) throws IOException;
+
+  /**
+   * @param in the compressed payload
+   * @return a stream reading the decompressed payload
+   */
+  InputStream decompress(InputStream in) throws IOException;
+}
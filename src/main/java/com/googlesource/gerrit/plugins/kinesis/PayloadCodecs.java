@@ -0,0 +1,64 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gerrit.extensions.registration.DynamicMap;
+import com.google.gerrit.extensions.registration.Extension;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.Optional;
+
+/**
+ * Resolves {@link PayloadCodec}s by configured name, when publishing, and by id, when consuming.
+ *
+ * <p>The built-in codecs are always available, whilst other plugins can contribute their own
+ * through the {@link PayloadCodec} extension point.
+ */
+@Singleton
+class PayloadCodecs {
+  private static final ImmutableMap<String, PayloadCodec> BUILT_IN_CODECS =
+      ImmutableMap.of(GzipCodec.NAME, new GzipCodec(), DeflateCodec.NAME, new DeflateCodec());
+
+  private final DynamicMap<PayloadCodec> codecs;
+
+  @Inject
+  PayloadCodecs(DynamicMap<PayloadCodec> codecs) {
+    this.codecs = codecs;
+  }
+
+  /** Codecs exported by other plugins are referenced as {@code <plugin-name>/<export-name>}. */
+  Optional<PayloadCodec> byName(String name) {
+    int slash = name.indexOf('/');
+    if (slash < 0) {
+      return Optional.ofNullable(BUILT_IN_CODECS.get(name));
+    }
+    return Optional.ofNullable(codecs.get(name.substring(0, slash), name.substring(slash + 1)));
+  }
+
+  Optional<PayloadCodec> byId(byte id) {
+    for (PayloadCodec codec : BUILT_IN_CODECS.values()) {
+      if (codec.id() == id) {
+        return Optional.of(codec);
+      }
+    }
+    for (Extension<PayloadCodec> codec : codecs) {
+      if (codec.get().id() == id) {
+        return Optional.of(codec.get());
+      }
+    }
+    return Optional.empty();
+  }
+}
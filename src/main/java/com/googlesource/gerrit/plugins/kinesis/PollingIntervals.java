@@ -0,0 +1,74 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.google.gerrit.metrics.CallbackMetric1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.server.logging.PluginMetadata;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/** The adaptive polling intervals of the shards consumed by this node. */
+@Singleton
+class PollingIntervals {
+  private final Configuration configuration;
+  private final ConcurrentMap<String, AdaptivePollingInterval> intervals =
+      new ConcurrentHashMap<>();
+
+  @Inject
+  PollingIntervals(Configuration configuration, MetricMaker metricMaker) {
+    this.configuration = configuration;
+
+    CallbackMetric1<String, Long> pollingInterval =
+        metricMaker.newCallbackMetric(
+            "consumer/polling_interval",
+            Long.class,
+            new Description("Effective interval between polls of a shard")
+                .setGauge()
+                .setUnit(Description.Units.MILLISECONDS),
+            Field.ofString(
+                    "shard",
+                    (metadataBuilder, shard) ->
+                        metadataBuilder.addPluginMetadata(PluginMetadata.create("shard", shard)))
+                .description("The stream and id of the shard, as <stream>/<shard-id>")
+                .build());
+    metricMaker.newTrigger(
+        pollingInterval,
+        () -> {
+          // Shards whose interval was not updated for a while are no longer polled by this node
+          long staleBeforeMs =
+              System.currentTimeMillis() - 2 * configuration.getPollingMaxIntervalMs();
+          intervals.entrySet().removeIf(e -> e.getValue().updatedAtMs() < staleBeforeMs);
+          intervals.forEach((shard, interval) -> pollingInterval.set(shard, interval.get()));
+          pollingInterval.prune();
+        });
+  }
+
+  /** @return the polling interval of the shard, starting from the base polling interval. */
+  AdaptivePollingInterval forShard(String streamName, String shardId) {
+    AdaptivePollingInterval interval =
+        new AdaptivePollingInterval(
+            configuration.getPollingMinIntervalMs(),
+            configuration.getPollingIntervalMs(),
+            configuration.getPollingMaxIntervalMs(),
+            configuration.getMaxRecords());
+    intervals.put(streamName + "/" + shardId, interval);
+    return interval;
+  }
+}
@@ -0,0 +1,154 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+
+/**
+ * Output stream writing into buffers of a {@link ByteBufferPool}, growing them as needed.
+ *
+ * <p>The {@link #utf8Writer()} encodes characters straight into the buffer, without going through
+ * intermediate {@code String} or {@code byte[]} copies.
+ */
+class PooledByteBufferOutputStream extends OutputStream {
+  private final ByteBufferPool pool;
+  private ByteBuffer buffer;
+
+  PooledByteBufferOutputStream(ByteBufferPool pool) {
+    this.pool = pool;
+    this.buffer = pool.acquire();
+  }
+
+  @Override
+  public void write(int b) {
+    ensureRemaining(1);
+    buffer.put((byte) b);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) {
+    ensureRemaining(len);
+    buffer.put(b, off, len);
+  }
+
+  Writer utf8Writer() {
+    return new Utf8Writer();
+  }
+
+  /**
+   * Hands the written bytes over to a {@link PooledRecord}, which becomes responsible for
+   * releasing the underlying buffer. Nothing can be written afterwards.
+   */
+  PooledRecord toRecord() {
+    buffer.flip();
+    PooledRecord record = new PooledRecord(pool, buffer);
+    buffer = null;
+    return record;
+  }
+
+  @Override
+  public void close() {
+    if (buffer != null) {
+      pool.release(buffer);
+      buffer = null;
+    }
+  }
+
+  private void ensureRemaining(int len) {
+    if (buffer.remaining() < len) {
+      buffer = pool.grow(buffer, buffer.position() + len);
+    }
+  }
+
+  private class Utf8Writer extends Writer {
+    private char highSurrogate;
+
+    @Override
+    public void write(int c) {
+      encode((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+      for (int i = off; i < off + len; i++) {
+        encode(cbuf[i]);
+      }
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+      for (int i = off; i < off + len; i++) {
+        encode(str.charAt(i));
+      }
+    }
+
+    private void encode(char c) {
+      if (highSurrogate != 0) {
+        char high = highSurrogate;
+        highSurrogate = 0;
+        if (Character.isLowSurrogate(c)) {
+          encodeCodePoint(Character.toCodePoint(high, c));
+          return;
+        }
+        encodeCodePoint('?');
+      }
+
+      if (Character.isHighSurrogate(c)) {
+        highSurrogate = c;
+      } else if (Character.isLowSurrogate(c)) {
+        encodeCodePoint('?');
+      } else {
+        encodeCodePoint(c);
+      }
+    }
+
+    private void encodeCodePoint(int codePoint) {
+      if (codePoint < 0x80) {
+        ensureRemaining(1);
+        buffer.put((byte) codePoint);
+      } else if (codePoint < 0x800) {
+        ensureRemaining(2);
+        buffer.put((byte) (0xC0 | (codePoint >> 6)));
+        buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+      } else if (codePoint < 0x10000) {
+        ensureRemaining(3);
+        buffer.put((byte) (0xE0 | (codePoint >> 12)));
+        buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+        buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+      } else {
+        ensureRemaining(4);
+        buffer.put((byte) (0xF0 | (codePoint >> 18)));
+        buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+        buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+        buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+      }
+    }
+
+    @Override
+    public void flush() {
+      if (highSurrogate != 0) {
+        highSurrogate = 0;
+        encodeCodePoint('?');
+      }
+    }
+
+    @Override
+    public void close() {
+      flush();
+    }
+  }
+}
@@ -0,0 +1,49 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import java.nio.ByteBuffer;
+
+/** Serialized record backed by a buffer of a {@link ByteBufferPool}. */
+class PooledRecord implements AutoCloseable {
+  private final ByteBufferPool pool;
+  private ByteBuffer data;
+
+  PooledRecord(ByteBufferPool pool, ByteBuffer data) {
+    this.pool = pool;
+    this.data = data;
+  }
+
+  /**
+   * @return the serialized record, ready to be read. The buffer must not be used after the record
+   *     has been closed.
+   */
+  ByteBuffer data() {
+    return data;
+  }
+
+  int size() {
+    return data.limit();
+  }
+
+  /** Returns the underlying buffer to the pool. */
+  @Override
+  public void close() {
+    if (data != null) {
+      pool.release(data);
+      data = null;
+    }
+  }
+}
@@ -0,0 +1,61 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * How many times, and how long after, the processing of a consumed event is retried when the
+ * subscriber fails, with an exponential backoff bounded by a maximum.
+ */
+class ProcessingRetryPolicy {
+  private final int maxRetries;
+  private final long backoffMs;
+  private final long maxBackoffMs;
+
+  ProcessingRetryPolicy(Configuration configuration) {
+    this(
+        configuration.getProcessingMaxRetries(),
+        configuration.getProcessingRetryBackoffMs(),
+        configuration.getProcessingRetryMaxBackoffMs());
+  }
+
+  @VisibleForTesting
+  ProcessingRetryPolicy(int maxRetries, long backoffMs, long maxBackoffMs) {
+    this.maxRetries = maxRetries;
+    this.backoffMs = backoffMs;
+    this.maxBackoffMs = maxBackoffMs;
+  }
+
+  /**
+   * @param failedAttempts the number of attempts failed so far
+   * @return whether the processing should be attempted again
+   */
+  boolean shouldRetry(int failedAttempts) {
+    return failedAttempts <= maxRetries;
+  }
+
+  /**
+   * @param retry the retry about to be made, starting from 1
+   * @return how long to wait before the retry, in milliseconds
+   */
+  long backoffMs(int retry) {
+    if (retry >= Long.SIZE - 1) {
+      return maxBackoffMs;
+    }
+    long backoff = backoffMs << (retry - 1);
+    return backoff < 0 || backoff > maxBackoffMs ? maxBackoffMs : backoff;
+  }
+}
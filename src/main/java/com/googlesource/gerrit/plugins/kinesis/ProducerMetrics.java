@@ -0,0 +1,98 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.google.gerrit.metrics.Counter1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.Histogram1;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer2;
+import com.google.gerrit.server.logging.PluginMetadata;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.concurrent.TimeUnit;
+
+/** Metrics of the records published to Kinesis. */
+@Singleton
+class ProducerMetrics {
+  static final String SUCCESS = "success";
+  static final String FAILURE = "failure";
+
+  private final Timer2<String, String> publishLatency;
+  private final Histogram1<String> publishAttempts;
+  private final Counter1<String> publishedBytes;
+  private final Counter1<String> publishTimeouts;
+
+  @Inject
+  ProducerMetrics(MetricMaker metricMaker) {
+    Field<String> streamField = stringField("stream", "The stream the records are published to");
+    this.publishLatency =
+        metricMaker.newTimer(
+            "publisher/latency",
+            new Description("Time taken to publish a record, from its hand over to the producer")
+                .setCumulative()
+                .setUnit(Description.Units.MILLISECONDS),
+            streamField,
+            stringField("outcome", "Whether the record was published: success or failure"));
+    this.publishAttempts =
+        metricMaker.newHistogram(
+            "publisher/attempts",
+            new Description("Attempts made by the producer to publish a record")
+                .setCumulative()
+                .setUnit("attempts"),
+            streamField);
+    this.publishedBytes =
+        metricMaker.newCounter(
+            "publisher/published_bytes",
+            new Description("Bytes of the records successfully published")
+                .setRate()
+                .setUnit(Description.Units.BYTES),
+            streamField);
+    this.publishTimeouts =
+        metricMaker.newCounter(
+            "publisher/timeouts",
+            new Description("Synchronous publishes that timed out waiting for the producer")
+                .setRate()
+                .setUnit("records"),
+            streamField);
+  }
+
+  void recordSuccess(String streamName, long elapsedNanos, int attempts, int bytes) {
+    publishLatency.record(streamName, SUCCESS, elapsedNanos, TimeUnit.NANOSECONDS);
+    publishAttempts.record(streamName, attempts);
+    publishedBytes.incrementBy(streamName, bytes);
+  }
+
+  void recordFailure(String streamName, long elapsedNanos, int attempts) {
+    publishLatency.record(streamName, FAILURE, elapsedNanos, TimeUnit.NANOSECONDS);
+    if (attempts > 0) {
+      publishAttempts.record(streamName, attempts);
+    }
+  }
+
+  void recordTimeout(String streamName) {
+    publishTimeouts.increment(streamName);
+  }
+
+  private static Field<String> stringField(String name, String description) {
+    return Field.ofString(
+            name,
+            (metadataBuilder, value) ->
+                metadataBuilder.addPluginMetadata(PluginMetadata.create(name, value)))
+        .description(description)
+        .build();
+  }
+}
@@ -0,0 +1,369 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.amazonaws.services.kinesis.producer.Attempt;
+import com.amazonaws.services.kinesis.producer.UserRecordFailedException;
+import com.amazonaws.services.kinesis.producer.UserRecordResult;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequest;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequestEntry;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsResponse;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsResultEntry;
+
+/**
+ * Publishes records with {@code PutRecords} calls, made by the Kinesis async client, without any
+ * native child process.
+ *
+ * <p>Records are buffered per stream and sent when the batch reaches the maximum number of records
+ * or bytes, or when its oldest record has been buffered for the linger time. When a call partially
+ * fails, only the failed records are sent again, with an exponential backoff, until the publish
+ * timeout expires.
+ */
+@Singleton
+class PutRecordsProducer implements RecordProducer, LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  // Limits of a single PutRecords call, see
+  // https://docs.aws.amazon.com/kinesis/latest/APIReference/API_PutRecords.html
+  static final int MAX_BATCH_COUNT = 500;
+  static final long MAX_BATCH_BYTES = 5 * 1024 * 1024L;
+  static final int MAX_RECORD_BYTES = 1024 * 1024;
+
+  private static final long MIN_BACKOFF_MS = 100L;
+  private static final long MAX_BACKOFF_MS = 2000L;
+
+  private final KinesisAsyncClient kinesisClient;
+  private final int maxBatchCount;
+  private final long maxBatchBytes;
+  private final long lingerMs;
+  private final long requestTimeoutMs;
+  private final long publishTimeoutMs;
+  private final long shutdownTimeoutMs;
+  private final ScheduledExecutorService scheduler;
+  private final Map<String, Batch> batches = new HashMap<>();
+  private final AtomicLong outstandingRecords = new AtomicLong();
+
+  @Inject
+  PutRecordsProducer(KinesisAsyncClient kinesisClient, Configuration configuration) {
+    this(
+        kinesisClient,
+        configuration.getPutRecordsMaxCount(),
+        configuration.getPutRecordsMaxBytes(),
+        configuration.getPublishRecordMaxBufferedTimeMs(),
+        configuration.getPublishSingleRequestTimeoutMs(),
+        configuration.getPublishTimeoutMs(),
+        configuration.getShutdownTimeoutMs());
+  }
+
+  @VisibleForTesting
+  PutRecordsProducer(
+      KinesisAsyncClient kinesisClient,
+      int maxBatchCount,
+      long maxBatchBytes,
+      long lingerMs,
+      long requestTimeoutMs,
+      long publishTimeoutMs,
+      long shutdownTimeoutMs) {
+    this.kinesisClient = kinesisClient;
+    this.maxBatchCount = Math.min(maxBatchCount, MAX_BATCH_COUNT);
+    this.maxBatchBytes = Math.min(maxBatchBytes, MAX_BATCH_BYTES);
+    this.lingerMs = lingerMs;
+    this.requestTimeoutMs = requestTimeoutMs;
+    this.publishTimeoutMs = publishTimeoutMs;
+    this.shutdownTimeoutMs = shutdownTimeoutMs;
+    this.scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("kinesis-put-records-%d").build());
+  }
+
+  @Override
+  public void start() {}
+
+  @Override
+  public void stop() {
+    flushAll();
+    scheduler.shutdown();
+    try {
+      if (!scheduler.awaitTermination(shutdownTimeoutMs, TimeUnit.MILLISECONDS)) {
+        logger.atWarning().log(
+            "Stopped with %d records still outstanding", outstandingRecords.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public ListenableFuture<UserRecordResult> addUserRecord(
+      String streamName, String partitionKey, ByteBuffer data) {
+    int size = data.remaining() + partitionKey.getBytes(UTF_8).length;
+    if (size > MAX_RECORD_BYTES) {
+      return Futures.immediateFailedFuture(
+          new IllegalArgumentException(
+              String.format(
+                  "Record of %d bytes exceeds the maximum of %d bytes", size, MAX_RECORD_BYTES)));
+    }
+
+    Entry entry = new Entry(partitionKey, SdkBytes.fromByteBuffer(data), size);
+    outstandingRecords.incrementAndGet();
+    entry.result.addListener(outstandingRecords::decrementAndGet, directExecutor());
+
+    List<Entry> ready = null;
+    List<Entry> alsoReady = null;
+    synchronized (this) {
+      Batch batch = batches.get(streamName);
+      if (batch != null && !batch.fits(size)) {
+        ready = takeBatch(streamName);
+        batch = null;
+      }
+      if (batch == null) {
+        batch = newBatch(streamName);
+      }
+      batch.add(entry);
+      if (batch.isFull()) {
+        alsoReady = takeBatch(streamName);
+      }
+    }
+
+    if (ready != null) {
+      send(streamName, ready, 0);
+    }
+    if (alsoReady != null) {
+      send(streamName, alsoReady, 0);
+    }
+    return entry.result;
+  }
+
+  @Override
+  public void flush(String streamName) {
+    List<Entry> entries;
+    synchronized (this) {
+      if (!batches.containsKey(streamName)) {
+        return;
+      }
+      entries = takeBatch(streamName);
+    }
+    send(streamName, entries, 0);
+  }
+
+  @Override
+  public long getOutstandingRecordsCount() {
+    return outstandingRecords.get();
+  }
+
+  private Batch newBatch(String streamName) {
+    Batch batch = new Batch();
+    batches.put(streamName, batch);
+    try {
+      batch.lingerTask =
+          scheduler.schedule(() -> flush(streamName, batch), lingerMs, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // Shutting down: the batch is flushed straight away by stop()
+    }
+    return batch;
+  }
+
+  private List<Entry> takeBatch(String streamName) {
+    Batch batch = batches.remove(streamName);
+    if (batch.lingerTask != null) {
+      batch.lingerTask.cancel(false);
+    }
+    return batch.entries;
+  }
+
+  private void flush(String streamName, Batch batch) {
+    List<Entry> entries;
+    synchronized (this) {
+      if (batches.get(streamName) != batch) {
+        return;
+      }
+      entries = takeBatch(streamName);
+    }
+    send(streamName, entries, 0);
+  }
+
+  private void flushAll() {
+    Map<String, List<Entry>> pending = new HashMap<>();
+    synchronized (this) {
+      for (String streamName : new ArrayList<>(batches.keySet())) {
+        pending.put(streamName, takeBatch(streamName));
+      }
+    }
+    pending.forEach((streamName, entries) -> send(streamName, entries, 0));
+  }
+
+  private void send(String streamName, List<Entry> entries, int attempt) {
+    PutRecordsRequest request =
+        PutRecordsRequest.builder()
+            .streamName(streamName)
+            .records(
+                entries.stream()
+                    .map(
+                        e ->
+                            PutRecordsRequestEntry.builder()
+                                .partitionKey(e.partitionKey)
+                                .data(e.data)
+                                .build())
+                    .collect(Collectors.toList()))
+            .overrideConfiguration(c -> c.apiCallTimeout(Duration.ofMillis(requestTimeoutMs)))
+            .build();
+
+    long startNanos = System.nanoTime();
+    try {
+      kinesisClient
+          .putRecords(request)
+          .whenComplete(
+              (response, error) ->
+                  onResponse(streamName, entries, attempt, startNanos, response, error));
+    } catch (RuntimeException e) {
+      onResponse(streamName, entries, attempt, startNanos, null, e);
+    }
+  }
+
+  private void onResponse(
+      String streamName,
+      List<Entry> entries,
+      int attempt,
+      long startNanos,
+      PutRecordsResponse response,
+      Throwable error) {
+    long endNanos = System.nanoTime();
+    int duration = (int) TimeUnit.NANOSECONDS.toMillis(endNanos - startNanos);
+    List<Entry> failed = new ArrayList<>();
+    for (int i = 0; i < entries.size(); i++) {
+      Entry entry = entries.get(i);
+      int delay = (int) TimeUnit.NANOSECONDS.toMillis(startNanos - entry.readyNanos);
+      entry.readyNanos = endNanos;
+
+      if (error != null) {
+        entry.attempts.add(
+            new Attempt(
+                delay, duration, error.getMessage(), error.getClass().getSimpleName(), false));
+        failed.add(entry);
+        continue;
+      }
+
+      PutRecordsResultEntry result = response.records().get(i);
+      if (result.errorCode() == null) {
+        entry.attempts.add(new Attempt(delay, duration, null, null, true));
+        entry.result.set(
+            new UserRecordResult(
+                entry.attempts, result.sequenceNumber(), result.shardId(), true));
+      } else {
+        entry.attempts.add(
+            new Attempt(delay, duration, result.errorMessage(), result.errorCode(), false));
+        failed.add(entry);
+      }
+    }
+
+    if (!failed.isEmpty()) {
+      logger.atFine().log(
+          "%d of %d records failed to be put to stream %s at attempt %d",
+          failed.size(), entries.size(), streamName, attempt + 1);
+      retry(streamName, failed, attempt + 1);
+    }
+  }
+
+  private void retry(String streamName, List<Entry> failed, int attempt) {
+    long backoffMs = Math.min(MAX_BACKOFF_MS, MIN_BACKOFF_MS << Math.min(attempt - 1, 10));
+    long retryNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMs);
+    List<Entry> retries = new ArrayList<>();
+    for (Entry entry : failed) {
+      if (retryNanos - entry.deadlineNanos < 0) {
+        retries.add(entry);
+      } else {
+        entry.fail();
+      }
+    }
+
+    if (!retries.isEmpty()) {
+      try {
+        scheduler.schedule(
+            () -> send(streamName, retries, attempt), backoffMs, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        retries.forEach(Entry::fail);
+      }
+    }
+  }
+
+  private class Batch {
+    final List<Entry> entries = new ArrayList<>();
+    long bytes;
+    ScheduledFuture<?> lingerTask;
+
+    void add(Entry entry) {
+      entries.add(entry);
+      bytes += entry.size;
+    }
+
+    boolean fits(int size) {
+      return entries.size() < maxBatchCount && bytes + size <= maxBatchBytes;
+    }
+
+    boolean isFull() {
+      return entries.size() >= maxBatchCount || bytes >= maxBatchBytes;
+    }
+  }
+
+  private class Entry {
+    final String partitionKey;
+    final SdkBytes data;
+    final int size;
+    final long deadlineNanos;
+    final List<Attempt> attempts = new ArrayList<>();
+    final SettableFuture<UserRecordResult> result = SettableFuture.create();
+    long readyNanos;
+
+    Entry(String partitionKey, SdkBytes data, int size) {
+      this.partitionKey = partitionKey;
+      this.data = data;
+      this.size = size;
+      this.readyNanos = System.nanoTime();
+      this.deadlineNanos = readyNanos + TimeUnit.MILLISECONDS.toNanos(publishTimeoutMs);
+    }
+
+    void fail() {
+      result.setException(
+          new UserRecordFailedException(new UserRecordResult(attempts, null, null, false)));
+    }
+  }
+}
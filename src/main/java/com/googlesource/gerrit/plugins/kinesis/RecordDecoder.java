@@ -0,0 +1,132 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.gerritforge.gerrit.eventbroker.EventDeserializer;
+import com.google.common.io.ByteStreams;
+import com.google.gerrit.server.events.Event;
+import com.google.gerrit.server.events.EventGson;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+
+/**
+ * Decodes the payload of consumed records into events.
+ *
+ * <p>Records carrying a {@link RecordHeader} are decompressed first, when compressed. Payloads are
+ * then decoded as CBOR, when they start with the CBOR self-describe tag, or as JSON otherwise, so
+ * that records in any {@link EventFormat} can be consumed side by side.
+ *
+ * <p>The type of plain JSON records is read straight from the payload, so that records of types not
+ * wanted by the consumer are skipped before being deserialized. Accepted records are deserialized
+ * from the payload through a UTF-8 stream reader, without copying it.
+ */
+@Singleton
+class RecordDecoder {
+  /**
+   * The largest payload of a Kinesis record: compression must not allow publishing events that
+   * could not be published uncompressed, nor decompressing corrupt records without bounds.
+   */
+  static final int MAX_DECOMPRESSED_BYTES = 1024 * 1024;
+
+  private final PayloadCodecs codecs;
+  private final EventDeserializer eventDeserializer;
+  private final Gson gson;
+
+  @Inject
+  RecordDecoder(
+      PayloadCodecs codecs, EventDeserializer eventDeserializer, @EventGson Gson gson) {
+    this.codecs = codecs;
+    this.eventDeserializer = eventDeserializer;
+    this.gson = gson;
+  }
+
+  /**
+   * @param data the payload of the record
+   * @return the decoded event
+   * @throws IOException when the payload cannot be decoded
+   */
+  Event decode(ByteBuffer data) throws IOException {
+    return decode(data, EventTypeMatcher.ALL).get();
+  }
+
+  /**
+   * @param data the payload of the record
+   * @param accepted the types of events to decode
+   * @return the decoded event, or empty when it is not of an accepted type
+   * @throws IOException when the payload cannot be decoded
+   */
+  Optional<Event> decode(ByteBuffer data, EventTypeMatcher accepted) throws IOException {
+    ByteBuffer payload = data.duplicate();
+    RecordHeader header = RecordHeader.isPresent(payload) ? RecordHeader.read(payload) : null;
+    if (header == null || header.codecId() == RecordHeader.NO_CODEC) {
+      if (!CborTranscoder.isCbor(payload) && !accepted.matches(payload)) {
+        return Optional.empty();
+      }
+      return accept(deserialize(payload), accepted);
+    }
+
+    PayloadCodec codec =
+        codecs
+            .byId(header.codecId())
+            .orElseThrow(
+                () ->
+                    new IOException(
+                        String.format("Unknown compression codec %d", header.codecId())));
+    byte[] decompressed;
+    try (InputStream in = codec.decompress(new ByteBufferInputStream(payload))) {
+      decompressed = ByteStreams.toByteArray(ByteStreams.limit(in, MAX_DECOMPRESSED_BYTES + 1));
+    }
+    if (decompressed.length > MAX_DECOMPRESSED_BYTES) {
+      throw new IOException(
+          String.format(
+              "Decompressed payload exceeds the maximum of %d bytes", MAX_DECOMPRESSED_BYTES));
+    }
+    return accept(deserialize(ByteBuffer.wrap(decompressed)), accepted);
+  }
+
+  private static Optional<Event> accept(Event event, EventTypeMatcher accepted) {
+    return accepted.matches(event.type) ? Optional.of(event) : Optional.empty();
+  }
+
+  private Event deserialize(ByteBuffer payload) throws IOException {
+    Event event;
+    if (CborTranscoder.isCbor(payload)) {
+      event = gson.fromJson(CborTranscoder.read(new ByteBufferInputStream(payload)), Event.class);
+    } else if (JsonPeek.findStringField(payload, EventTypeMatcher.TYPE_FIELD)
+        != JsonPeek.NOT_FOUND) {
+      try (Reader reader = new InputStreamReader(new ByteBufferInputStream(payload), UTF_8)) {
+        event = gson.fromJson(reader, Event.class);
+      }
+    } else {
+      // Events without a top-level type may be wrapped in the legacy envelope of the broker
+      return eventDeserializer.deserialize(UTF_8.decode(payload).toString());
+    }
+
+    if (event == null || event.type == null) {
+      throw new JsonParseException("Event type cannot be null");
+    }
+    return event;
+  }
+}
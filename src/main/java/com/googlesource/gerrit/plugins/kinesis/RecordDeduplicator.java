@@ -0,0 +1,126 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+
+/**
+ * Recognises the records consumed more than once, since Kinesis delivers them at least once, so
+ * that subscribers are not asked to process them again, e.g. to reindex a change twice.
+ *
+ * <p>Records are identified by a fingerprint of their {@link DedupKey}, scoped to the consumer
+ * lease, so that each consumer group still receives every record. The fingerprints of the last
+ * {@code dedupCacheSize} records consumed, within {@code dedupCacheTtlMs}, are kept in memory:
+ * duplicates consumed later, or by another node, are processed again.
+ */
+@Singleton
+class RecordDeduplicator {
+  private static final HashFunction FINGERPRINT = Hashing.murmur3_128();
+
+  private final FingerprintCache cache;
+  private final DedupKey dedupKey;
+  private final Counter0 hits;
+  private final Counter0 misses;
+
+  @Inject
+  RecordDeduplicator(Configuration configuration, MetricMaker metricMaker) {
+    this(
+        configuration.getDedupCacheSize() > 0
+            ? new FingerprintCache(
+                configuration.getDedupCacheSize(), configuration.getDedupCacheTtlMs())
+            : null,
+        configuration.getDedupKey(),
+        metricMaker);
+  }
+
+  @VisibleForTesting
+  RecordDeduplicator(FingerprintCache cache, DedupKey dedupKey, MetricMaker metricMaker) {
+    this.cache = cache;
+    this.dedupKey = dedupKey;
+    this.hits =
+        metricMaker.newCounter(
+            "consumer/dedup/hits",
+            new Description("Records skipped because already consumed")
+                .setRate()
+                .setUnit("records"));
+    this.misses =
+        metricMaker.newCounter(
+            "consumer/dedup/misses",
+            new Description("Records checked for duplicates and not consumed before")
+                .setRate()
+                .setUnit("records"));
+    if (cache != null) {
+      metricMaker.newCallbackMetric(
+          "consumer/dedup/entries",
+          Integer.class,
+          new Description("Fingerprints of consumed records kept in the deduplication cache")
+              .setGauge()
+              .setUnit("entries"),
+          cache::size);
+      metricMaker.newCallbackMetric(
+          "consumer/dedup/memory_bytes",
+          Long.class,
+          new Description("Memory allocated to the deduplication cache")
+              .setGauge()
+              .setUnit(Description.Units.BYTES),
+          cache::memoryBytes);
+    }
+  }
+
+  boolean isEnabled() {
+    return cache != null;
+  }
+
+  /** @return the fingerprint identifying the record within the consumer lease */
+  long fingerprint(String leaseName, String shardId, KinesisClientRecord consumerRecord) {
+    Hasher hasher = FINGERPRINT.newHasher().putUnencodedChars(leaseName);
+    if (dedupKey == DedupKey.PAYLOAD) {
+      hasher.putBytes(consumerRecord.data().duplicate());
+    } else {
+      hasher
+          .putUnencodedChars(String.valueOf(shardId))
+          .putUnencodedChars(String.valueOf(consumerRecord.sequenceNumber()))
+          .putLong(consumerRecord.subSequenceNumber());
+    }
+    return hasher.hash().asLong();
+  }
+
+  /** @return whether a record with the same fingerprint has already been processed */
+  boolean isDuplicate(long fingerprint) {
+    if (cache.contains(fingerprint, System.currentTimeMillis())) {
+      hits.increment();
+      return true;
+    }
+    misses.increment();
+    return false;
+  }
+
+  /**
+   * Remembers the record as processed, once delivered to the subscriber: records that failed are
+   * not, so that they can be re-driven from the dead-letter stream.
+   */
+  void processed(long fingerprint) {
+    cache.add(fingerprint, System.currentTimeMillis());
+  }
+}
@@ -0,0 +1,140 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.server.config.GerritInstanceId;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns serialized events into the payload of the records to publish, compressing them with the
+ * configured {@link PayloadCodec}.
+ *
+ * <p>Payloads smaller than {@code compressionThresholdBytes}, or that would not shrink, are
+ * published as they are, without any header, and can be consumed by any node. When {@code
+ * publishOriginHeader} is enabled, all the records carry a header with the instance id of the node
+ * instead.
+ */
+@Singleton
+class RecordEncoder {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final ByteBufferPool pool;
+  private final PayloadCodecs codecs;
+  private final Optional<String> codecName;
+  private final int compressionThresholdBytes;
+  private final byte[] origin;
+
+  @Inject
+  RecordEncoder(
+      ByteBufferPool pool,
+      PayloadCodecs codecs,
+      Configuration configuration,
+      @Nullable @GerritInstanceId String instanceId) {
+    this.pool = pool;
+    this.codecs = codecs;
+    this.codecName = configuration.getCompressionCodec();
+    this.compressionThresholdBytes = configuration.getCompressionThresholdBytes();
+    this.origin = configuration.isPublishOriginHeader() ? RecordHeader.origin(instanceId) : null;
+    if (configuration.isPublishOriginHeader() && origin == null) {
+      logger.atWarning().log(
+          "Instance id '%s' cannot be published in the records header, it must be set and "
+              + "at most %d bytes long",
+          instanceId, RecordHeader.MAX_ORIGIN_LENGTH);
+    }
+  }
+
+  /**
+   * @param record the serialized event, which is owned by the encoder from now on
+   * @return the payload of the record to publish
+   */
+  PooledRecord encode(PooledRecord record) throws IOException {
+    if (!codecName.isPresent() || record.size() < compressionThresholdBytes) {
+      return uncompressed(record);
+    }
+    Optional<PayloadCodec> codec = codecs.byName(codecName.get());
+    if (!codec.isPresent()) {
+      logger.atWarning().atMostEvery(1, TimeUnit.MINUTES).log(
+          "Compression codec '%s' is not registered, publishing uncompressed records",
+          codecName.get());
+      return uncompressed(record);
+    }
+
+    PooledRecord compressed;
+    try (PooledByteBufferOutputStream out = new PooledByteBufferOutputStream(pool)) {
+      writeHeader(out, codec.get().id());
+      try (OutputStream compressing = codec.get().compress(nonClosing(out))) {
+        ByteBuffer data = record.data();
+        compressing.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+      }
+      compressed = out.toRecord();
+    } catch (IOException | RuntimeException e) {
+      record.close();
+      throw e;
+    }
+
+    // Uncompressed records only carry a header when the origin is published
+    int uncompressedSize = record.size() + (origin != null ? RecordHeader.length(origin) : 0);
+    if (compressed.size() >= uncompressedSize) {
+      compressed.close();
+      return uncompressed(record);
+    }
+    record.close();
+    return compressed;
+  }
+
+  private PooledRecord uncompressed(PooledRecord record) {
+    if (origin == null) {
+      return record;
+    }
+    try (PooledRecord payload = record;
+        PooledByteBufferOutputStream out = new PooledByteBufferOutputStream(pool)) {
+      writeHeader(out, RecordHeader.NO_CODEC);
+      ByteBuffer data = payload.data();
+      out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+      return out.toRecord();
+    }
+  }
+
+  private void writeHeader(PooledByteBufferOutputStream out, byte codecId) {
+    if (origin != null) {
+      RecordHeader.write(out, codecId, origin);
+    } else {
+      RecordHeader.write(out, codecId);
+    }
+  }
+
+  private static OutputStream nonClosing(OutputStream out) {
+    return new FilterOutputStream(out) {
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+        flush();
+      }
+    };
+  }
+}
@@ -0,0 +1,127 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.gerrit.common.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Header prepended to the payload of records that are not plain JSON.
+ *
+ * <p>The header starts with a magic byte that can never appear in UTF-8 text, which allows telling
+ * apart records published by nodes without header support. It is followed by the header version
+ * and by the {@link PayloadCodec#id()} of the codec used to compress the payload, or {@link
+ * #NO_CODEC} when the payload is not compressed.
+ *
+ * <p>Version 2 headers also carry the instance id of the publishing node, as a length-prefixed
+ * UTF-8 string, so that nodes can recognize their own records without decoding them.
+ */
+class RecordHeader {
+  static final byte MAGIC = (byte) 0xC1;
+  static final byte VERSION = 1;
+  static final byte VERSION_WITH_ORIGIN = 2;
+  static final int LENGTH = 3;
+  static final byte NO_CODEC = 0;
+  static final int MAX_ORIGIN_LENGTH = 255;
+
+  private final byte codecId;
+
+  private RecordHeader(byte codecId) {
+    this.codecId = codecId;
+  }
+
+  byte codecId() {
+    return codecId;
+  }
+
+  static boolean isPresent(ByteBuffer data) {
+    return data.remaining() >= LENGTH && data.get(data.position()) == MAGIC;
+  }
+
+  /**
+   * @param instanceId the instance id of the node, if any
+   * @return the origin to write into the headers, or null when there is no instance id or it is
+   *     too long
+   */
+  @Nullable
+  static byte[] origin(@Nullable String instanceId) {
+    if (instanceId == null) {
+      return null;
+    }
+    byte[] origin = instanceId.getBytes(UTF_8);
+    return origin.length <= MAX_ORIGIN_LENGTH ? origin : null;
+  }
+
+  /** @return the length of the header written for the origin, if any */
+  static int length(@Nullable byte[] origin) {
+    return origin == null ? LENGTH : LENGTH + 1 + origin.length;
+  }
+
+  static void write(PooledByteBufferOutputStream out, byte codecId) {
+    out.write(MAGIC);
+    out.write(VERSION);
+    out.write(codecId);
+  }
+
+  static void write(PooledByteBufferOutputStream out, byte codecId, byte[] origin) {
+    out.write(MAGIC);
+    out.write(VERSION_WITH_ORIGIN);
+    out.write(codecId);
+    out.write(origin.length);
+    out.write(origin, 0, origin.length);
+  }
+
+  /**
+   * Checks whether the record has been published by the given origin, without moving the position
+   * of {@code data}.
+   */
+  static boolean isFrom(ByteBuffer data, byte[] origin) {
+    int start = data.position() + LENGTH + 1;
+    if (!isPresent(data)
+        || data.get(data.position() + 1) != VERSION_WITH_ORIGIN
+        || data.limit() < start + origin.length
+        || (data.get(start - 1) & 0xFF) != origin.length) {
+      return false;
+    }
+    for (int i = 0; i < origin.length; i++) {
+      if (data.get(start + i) != origin[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Reads the header, moving the position of {@code data} to the beginning of the payload.
+   *
+   * @throws IOException when the header version is not supported
+   */
+  static RecordHeader read(ByteBuffer data) throws IOException {
+    data.get(); // magic
+    byte version = data.get();
+    if (version != VERSION && version != VERSION_WITH_ORIGIN) {
+      throw new IOException(String.format("Unsupported record header version %d", version));
+    }
+    RecordHeader header = new RecordHeader(data.get());
+    if (version == VERSION_WITH_ORIGIN) {
+      int originLength = data.get() & 0xFF;
+      data.position(data.position() + originLength);
+    }
+    return header;
+  }
+}
@@ -0,0 +1,52 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.amazonaws.services.kinesis.producer.UserRecordResult;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.nio.ByteBuffer;
+
+/**
+ * Hands records over to Kinesis, batching and retrying them as needed.
+ *
+ * <p>The methods mirror the ones of the KPL {@code KinesisProducer}, which is one of the available
+ * {@link ProducerEngine}s.
+ */
+interface RecordProducer {
+
+  /**
+   * Publishes a record. The data is copied before returning, hence the buffer can be reused as
+   * soon as this method returns.
+   *
+   * @param streamName the stream to publish the record to
+   * @param partitionKey the partition key of the record
+   * @param data the record
+   * @return the result of the publishing, once done. Failures, once retries are exhausted, are
+   *     reported as a {@link com.amazonaws.services.kinesis.producer.UserRecordFailedException}.
+   */
+  ListenableFuture<UserRecordResult> addUserRecord(
+      String streamName, String partitionKey, ByteBuffer data);
+
+  /**
+   * Sends the records buffered for a stream straight away, rather than waiting for the batching
+   * limits to be reached.
+   *
+   * @param streamName the stream whose records to send
+   */
+  void flush(String streamName);
+
+  /** @return the number of records handed over and not yet completed. */
+  long getOutstandingRecordsCount();
+}
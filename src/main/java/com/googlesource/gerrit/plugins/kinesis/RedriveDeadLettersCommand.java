@@ -0,0 +1,98 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.google.gerrit.common.data.GlobalCapability;
+import com.google.gerrit.extensions.annotations.RequiresCapability;
+import com.google.gerrit.sshd.CommandMetaData;
+import com.google.gerrit.sshd.SshCommand;
+import com.google.inject.Inject;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Optional;
+import org.kohsuke.args4j.Option;
+
+@RequiresCapability(GlobalCapability.ADMINISTRATE_SERVER)
+@CommandMetaData(
+    name = "redrive-dead-letters",
+    description = "Publish dead-lettered records again to the stream they were consumed from")
+class RedriveDeadLettersCommand extends SshCommand {
+  @Option(
+      name = "--stream",
+      metaVar = "STREAM",
+      usage = "dead-letter stream to read, defaults to the configured deadLetterStream")
+  private String stream;
+
+  @Option(
+      name = "--since",
+      metaVar = "TIMESTAMP",
+      usage = "only re-drive dead letters published after this ISO-8601 instant")
+  private String since;
+
+  @Option(name = "--rate", metaVar = "N", usage = "maximum records re-driven per second")
+  private double recordsPerSecond = 10;
+
+  @Option(name = "--limit", metaVar = "N", usage = "maximum number of records to re-drive")
+  private int limit;
+
+  @Option(name = "--dry-run", usage = "list the dead letters without publishing them")
+  private boolean dryRun;
+
+  private final DeadLetterRedriver redriver;
+  private final Configuration configuration;
+
+  @Inject
+  RedriveDeadLettersCommand(DeadLetterRedriver redriver, Configuration configuration) {
+    this.redriver = redriver;
+    this.configuration = configuration;
+  }
+
+  @Override
+  protected void run() throws Exception {
+    Optional<String> deadLetterStream =
+        Optional.ofNullable(stream).or(configuration::getDeadLetterStream);
+    if (!deadLetterStream.isPresent()) {
+      throw die("No dead-letter stream configured, use --stream");
+    }
+    if (recordsPerSecond <= 0) {
+      throw die("--rate must be greater than 0");
+    }
+    Optional<Instant> sinceInstant;
+    try {
+      sinceInstant = Optional.ofNullable(since).map(Instant::parse);
+    } catch (DateTimeParseException e) {
+      throw die("Invalid --since timestamp: " + e.getMessage());
+    }
+
+    DeadLetterRedriver.Result result =
+        redriver.redrive(
+            deadLetterStream.get(),
+            sinceInstant,
+            recordsPerSecond,
+            limit,
+            dryRun,
+            line -> {
+              stdout.println(line);
+              stdout.flush();
+            });
+    stdout.println(
+        String.format(
+            "%s %d record(s), skipped %d, failed %d",
+            dryRun ? "Would re-drive" : "Re-driven",
+            result.redriven,
+            result.skipped,
+            result.failed));
+  }
+}
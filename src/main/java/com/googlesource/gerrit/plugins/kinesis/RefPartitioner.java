@@ -0,0 +1,39 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.google.gerrit.server.events.Event;
+import com.google.gerrit.server.events.RefEvent;
+
+/**
+ * Partitions events by ref. Keeps all events of the same ref, including all the events of a change
+ * targeting it, in order. Events not related to a ref are partitioned by project.
+ */
+class RefPartitioner implements EventPartitioner {
+  static final String NAME = "ref";
+
+  private final ProjectPartitioner projectPartitioner = new ProjectPartitioner();
+
+  @Override
+  public String partitionKey(Event event) {
+    if (event instanceof RefEvent) {
+      String refName = ((RefEvent) event).getRefName();
+      if (refName != null) {
+        return String.format("%s:%s", projectPartitioner.partitionKey(event), refName);
+      }
+    }
+    return projectPartitioner.partitionKey(event);
+  }
+}
@@ -0,0 +1,76 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.gerritforge.gerrit.eventbroker.BrokerApi;
+import com.google.gerrit.common.data.GlobalCapability;
+import com.google.gerrit.extensions.annotations.RequiresCapability;
+import com.google.gerrit.extensions.registration.DynamicItem;
+import com.google.gerrit.sshd.CommandMetaData;
+import com.google.gerrit.sshd.SshCommand;
+import com.google.inject.Inject;
+import com.googlesource.gerrit.plugins.kinesis.api.BatchBrokerApi;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import org.kohsuke.args4j.Option;
+
+@RequiresCapability(GlobalCapability.ADMINISTRATE_SERVER)
+@CommandMetaData(
+    name = "replay-events",
+    description = "Consume again the events of a stream, from the beginning or since an instant")
+class ReplayEventsCommand extends SshCommand {
+  @Option(name = "--topic", metaVar = "TOPIC", required = true, usage = "stream to consume again")
+  private String topic;
+
+  @Option(
+      name = "--since",
+      metaVar = "TIMESTAMP",
+      usage = "only consume again the events published after this ISO-8601 instant")
+  private String since;
+
+  private final DynamicItem<BrokerApi> brokerApi;
+
+  @Inject
+  ReplayEventsCommand(DynamicItem<BrokerApi> brokerApi) {
+    this.brokerApi = brokerApi;
+  }
+
+  @Override
+  protected void run() throws Exception {
+    BrokerApi broker = brokerApi.get();
+    if (broker.topicSubscribersWithGroupId().stream()
+        .noneMatch(s -> topic.equals(s.topicSubscriber().topic()))) {
+      throw die("Topic " + topic + " is not consumed by this node");
+    }
+
+    if (since == null) {
+      broker.replayAllEvents(topic);
+      stdout.println("Replaying all the events of topic " + topic);
+      return;
+    }
+
+    Instant sinceInstant;
+    try {
+      sinceInstant = Instant.parse(since);
+    } catch (DateTimeParseException e) {
+      throw die("Invalid --since timestamp: " + e.getMessage());
+    }
+    if (!(broker instanceof BatchBrokerApi)) {
+      throw die("The bound broker cannot replay events since an instant");
+    }
+    ((BatchBrokerApi) broker).replayEventsSince(topic, sinceInstant);
+    stdout.println("Replaying the events of topic " + topic + " since " + sinceInstant);
+  }
+}
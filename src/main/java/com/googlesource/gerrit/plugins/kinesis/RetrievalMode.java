@@ -0,0 +1,27 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+/** How consumers retrieve records from Kinesis shards. */
+enum RetrievalMode {
+  /** Poll shards with {@code GetRecords} calls, sharing the read throughput of each shard. */
+  POLLING,
+
+  /**
+   * Enhanced fan-out: records are pushed over HTTP/2 to a consumer registered for each node, with a
+   * dedicated read throughput.
+   */
+  FAN_OUT
+}
@@ -15,8 +15,10 @@
 package com.googlesource.gerrit.plugins.kinesis;
 
 import static com.googlesource.gerrit.plugins.kinesis.Configuration.consumerLeaseName;
+import static com.googlesource.gerrit.plugins.kinesis.Configuration.multiStreamLeaseName;
 
-import com.google.gerrit.server.events.Event;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.common.Nullable;
 import com.google.inject.Provider;
 import com.google.inject.assistedinject.Assisted;
 import com.google.inject.assistedinject.AssistedInject;
@@ -24,26 +26,44 @@ import software.amazon.awssdk.services.cloudwatch.CloudWatchAsyncClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
 import software.amazon.kinesis.common.ConfigsBuilder;
-import software.amazon.kinesis.common.InitialPositionInStream;
 import software.amazon.kinesis.common.InitialPositionInStreamExtended;
 import software.amazon.kinesis.coordinator.Scheduler;
+import software.amazon.kinesis.leases.exceptions.DependencyException;
+import software.amazon.kinesis.metrics.MetricsConfig;
+import software.amazon.kinesis.metrics.NullMetricsFactory;
+import software.amazon.kinesis.processor.MultiStreamTracker;
+import software.amazon.kinesis.processor.ShardRecordProcessorFactory;
 import software.amazon.kinesis.retrieval.RetrievalConfig;
+import software.amazon.kinesis.retrieval.RetrievalSpecificConfig;
+import software.amazon.kinesis.retrieval.fanout.FanOutConfig;
+import software.amazon.kinesis.retrieval.fanout.FanOutConsumerRegistration;
+import software.amazon.kinesis.retrieval.polling.KinesisDataFetcher;
 import software.amazon.kinesis.retrieval.polling.PollingConfig;
 
 class SchedulerProvider implements Provider<Scheduler> {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
   interface Factory {
     SchedulerProvider create(
         @Assisted("streamName") String streamName,
         @Assisted("groupId") String groupId,
-        boolean fromBeginning,
-        java.util.function.Consumer<Event> messageProcessor);
+        InitialPositionInStreamExtended initialPosition,
+        StreamSubscribers subscribers);
+
+    SchedulerProvider create(
+        @Assisted("groupId") String groupId,
+        MultiStreamTracker streamTracker,
+        ShardRecordProcessorFactory recordProcessorFactory);
   }
 
   private final ConfigsBuilder configsBuilder;
   private final Configuration configuration;
   private final KinesisAsyncClient kinesisAsyncClient;
-  private final String streamName;
-  private final boolean fromBeginning;
+  @Nullable private final String streamName;
+  private final String groupId;
+  @Nullable private final InitialPositionInStreamExtended initialPosition;
+  private final PollingIntervals pollingIntervals;
+  private final KclMetricsFactory kclMetricsFactory;
 
   @AssistedInject
   SchedulerProvider(
@@ -52,14 +72,19 @@ class SchedulerProvider implements Provider<Scheduler> {
       DynamoDbAsyncClient dynamoDbAsyncClient,
       CloudWatchAsyncClient cloudWatchAsyncClient,
       KinesisRecordProcessorFactory.Factory kinesisRecordProcessorFactory,
+      PollingIntervals pollingIntervals,
+      KclMetricsFactory kclMetricsFactory,
       @Assisted("streamName") String streamName,
       @Assisted("groupId") String groupId,
-      @Assisted boolean fromBeginning,
-      @Assisted java.util.function.Consumer<Event> messageProcessor) {
+      @Assisted InitialPositionInStreamExtended initialPosition,
+      @Assisted StreamSubscribers subscribers) {
     this.configuration = configuration;
     this.kinesisAsyncClient = kinesisAsyncClient;
     this.streamName = streamName;
-    this.fromBeginning = fromBeginning;
+    this.groupId = groupId;
+    this.initialPosition = initialPosition;
+    this.pollingIntervals = pollingIntervals;
+    this.kclMetricsFactory = kclMetricsFactory;
     this.configsBuilder =
         new ConfigsBuilder(
             streamName,
@@ -68,27 +93,143 @@ class SchedulerProvider implements Provider<Scheduler> {
             dynamoDbAsyncClient,
             cloudWatchAsyncClient,
             String.format("klc-worker-%s-%s", configuration.getApplicationName(), streamName),
-            kinesisRecordProcessorFactory.create(messageProcessor));
+            kinesisRecordProcessorFactory.create(streamName, groupId, subscribers));
+    configsBuilder
+        .leaseManagementConfig()
+        .failoverTimeMillis(configuration.getConsumerFailoverTimeInMs());
+  }
+
+  /**
+   * Consumes all the streams tracked on behalf of the consumer group through a single scheduler,
+   * sharing a single lease table. The initial position of each stream is set by the tracker.
+   */
+  @AssistedInject
+  SchedulerProvider(
+      Configuration configuration,
+      KinesisAsyncClient kinesisAsyncClient,
+      DynamoDbAsyncClient dynamoDbAsyncClient,
+      CloudWatchAsyncClient cloudWatchAsyncClient,
+      PollingIntervals pollingIntervals,
+      KclMetricsFactory kclMetricsFactory,
+      @Assisted("groupId") String groupId,
+      @Assisted MultiStreamTracker streamTracker,
+      @Assisted ShardRecordProcessorFactory recordProcessorFactory) {
+    this.configuration = configuration;
+    this.kinesisAsyncClient = kinesisAsyncClient;
+    this.streamName = null;
+    this.groupId = groupId;
+    this.initialPosition = null;
+    this.pollingIntervals = pollingIntervals;
+    this.kclMetricsFactory = kclMetricsFactory;
+    this.configsBuilder =
+        new ConfigsBuilder(
+            streamTracker,
+            multiStreamLeaseName(groupId),
+            kinesisAsyncClient,
+            dynamoDbAsyncClient,
+            cloudWatchAsyncClient,
+            String.format("klc-worker-%s-%s", configuration.getApplicationName(), groupId),
+            recordProcessorFactory);
     configsBuilder
         .leaseManagementConfig()
         .failoverTimeMillis(configuration.getConsumerFailoverTimeInMs());
   }
 
+  private boolean isMultiStream() {
+    return streamName == null;
+  }
+
   private RetrievalConfig getRetrievalConfig() {
-    PollingConfig polling =
-        new PollingConfig(streamName, kinesisAsyncClient)
-            .idleTimeBetweenReadsInMillis(configuration.getPollingIntervalMs())
-            .maxRecords(configuration.getMaxRecords());
+    RetrievalSpecificConfig retrievalSpecificConfig =
+        configuration.getRetrievalMode() == RetrievalMode.FAN_OUT
+            ? getFanOutConfig()
+            : getPollingConfig();
     RetrievalConfig retrievalConfig =
-        configsBuilder.retrievalConfig().retrievalSpecificConfig(polling);
-    retrievalConfig.initialPositionInStreamExtended(
-        InitialPositionInStreamExtended.newInitialPosition(
-            fromBeginning
-                ? InitialPositionInStream.TRIM_HORIZON
-                : configuration.getInitialPosition()));
+        configsBuilder.retrievalConfig().retrievalSpecificConfig(retrievalSpecificConfig);
+    if (isMultiStream()) {
+      return retrievalConfig;
+    }
+    retrievalConfig.initialPositionInStreamExtended(initialPosition);
     return retrievalConfig;
   }
 
+  private RetrievalSpecificConfig getPollingConfig() {
+    PollingConfig polling =
+        (isMultiStream()
+                ? new PollingConfig(kinesisAsyncClient)
+                : new PollingConfig(streamName, kinesisAsyncClient))
+            .maxRecords(configuration.getMaxRecords());
+    if (!configuration.isAdaptivePolling()) {
+      return polling.idleTimeBetweenReadsInMillis(configuration.getPollingIntervalMs());
+    }
+
+    // The KCL waits the minimum interval between polls, the data fetcher waits the rest
+    polling.idleTimeBetweenReadsInMillis(configuration.getPollingMinIntervalMs());
+    polling.dataFetcherProvider(
+        fetcherConfig ->
+            new AdaptivePollingDataFetcher(
+                new KinesisDataFetcher(kinesisAsyncClient, fetcherConfig),
+                pollingIntervals.forShard(
+                    fetcherConfig.getStreamIdentifier().streamName(),
+                    fetcherConfig.getShardId())));
+    return polling;
+  }
+
+  /**
+   * Registers, unless already registered, the enhanced fan-out consumer of this node, named after
+   * the group id. Falls back to polling when the consumer cannot be registered, for example because
+   * the stream has already reached its maximum number of registered consumers.
+   *
+   * <p>In multi-stream mode, the consumer is registered by the scheduler for each stream, when
+   * starting to consume it.
+   */
+  private RetrievalSpecificConfig getFanOutConfig() {
+    if (isMultiStream()) {
+      return new FanOutConfig(kinesisAsyncClient)
+          .applicationName(multiStreamLeaseName(groupId))
+          .consumerName(groupId);
+    }
+    FanOutConfig fanOut =
+        new FanOutConfig(kinesisAsyncClient)
+            .streamName(streamName)
+            .applicationName(consumerLeaseName(groupId, streamName))
+            .consumerName(groupId);
+    try {
+      String consumerArn =
+          new FanOutConsumerRegistration(
+                  kinesisAsyncClient,
+                  streamName,
+                  groupId,
+                  fanOut.maxDescribeStreamSummaryRetries(),
+                  fanOut.maxDescribeStreamConsumerRetries(),
+                  fanOut.registerStreamConsumerRetries(),
+                  fanOut.retryBackoffMillis())
+              .getOrCreateStreamConsumerArn();
+      logger.atInfo().log(
+          "Consuming stream %s with enhanced fan-out consumer %s", streamName, consumerArn);
+      return fanOut.consumerArn(consumerArn);
+    } catch (DependencyException | RuntimeException e) {
+      logger.atWarning().withCause(e).log(
+          "Could not register enhanced fan-out consumer %s for stream %s, falling back to polling",
+          groupId, streamName);
+      return getPollingConfig();
+    }
+  }
+
+  private MetricsConfig getMetricsConfig() {
+    MetricsConfig metricsConfig =
+        configsBuilder.metricsConfig().metricsLevel(configuration.getAwsMetricsLevel());
+    switch (configuration.getAwsMetricsPublisher()) {
+      case GERRIT:
+        return metricsConfig.metricsFactory(kclMetricsFactory);
+      case NONE:
+        return metricsConfig.metricsFactory(new NullMetricsFactory());
+      case CLOUDWATCH:
+      default:
+        return metricsConfig;
+    }
+  }
+
   @Override
   public Scheduler get() {
     return new Scheduler(
@@ -96,8 +237,11 @@ class SchedulerProvider implements Provider<Scheduler> {
         configsBuilder.coordinatorConfig(),
         configsBuilder.leaseManagementConfig(),
         configsBuilder.lifecycleConfig(),
-        configsBuilder.metricsConfig(),
-        configsBuilder.processorConfig(),
+        getMetricsConfig(),
+        configsBuilder
+            .processorConfig()
+            // Idle shards are only checkpointed when the processor is called without records
+            .callProcessRecordsEvenForEmptyRecordList(configuration.getCheckpointIdleMs() > 0),
         getRetrievalConfig());
   }
 }
@@ -0,0 +1,167 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+
+import com.amazonaws.services.kinesis.producer.UserRecordResult;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Publishes again, in order, the records stored in the {@link EventSpool}.
+ *
+ * <p>Records are published in batches: a record is removed from the spool only when it, and all
+ * the records before it, have been published. When publishing fails, draining stops until the
+ * next interval, so that a Kinesis outage does not turn into a busy loop.
+ *
+ * <p>Spooled records are handed over to the producer within the limits of the {@link
+ * InFlightLimiter}, like any other record: once they are reached, draining stops until the next
+ * interval as well.
+ */
+@Singleton
+class SpoolDrainer implements LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final EventSpool spool;
+  private final RecordProducer recordProducer;
+  private final InFlightLimiter inFlightLimiter;
+  private final Configuration configuration;
+  private final Counter0 drainedRecords;
+  private ScheduledExecutorService executor;
+
+  @Inject
+  SpoolDrainer(
+      EventSpool spool,
+      RecordProducer recordProducer,
+      InFlightLimiter inFlightLimiter,
+      Configuration configuration,
+      MetricMaker metricMaker) {
+    this.spool = spool;
+    this.recordProducer = recordProducer;
+    this.inFlightLimiter = inFlightLimiter;
+    this.configuration = configuration;
+    this.drainedRecords =
+        metricMaker.newCounter(
+            "spool/drained_records",
+            new Description("Records published again from the spool")
+                .setRate()
+                .setUnit("records"));
+  }
+
+  @Override
+  public void start() {
+    if (!spool.isEnabled()) {
+      return;
+    }
+
+    try {
+      spool.open();
+    } catch (IOException e) {
+      logger.atSevere().withCause(e).log(
+          "Could not open the spool: records that cannot be published will be lost");
+      return;
+    }
+
+    long drainIntervalMs = configuration.getSpoolDrainIntervalMs();
+    executor =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("kinesis-spool-drainer-%d").build());
+    executor.scheduleWithFixedDelay(
+        this::drain, drainIntervalMs, drainIntervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      try {
+        executor.awaitTermination(configuration.getShutdownTimeoutMs(), TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      executor = null;
+    }
+    spool.close();
+  }
+
+  void drain() {
+    List<SpooledRecord> batch;
+    while (!(batch = spool.peek(configuration.getSpoolDrainBatchSize())).isEmpty()) {
+      int published = publish(batch);
+      spool.remove(published);
+      drainedRecords.incrementBy(published);
+      if (published < batch.size()) {
+        return;
+      }
+      logger.atFine().log(
+          "Published %d records from the spool, %d left", published, spool.depth());
+    }
+  }
+
+  /** Publishes the records, returning how many of them, from the first one, were published. */
+  private int publish(List<SpooledRecord> batch) {
+    List<ListenableFuture<UserRecordResult>> results = new ArrayList<>(batch.size());
+    int published = 0;
+    try {
+      for (SpooledRecord record : batch) {
+        int recordSize = record.data().remaining();
+        if (!inFlightLimiter.tryAcquire(recordSize)) {
+          break;
+        }
+        ListenableFuture<UserRecordResult> result;
+        try {
+          result =
+              recordProducer.addUserRecord(
+                  record.streamName(), record.partitionKey(), record.data());
+        } catch (RuntimeException e) {
+          inFlightLimiter.release(recordSize);
+          throw e;
+        }
+        result.addListener(() -> inFlightLimiter.release(recordSize), directExecutor());
+        results.add(result);
+      }
+
+      for (ListenableFuture<UserRecordResult> result : results) {
+        if (!result.get(configuration.getPublishTimeoutMs(), TimeUnit.MILLISECONDS)
+            .isSuccessful()) {
+          break;
+        }
+        published++;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException | TimeoutException | RuntimeException e) {
+      logger.atWarning().atMostEvery(1, TimeUnit.MINUTES).withCause(e).log(
+          "Could not publish records from the spool, %d left", spool.depth() - published);
+    }
+    return published;
+  }
+}
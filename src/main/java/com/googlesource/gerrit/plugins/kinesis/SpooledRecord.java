@@ -0,0 +1,47 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import java.nio.ByteBuffer;
+
+/** A record stored in the {@link EventSpool}, waiting to be published again. */
+class SpooledRecord {
+  private final String streamName;
+  private final String partitionKey;
+  private final ByteBuffer data;
+
+  SpooledRecord(String streamName, String partitionKey, ByteBuffer data) {
+    this.streamName = streamName;
+    this.partitionKey = partitionKey;
+    this.data = data;
+  }
+
+  String streamName() {
+    return streamName;
+  }
+
+  String partitionKey() {
+    return partitionKey;
+  }
+
+  /** The encoded record, as it would have been handed over to the producer. */
+  ByteBuffer data() {
+    return data.duplicate();
+  }
+
+  int size() {
+    return data.remaining();
+  }
+}
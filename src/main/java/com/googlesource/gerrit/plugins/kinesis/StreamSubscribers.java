@@ -0,0 +1,144 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.server.events.Event;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * The subscribers of a stream within a consumer group, sharing the scheduler consuming the stream
+ * on their behalf: each record is retrieved and decoded once, then delivered to every subscriber
+ * accepting its type.
+ *
+ * <p>Subscribers can be added and removed while the stream is consumed.
+ */
+class StreamSubscribers {
+
+  /** A subscriber, along with the event types it accepts. */
+  static class Subscriber {
+    private final Consumer<Event> consumer;
+    private final EventTypeMatcher acceptedTypes;
+
+    private Subscriber(Consumer<Event> consumer) {
+      this.consumer = consumer;
+      this.acceptedTypes =
+          EventTypeMatcher.of(
+              consumer instanceof BatchEventConsumer
+                  ? ((BatchEventConsumer) consumer).batchConsumer()
+                  : consumer);
+    }
+
+    Consumer<Event> consumer() {
+      return consumer;
+    }
+
+    boolean isBatch() {
+      return consumer instanceof BatchEventConsumer;
+    }
+
+    boolean accepts(Event event) {
+      return acceptedTypes.matches(event.getType());
+    }
+
+    void accept(Event event) {
+      consumer.accept(event);
+    }
+
+    void acceptBatch(List<Event> events) {
+      ((BatchEventConsumer) consumer).acceptBatch(events);
+    }
+
+    /**
+     * @return whether the subscriber is the consumer, or the batch consumer, passed to the broker
+     */
+    boolean is(Consumer<?> subscriber) {
+      return consumer == subscriber
+          || (isBatch() && ((BatchEventConsumer) consumer).batchConsumer() == subscriber);
+    }
+  }
+
+  // Replaced, never modified, on each addition or removal: readers get a snapshot without copying
+  private volatile ImmutableList<Subscriber> subscribers = ImmutableList.of();
+  private volatile EventTypeMatcher acceptedTypes = EventTypeMatcher.ALL;
+  private volatile boolean hasBatchSubscribers;
+
+  static StreamSubscribers of(Consumer<Event> consumer) {
+    StreamSubscribers subscribers = new StreamSubscribers();
+    subscribers.add(consumer);
+    return subscribers;
+  }
+
+  synchronized void add(Consumer<Event> consumer) {
+    subscribers =
+        ImmutableList.<Subscriber>builder()
+            .addAll(subscribers)
+            .add(new Subscriber(consumer))
+            .build();
+    updated();
+  }
+
+  /**
+   * Removes the subscriber, identified by the consumer, or the batch consumer, passed to the
+   * broker.
+   *
+   * @return whether the subscriber has been removed
+   */
+  synchronized boolean remove(Consumer<?> subscriber) {
+    ImmutableList<Subscriber> remaining =
+        subscribers.stream()
+            .filter(s -> !s.is(subscriber))
+            .collect(ImmutableList.toImmutableList());
+    boolean removed = remaining.size() < subscribers.size();
+    subscribers = remaining;
+    updated();
+    return removed;
+  }
+
+  boolean isEmpty() {
+    return subscribers.isEmpty();
+  }
+
+  /** @return the subscribers, unaffected by later additions or removals */
+  List<Subscriber> subscribers() {
+    return subscribers;
+  }
+
+  List<Consumer<Event>> consumers() {
+    return subscribers.stream().map(Subscriber::consumer).collect(Collectors.toList());
+  }
+
+  /** @return the event types accepted by any of the subscribers */
+  EventTypeMatcher acceptedTypes() {
+    return acceptedTypes;
+  }
+
+  /**
+   * Records of streams with batch subscribers are processed in batches, in the thread retrieving
+   * them, so that each batch subscriber gets all the events of a retrieval at once.
+   */
+  boolean hasBatchSubscribers() {
+    return hasBatchSubscribers;
+  }
+
+  private void updated() {
+    acceptedTypes =
+        EventTypeMatcher.anyOf(
+            subscribers.stream().map(s -> s.acceptedTypes).collect(Collectors.toList()));
+    hasBatchSubscribers = subscribers.stream().anyMatch(Subscriber::isBatch);
+  }
+}
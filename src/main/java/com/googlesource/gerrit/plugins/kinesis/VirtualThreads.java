@@ -0,0 +1,59 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.server.logging.LoggingContextAwareExecutorService;
+import java.lang.reflect.Method;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates executors running each task in a new virtual thread, looked up reflectively since the
+ * plugin is built for JVMs that predate them.
+ */
+class VirtualThreads {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  /**
+   * @param namePrefix the prefix of the names of the threads, followed by a counter
+   * @return an executor running each task in a new virtual thread, empty when the JVM does not
+   *     support virtual threads
+   */
+  static Optional<ExecutorService> newThreadPerTaskExecutor(String namePrefix) {
+    try {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder =
+          builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+      ThreadFactory threadFactory =
+          (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+      Method newThreadPerTaskExecutor =
+          Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+      return Optional.of(
+          new LoggingContextAwareExecutorService(
+              (ExecutorService) newThreadPerTaskExecutor.invoke(null, threadFactory)));
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      logger.atWarning().log(
+          "Virtual threads are not supported by this JVM (%s), using platform threads for %s",
+          System.getProperty("java.version"), namePrefix);
+      return Optional.empty();
+    }
+  }
+
+  private VirtualThreads() {}
+}
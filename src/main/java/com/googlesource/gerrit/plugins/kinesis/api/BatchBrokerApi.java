@@ -0,0 +1,73 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis.api;
+
+import com.gerritforge.gerrit.eventbroker.BrokerApi;
+import com.google.gerrit.server.events.Event;
+import java.time.Instant;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A {@link BrokerApi} able to deliver the events consumed from a stream in batches, and to
+ * disconnect its subscribers one by one.
+ *
+ * <p>Each batch holds the events of one retrieval from a shard, in shard order, and is delivered
+ * within a single request context. Subscribers can check whether the bound {@link BrokerApi}
+ * implements this interface, and fall back to {@link BrokerApi#receiveAsync(String, Consumer)}
+ * otherwise.
+ *
+ * <p>This interface belongs to the {@code events-aws-kinesis-api} library, which is installed in
+ * the {@code lib} directory of the Gerrit site, as the events-broker is, so that subscribers in
+ * other plugins share it with this plugin.
+ */
+public interface BatchBrokerApi extends BrokerApi {
+
+  /**
+   * Receives the events of the stream in batches, as the member of the default consumer group.
+   *
+   * @param topic the stream to consume
+   * @param batchConsumer consumes the events of each batch
+   */
+  void receiveBatchAsync(String topic, Consumer<List<Event>> batchConsumer);
+
+  /**
+   * Receives the events of the stream in batches, as a member of the consumer group.
+   *
+   * @param topic the stream to consume
+   * @param groupId the consumer group
+   * @param batchConsumer consumes the events of each batch
+   */
+  void receiveBatchAsync(String topic, String groupId, Consumer<List<Event>> batchConsumer);
+
+  /**
+   * Disconnects a single subscriber of the stream, leaving the other subscribers of the consumer
+   * group connected. The stream is no longer consumed once its last subscriber is disconnected.
+   *
+   * @param topic the stream consumed
+   * @param groupId the consumer group
+   * @param subscriber the consumer, or batch consumer, passed when subscribing
+   */
+  void disconnect(String topic, String groupId, Consumer<?> subscriber);
+
+  /**
+   * Replays the events added to the stream since the timestamp, rather than all the events retained
+   * by the stream as {@link BrokerApi#replayAllEvents(String)} does.
+   *
+   * @param topic the stream to replay
+   * @param since the time of the first event to replay
+   */
+  void replayEventsSince(String topic, Instant since);
+}
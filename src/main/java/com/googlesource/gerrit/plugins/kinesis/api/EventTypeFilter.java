@@ -0,0 +1,33 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis.api;
+
+import java.util.Set;
+
+/**
+ * Implemented by the consumers passed to the broker that only want some event types.
+ *
+ * <p>The type of the records consumed on their behalf is read before deserializing them, so that
+ * records of other types are skipped as cheaply as possible. Consumers not implementing this
+ * interface receive events of all types.
+ *
+ * <p>Consumers of other plugins can only implement it when the {@code events-aws-kinesis-api}
+ * library is installed in the {@code lib} directory of the Gerrit site.
+ */
+public interface EventTypeFilter {
+
+  /** @return the types of the events to deliver to the consumer. */
+  Set<String> acceptedEventTypes();
+}
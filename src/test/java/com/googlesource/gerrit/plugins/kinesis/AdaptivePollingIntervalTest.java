@@ -0,0 +1,92 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class AdaptivePollingIntervalTest {
+  private static final long MIN_MS = 200L;
+  private static final long BASE_MS = 1000L;
+  private static final long MAX_MS = 10000L;
+  private static final int MAX_RECORDS = 100;
+
+  private AdaptivePollingInterval objectUnderTest;
+
+  @Before
+  public void setup() {
+    objectUnderTest = new AdaptivePollingInterval(MIN_MS, BASE_MS, MAX_MS, MAX_RECORDS);
+  }
+
+  @Test
+  public void shouldStartFromTheBaseInterval() {
+    assertThat(objectUnderTest.get()).isEqualTo(BASE_MS);
+  }
+
+  @Test
+  public void shouldDropToTheMinimumIntervalWhenBatchIsFull() {
+    objectUnderTest.update(MAX_RECORDS, 0L);
+
+    assertThat(objectUnderTest.get()).isEqualTo(MIN_MS);
+  }
+
+  @Test
+  public void shouldDropToTheMinimumIntervalWhenFallingBehind() {
+    objectUnderTest.update(1, 5000L);
+
+    assertThat(objectUnderTest.get()).isEqualTo(MIN_MS);
+  }
+
+  @Test
+  public void shouldKeepTheIntervalWhenCatchingUp() {
+    objectUnderTest.update(1, 5000L);
+    objectUnderTest.update(1, 4000L);
+
+    assertThat(objectUnderTest.get()).isEqualTo(MIN_MS);
+  }
+
+  @Test
+  public void shouldBackOffExponentiallyUpToTheMaximumWhenIdle() {
+    objectUnderTest.update(0, 0L);
+    assertThat(objectUnderTest.get()).isEqualTo(2 * BASE_MS);
+
+    objectUnderTest.update(0, 0L);
+    assertThat(objectUnderTest.get()).isEqualTo(4 * BASE_MS);
+
+    for (int i = 0; i < 10; i++) {
+      objectUnderTest.update(0, null);
+    }
+    assertThat(objectUnderTest.get()).isEqualTo(MAX_MS);
+  }
+
+  @Test
+  public void shouldBackOffWhenThrottled() {
+    objectUnderTest.throttled();
+
+    assertThat(objectUnderTest.get()).isEqualTo(2 * BASE_MS);
+  }
+
+  @Test
+  public void shouldReturnToTheBaseIntervalWhenRecordsArriveAfterIdling() {
+    objectUnderTest.update(0, 0L);
+    objectUnderTest.update(0, 0L);
+
+    objectUnderTest.update(1, 0L);
+
+    assertThat(objectUnderTest.get()).isEqualTo(BASE_MS);
+  }
+}
@@ -0,0 +1,84 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+public class CheckpointPolicyTest {
+  private static final long START_MS = 1000000L;
+  private static final long INTERVAL_MS = 300000L;
+
+  @Test
+  public void shouldBeDueWhenIntervalIsExpired() {
+    CheckpointPolicy policy = new CheckpointPolicy(INTERVAL_MS, 0, 0, 0, START_MS);
+
+    assertThat(policy.isDue(START_MS + INTERVAL_MS - 1)).isFalse();
+    assertThat(policy.isDue(START_MS + INTERVAL_MS)).isTrue();
+  }
+
+  @Test
+  public void shouldNotBeDueWhenIntervalIsDisabled() {
+    CheckpointPolicy policy = new CheckpointPolicy(0, 100, 0, 0, START_MS);
+
+    policy.consumed(1, 10, START_MS);
+    assertThat(policy.isDue(START_MS + INTERVAL_MS)).isFalse();
+  }
+
+  @Test
+  public void shouldBeDueAfterMaxRecords() {
+    CheckpointPolicy policy = new CheckpointPolicy(INTERVAL_MS, 100, 0, 0, START_MS);
+
+    policy.consumed(99, 1000, START_MS);
+    assertThat(policy.isDue(START_MS)).isFalse();
+
+    policy.consumed(1, 10, START_MS);
+    assertThat(policy.isDue(START_MS)).isTrue();
+  }
+
+  @Test
+  public void shouldBeDueAfterMaxBytes() {
+    CheckpointPolicy policy = new CheckpointPolicy(INTERVAL_MS, 0, 1024, 0, START_MS);
+
+    policy.consumed(1, 1023, START_MS);
+    assertThat(policy.isDue(START_MS)).isFalse();
+
+    policy.consumed(1, 1, START_MS);
+    assertThat(policy.isDue(START_MS)).isTrue();
+  }
+
+  @Test
+  public void shouldBeDueWhenIdleAfterConsumingRecords() {
+    CheckpointPolicy policy = new CheckpointPolicy(INTERVAL_MS, 0, 0, 5000, START_MS);
+    assertThat(policy.isDue(START_MS + 5000)).isFalse();
+
+    policy.consumed(1, 10, START_MS + 1000);
+    policy.consumed(0, 0, START_MS + 5000);
+    assertThat(policy.isDue(START_MS + 5999)).isFalse();
+    assertThat(policy.isDue(START_MS + 6000)).isTrue();
+  }
+
+  @Test
+  public void shouldResetProgressWhenCheckpointed() {
+    CheckpointPolicy policy = new CheckpointPolicy(INTERVAL_MS, 100, 0, 5000, START_MS);
+    policy.consumed(100, 1000, START_MS);
+
+    policy.checkpointed(START_MS);
+
+    assertThat(policy.isDue(START_MS + 10000)).isFalse();
+    assertThat(policy.isDue(START_MS + INTERVAL_MS)).isTrue();
+  }
+}
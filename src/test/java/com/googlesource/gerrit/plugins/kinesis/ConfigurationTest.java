@@ -17,6 +17,7 @@ package com.googlesource.gerrit.plugins.kinesis;
 import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.Mockito.when;
 
+import com.google.common.collect.ImmutableList;
 import com.google.gerrit.server.config.PluginConfig;
 import com.google.gerrit.server.config.PluginConfigFactory;
 import java.util.Optional;
@@ -72,6 +73,40 @@ public class ConfigurationTest {
     assertThat(configuration.getAwsLibLogLevel()).isEqualTo(Level.WARN);
   }
 
+  @Test
+  public void shouldFallBackToBlockingWhenSpoolingWithoutSpool() {
+    pluginConfig.setString("publishBackpressurePolicy", "spool");
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+
+    assertThat(configuration.getPublishBackpressurePolicy()).isEqualTo(BackpressurePolicy.BLOCK);
+  }
+
+  @Test
+  public void shouldRaisePollingMinIntervalToOneMillisecond() {
+    pluginConfig.setLong("pollingMinIntervalMs", 0L);
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+
+    assertThat(configuration.getPollingMinIntervalMs()).isEqualTo(1L);
+  }
+
+  @Test
+  public void shouldSpoolWhenSpoolIsEnabled() {
+    pluginConfig.setString("publishBackpressurePolicy", "spool");
+    pluginConfig.setBoolean("spoolEnabled", true);
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+
+    assertThat(configuration.getPublishBackpressurePolicy()).isEqualTo(BackpressurePolicy.SPOOL);
+  }
+
   @Test
   public void shouldDefaultToAsynchronousPublishing() {
     when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
@@ -136,4 +171,51 @@ public class ConfigurationTest {
     Optional<String> profileName = configuration.getAwsConfigurationProfileName();
     assertThat(profileName.isPresent()).isFalse();
   }
+
+  @Test
+  public void shouldDefaultToTypePartitioner() {
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+
+    assertThat(configuration.getPartitioner()).isEqualTo(TypePartitioner.NAME);
+    assertThat(configuration.getStreamPartitioners()).isEmpty();
+  }
+
+  @Test
+  public void shouldConfigurePartitionerPerStream() {
+    pluginConfig.setString("partitioner", "project");
+    pluginConfig.setStringList(
+        "streamPartitioner", ImmutableList.of("gerrit_index:change", "invalid", "gerrit:ref"));
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+
+    assertThat(configuration.getPartitioner()).isEqualTo("project");
+    assertThat(configuration.getStreamPartitioners())
+        .containsExactly("gerrit_index", "change", "gerrit", "ref");
+  }
+
+  @Test
+  public void shouldDefaultToPollingRetrieval() {
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+
+    assertThat(configuration.getRetrievalMode()).isEqualTo(RetrievalMode.POLLING);
+  }
+
+  @Test
+  public void shouldConfigureFanOutRetrieval() {
+    pluginConfig.setString("retrievalMode", "fan_out");
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+
+    assertThat(configuration.getRetrievalMode()).isEqualTo(RetrievalMode.FAN_OUT);
+  }
 }
@@ -0,0 +1,359 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.util.concurrent.Futures;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.awssdk.services.kinesis.model.GetRecordsRequest;
+import software.amazon.awssdk.services.kinesis.model.GetRecordsResponse;
+import software.amazon.awssdk.services.kinesis.model.GetShardIteratorRequest;
+import software.amazon.awssdk.services.kinesis.model.GetShardIteratorResponse;
+import software.amazon.awssdk.services.kinesis.model.ListShardsRequest;
+import software.amazon.awssdk.services.kinesis.model.ListShardsResponse;
+import software.amazon.awssdk.services.kinesis.model.Record;
+import software.amazon.awssdk.services.kinesis.model.Shard;
+import software.amazon.awssdk.services.kinesis.model.ShardIteratorType;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DeadLetterRedriverTest {
+  private static final String DEAD_LETTER_STREAM = "dead-letters";
+  private static final String SOURCE_STREAM = "gerrit";
+  private static final double RATE = 1000;
+
+  @Mock KinesisAsyncClient kinesisClient;
+  @Mock RecordProducer producer;
+  @Mock Configuration configuration;
+
+  private final Map<String, GetRecordsResponse> responsesByIterator = new HashMap<>();
+  private final List<String> progress = new ArrayList<>();
+  private DeadLetterRedriver objectUnderTest;
+
+  @Before
+  public void setup() {
+    when(configuration.getPublishTimeoutMs()).thenReturn(1000L);
+    objectUnderTest = new DeadLetterRedriver(kinesisClient, producer, configuration);
+  }
+
+  @Test
+  public void shouldRedriveDeadLettersOfEveryShardToTheirSourceStream() throws Exception {
+    givenShards("shard-0", "shard-1");
+    givenRecords("shard-0", deadLetter("1", "pk-1", "first"));
+    givenRecords("shard-1", deadLetter("2", "pk-2", "second"));
+    givenProducerSucceeds();
+
+    DeadLetterRedriver.Result result = redrive(Optional.empty(), 0, false);
+
+    assertThat(result.redriven).isEqualTo(2);
+    assertThat(result.skipped).isEqualTo(0);
+    assertThat(result.failed).isEqualTo(0);
+    ArgumentCaptor<ByteBuffer> payloads = ArgumentCaptor.forClass(ByteBuffer.class);
+    verify(producer).addUserRecord(eq(SOURCE_STREAM), eq("pk-1"), payloads.capture());
+    verify(producer).addUserRecord(eq(SOURCE_STREAM), eq("pk-2"), payloads.capture());
+    assertThat(
+            payloads.getAllValues().stream()
+                .map(b -> UTF_8.decode(b).toString())
+                .collect(Collectors.toList()))
+        .containsExactly("first", "second")
+        .inOrder();
+  }
+
+  @Test
+  public void shouldListShardsAcrossPages() throws Exception {
+    when(kinesisClient.listShards(any(ListShardsRequest.class)))
+        .thenReturn(
+            CompletableFuture.completedFuture(
+                ListShardsResponse.builder().shards(shard("shard-0")).nextToken("next").build()))
+        .thenReturn(
+            CompletableFuture.completedFuture(
+                ListShardsResponse.builder().shards(shard("shard-1")).build()));
+    givenShardIterators();
+    givenRecords("shard-0");
+    givenRecords("shard-1");
+
+    redrive(Optional.empty(), 0, false);
+
+    ArgumentCaptor<ListShardsRequest> requests = ArgumentCaptor.forClass(ListShardsRequest.class);
+    verify(kinesisClient, times(2)).listShards(requests.capture());
+    assertThat(requests.getAllValues().get(0).streamName()).isEqualTo(DEAD_LETTER_STREAM);
+    assertThat(requests.getAllValues().get(1).nextToken()).isEqualTo("next");
+    assertThat(
+            shardIteratorRequests(2).stream()
+                .map(GetShardIteratorRequest::shardId)
+                .collect(Collectors.toList()))
+        .containsExactly("shard-0", "shard-1")
+        .inOrder();
+  }
+
+  @Test
+  public void shouldReadShardsFromTheBeginningByDefault() throws Exception {
+    givenShards("shard-0");
+    givenRecords("shard-0");
+
+    redrive(Optional.empty(), 0, false);
+
+    GetShardIteratorRequest request = shardIteratorRequests(1).get(0);
+    assertThat(request.streamName()).isEqualTo(DEAD_LETTER_STREAM);
+    assertThat(request.shardIteratorType()).isEqualTo(ShardIteratorType.TRIM_HORIZON);
+    assertThat(request.timestamp()).isNull();
+  }
+
+  @Test
+  public void shouldReadShardsFromTheSinceInstant() throws Exception {
+    Instant since = Instant.parse("2021-06-01T10:15:30Z");
+    givenShards("shard-0");
+    givenRecords("shard-0");
+
+    redrive(Optional.of(since), 0, false);
+
+    GetShardIteratorRequest request = shardIteratorRequests(1).get(0);
+    assertThat(request.shardIteratorType()).isEqualTo(ShardIteratorType.AT_TIMESTAMP);
+    assertThat(request.timestamp()).isEqualTo(since);
+  }
+
+  @Test
+  public void shouldFollowTheShardUntilCaughtUpWithTheLatestRecord() throws Exception {
+    givenShards("shard-0");
+    givenResponse("it-shard-0", GetRecordsResponse.builder(), "it-1", 1000L);
+    givenResponse(
+        "it-1",
+        GetRecordsResponse.builder().records(deadLetter("1", "pk-1", "first")),
+        "it-2",
+        0L);
+    givenResponse("it-2", GetRecordsResponse.builder(), "it-3", 0L);
+    givenProducerSucceeds();
+
+    DeadLetterRedriver.Result result = redrive(Optional.empty(), 0, false);
+
+    assertThat(result.redriven).isEqualTo(1);
+    ArgumentCaptor<GetRecordsRequest> requests = ArgumentCaptor.forClass(GetRecordsRequest.class);
+    verify(kinesisClient, times(3)).getRecords(requests.capture());
+    assertThat(
+            requests.getAllValues().stream()
+                .map(GetRecordsRequest::shardIterator)
+                .collect(Collectors.toList()))
+        .containsExactly("it-shard-0", "it-1", "it-2")
+        .inOrder();
+  }
+
+  @Test
+  public void shouldStopReadingAClosedShard() throws Exception {
+    givenShards("shard-0");
+    givenResponse(
+        "it-shard-0",
+        GetRecordsResponse.builder().records(deadLetter("1", "pk-1", "first")),
+        null,
+        1000L);
+    givenProducerSucceeds();
+
+    DeadLetterRedriver.Result result = redrive(Optional.empty(), 0, false);
+
+    assertThat(result.redriven).isEqualTo(1);
+    verify(kinesisClient, times(1)).getRecords(any(GetRecordsRequest.class));
+  }
+
+  @Test
+  public void shouldStopOnceTheLimitIsReached() throws Exception {
+    givenShards("shard-0", "shard-1");
+    givenRecords(
+        "shard-0",
+        deadLetter("1", "pk-1", "first"),
+        deadLetter("2", "pk-2", "second"),
+        deadLetter("3", "pk-3", "third"));
+    givenProducerSucceeds();
+
+    DeadLetterRedriver.Result result = redrive(Optional.empty(), 2, false);
+
+    assertThat(result.redriven).isEqualTo(2);
+    verify(producer, times(2)).addUserRecord(anyString(), anyString(), any(ByteBuffer.class));
+    verify(producer, never()).addUserRecord(anyString(), eq("pk-3"), any(ByteBuffer.class));
+    verify(kinesisClient, never())
+        .getRecords(GetRecordsRequest.builder().shardIterator("it-shard-1").build());
+  }
+
+  @Test
+  public void shouldCountFailuresTowardsTheLimit() throws Exception {
+    givenShards("shard-0");
+    givenRecords(
+        "shard-0", deadLetter("1", "pk-1", "first"), deadLetter("2", "pk-2", "second"));
+    when(producer.addUserRecord(anyString(), anyString(), any(ByteBuffer.class)))
+        .thenReturn(Futures.immediateFailedFuture(new IllegalStateException("failure")));
+
+    DeadLetterRedriver.Result result = redrive(Optional.empty(), 1, false);
+
+    assertThat(result.redriven).isEqualTo(0);
+    assertThat(result.failed).isEqualTo(1);
+    verify(producer, times(1)).addUserRecord(anyString(), anyString(), any(ByteBuffer.class));
+  }
+
+  @Test
+  public void shouldOnlyReportDeadLettersOnDryRun() throws Exception {
+    givenShards("shard-0");
+    givenRecords(
+        "shard-0", deadLetter("1", "pk-1", "first"), deadLetter("2", "pk-2", "second"));
+
+    DeadLetterRedriver.Result result = redrive(Optional.empty(), 0, true);
+
+    assertThat(result.redriven).isEqualTo(2);
+    verify(producer, never()).addUserRecord(anyString(), anyString(), any(ByteBuffer.class));
+    assertThat(progress)
+        .containsExactly(
+            "Would re-drive record 1 of gerrit [PK: pk-1]",
+            "Would re-drive record 2 of gerrit [PK: pk-2]")
+        .inOrder();
+  }
+
+  @Test
+  public void shouldSkipMalformedDeadLetters() throws Exception {
+    givenShards("shard-0");
+    givenRecords(
+        "shard-0",
+        record("10", "not a dead letter"),
+        record("11", "{\"sourceStream\":\"" + SOURCE_STREAM + "\",\"sequenceNumber\":\"1\"}"),
+        deadLetter("2", "pk-2", "second"));
+    givenProducerSucceeds();
+
+    DeadLetterRedriver.Result result = redrive(Optional.empty(), 0, false);
+
+    assertThat(result.skipped).isEqualTo(2);
+    assertThat(result.redriven).isEqualTo(1);
+    verify(producer, times(1)).addUserRecord(eq(SOURCE_STREAM), eq("pk-2"), any(ByteBuffer.class));
+  }
+
+  @Test
+  public void shouldUseTheSequenceNumberWhenThePartitionKeyIsMissing() throws Exception {
+    givenShards("shard-0");
+    givenRecords("shard-0", deadLetter("1", null, "first"));
+    givenProducerSucceeds();
+
+    redrive(Optional.empty(), 0, false);
+
+    verify(producer).addUserRecord(eq(SOURCE_STREAM), eq("1"), any(ByteBuffer.class));
+  }
+
+  private DeadLetterRedriver.Result redrive(Optional<Instant> since, int limit, boolean dryRun)
+      throws Exception {
+    return objectUnderTest.redrive(DEAD_LETTER_STREAM, since, RATE, limit, dryRun, progress::add);
+  }
+
+  private void givenShards(String... shardIds) {
+    when(kinesisClient.listShards(any(ListShardsRequest.class)))
+        .thenReturn(
+            CompletableFuture.completedFuture(
+                ListShardsResponse.builder()
+                    .shards(Arrays.stream(shardIds).map(this::shard).toArray(Shard[]::new))
+                    .build()));
+    givenShardIterators();
+  }
+
+  private void givenShardIterators() {
+    when(kinesisClient.getShardIterator(any(GetShardIteratorRequest.class)))
+        .thenAnswer(
+            i ->
+                CompletableFuture.completedFuture(
+                    GetShardIteratorResponse.builder()
+                        .shardIterator(
+                            "it-" + i.<GetShardIteratorRequest>getArgument(0).shardId())
+                        .build()));
+    when(kinesisClient.getRecords(any(GetRecordsRequest.class)))
+        .thenAnswer(
+            i ->
+                CompletableFuture.completedFuture(
+                    responsesByIterator.get(i.<GetRecordsRequest>getArgument(0).shardIterator())));
+  }
+
+  /** The shard returns the records, then reports it is caught up with the latest record. */
+  private void givenRecords(String shardId, Record... records) {
+    String iterator = "it-" + shardId;
+    if (records.length == 0) {
+      givenResponse(iterator, GetRecordsResponse.builder(), iterator + "-next", 0L);
+      return;
+    }
+    givenResponse(
+        iterator, GetRecordsResponse.builder().records(records), iterator + "-latest", 0L);
+    givenResponse(iterator + "-latest", GetRecordsResponse.builder(), iterator + "-next", 0L);
+  }
+
+  private void givenResponse(
+      String iterator,
+      GetRecordsResponse.Builder response,
+      String nextIterator,
+      long millisBehindLatest) {
+    responsesByIterator.put(
+        iterator,
+        response.nextShardIterator(nextIterator).millisBehindLatest(millisBehindLatest).build());
+  }
+
+  private void givenProducerSucceeds() {
+    when(producer.addUserRecord(anyString(), anyString(), any(ByteBuffer.class)))
+        .thenReturn(Futures.immediateFuture(null));
+  }
+
+  private List<GetShardIteratorRequest> shardIteratorRequests(int count) {
+    ArgumentCaptor<GetShardIteratorRequest> requests =
+        ArgumentCaptor.forClass(GetShardIteratorRequest.class);
+    verify(kinesisClient, times(count)).getShardIterator(requests.capture());
+    return requests.getAllValues();
+  }
+
+  private Shard shard(String shardId) {
+    return Shard.builder().shardId(shardId).build();
+  }
+
+  private Record deadLetter(String sequenceNumber, String partitionKey, String payload) {
+    DeadLetter deadLetter = new DeadLetter();
+    deadLetter.sourceStream = SOURCE_STREAM;
+    deadLetter.sequenceNumber = sequenceNumber;
+    deadLetter.partitionKey = partitionKey;
+    deadLetter.payload = Base64.getEncoder().encodeToString(payload.getBytes(UTF_8));
+    return record("1" + sequenceNumber, DeadLetterPublisher.GSON.toJson(deadLetter));
+  }
+
+  private Record record(String sequenceNumber, String data) {
+    return Record.builder()
+        .sequenceNumber(sequenceNumber)
+        .partitionKey("dead-letter-pk")
+        .approximateArrivalTimestamp(Instant.now())
+        .data(SdkBytes.fromUtf8String(data))
+        .build();
+  }
+}
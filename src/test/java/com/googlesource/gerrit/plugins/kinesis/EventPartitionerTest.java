@@ -0,0 +1,147 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.base.Suppliers;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.data.RefUpdateAttribute;
+import com.google.gerrit.server.events.ChangeEvent;
+import com.google.gerrit.server.events.Event;
+import com.google.gerrit.server.events.RefUpdatedEvent;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class EventPartitionerTest {
+  private static final int NUMBER_OF_SHARDS = 8;
+  private static final int NUMBER_OF_PROJECTS = 200;
+  private static final int NUMBER_OF_REFS_PER_PROJECT = 10;
+  private static final double MAX_SHARD_LOAD_OVER_MEAN = 1.25;
+
+  @Test
+  public void typePartitionerShouldUseOneShardForEventsOfTheSameType() {
+    int[] shardLoad = shardLoad(new TypePartitioner(), refUpdatedEvents());
+
+    assertThat(Arrays.stream(shardLoad).filter(load -> load > 0).count()).isEqualTo(1);
+  }
+
+  @Test
+  public void projectPartitionerShouldSpreadEventsAcrossShards() {
+    assertEvenlySpread(shardLoad(new ProjectPartitioner(), refUpdatedEvents()));
+  }
+
+  @Test
+  public void refPartitionerShouldSpreadEventsAcrossShards() {
+    assertEvenlySpread(shardLoad(new RefPartitioner(), refUpdatedEvents()));
+  }
+
+  @Test
+  public void hashPartitionerShouldSpreadEventsAcrossShards() {
+    assertEvenlySpread(shardLoad(new HashPartitioner(), refUpdatedEvents()));
+  }
+
+  @Test
+  public void refPartitionerShouldKeepEventsOfTheSameRefTogether() {
+    RefPartitioner partitioner = new RefPartitioner();
+
+    assertThat(partitioner.partitionKey(refUpdatedEvent("project", "refs/heads/master")))
+        .isEqualTo(partitioner.partitionKey(refUpdatedEvent("project", "refs/heads/master")));
+    assertThat(partitioner.partitionKey(refUpdatedEvent("project", "refs/heads/master")))
+        .isNotEqualTo(partitioner.partitionKey(refUpdatedEvent("project", "refs/heads/stable")));
+  }
+
+  @Test
+  public void changePartitionerShouldKeepEventsOfTheSameChangeTogether() {
+    ChangePartitioner partitioner = new ChangePartitioner();
+    String changeId = "I0123456789abcdef0123456789abcdef01234567";
+
+    assertThat(partitioner.partitionKey(changeEvent("project", changeId)))
+        .isEqualTo(partitioner.partitionKey(changeEvent("project", changeId)));
+    assertThat(partitioner.partitionKey(changeEvent("project", changeId)))
+        .isNotEqualTo(partitioner.partitionKey(changeEvent("another-project", changeId)));
+  }
+
+  @Test
+  public void projectPartitionerShouldFallBackToTypeForNonProjectEvents() {
+    Event event = new Event("custom-event") {};
+
+    assertThat(new ProjectPartitioner().partitionKey(event)).isEqualTo("custom-event");
+  }
+
+  private static List<Event> refUpdatedEvents() {
+    List<Event> events = new ArrayList<>();
+    for (int project = 0; project < NUMBER_OF_PROJECTS; project++) {
+      for (int ref = 0; ref < NUMBER_OF_REFS_PER_PROJECT; ref++) {
+        events.add(refUpdatedEvent("project-" + project, "refs/heads/branch-" + ref));
+      }
+    }
+    return events;
+  }
+
+  private static RefUpdatedEvent refUpdatedEvent(String project, String refName) {
+    RefUpdateAttribute refUpdateAttribute = new RefUpdateAttribute();
+    refUpdateAttribute.project = project;
+    refUpdateAttribute.refName = refName;
+    RefUpdatedEvent event = new RefUpdatedEvent();
+    event.refUpdate = Suppliers.ofInstance(refUpdateAttribute);
+    return event;
+  }
+
+  private static ChangeEvent changeEvent(String project, String changeId) {
+    ChangeEvent event = mock(ChangeEvent.class);
+    when(event.getProjectNameKey()).thenReturn(Project.nameKey(project));
+    when(event.getChangeKey()).thenReturn(Change.key(changeId));
+    return event;
+  }
+
+  /**
+   * Maps partition keys to shards the same way Kinesis does for evenly split shards, by the MD5
+   * hash of the key.
+   */
+  private static int[] shardLoad(EventPartitioner partitioner, List<Event> events) {
+    int[] shardLoad = new int[NUMBER_OF_SHARDS];
+    for (Event event : events) {
+      BigInteger hashKey =
+          new BigInteger(1, md5().digest(partitioner.partitionKey(event).getBytes(UTF_8)));
+      int shard = hashKey.multiply(BigInteger.valueOf(NUMBER_OF_SHARDS)).shiftRight(128).intValue();
+      shardLoad[shard]++;
+    }
+    return shardLoad;
+  }
+
+  private static MessageDigest md5() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void assertEvenlySpread(int[] shardLoad) {
+    double meanLoad = (double) Arrays.stream(shardLoad).sum() / shardLoad.length;
+    assertThat(Arrays.stream(shardLoad).max().getAsInt() / meanLoad)
+        .isAtMost(MAX_SHARD_LOAD_OVER_MEAN);
+  }
+}
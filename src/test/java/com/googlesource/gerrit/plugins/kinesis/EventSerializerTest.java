@@ -0,0 +1,93 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.events.EventGsonProvider;
+import com.google.gerrit.server.events.ProjectCreatedEvent;
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+public class EventSerializerTest {
+  private static final int POOL_SIZE = 2;
+  private static final int BUFFER_SIZE = 256;
+
+  private final Gson gson = new EventGsonProvider().get();
+  private final ByteBufferPool pool =
+      new ByteBufferPool(POOL_SIZE, BUFFER_SIZE, new DisabledMetricMaker());
+  private final EventSerializer objectUnderTest =
+      new EventSerializer(gson, pool, EventFormat.JSON);
+
+  @Test
+  public void shouldSerializeEventAsUtf8Json() throws IOException {
+    ProjectCreatedEvent event = new ProjectCreatedEvent();
+    event.projectName = "proj\u00e9ct-\u65e5\u672c-\ud83d\ude00";
+
+    try (PooledRecord record = objectUnderTest.serialize(event)) {
+      assertThat(bytesOf(record.data())).isEqualTo(gson.toJson(event).getBytes(UTF_8));
+    }
+  }
+
+  @Test
+  public void shouldSerializeEventsBiggerThanThePooledBuffers() throws IOException {
+    ProjectCreatedEvent event = new ProjectCreatedEvent();
+    event.projectName = "a-very-long-project-name-".repeat(BUFFER_SIZE);
+
+    try (PooledRecord record = objectUnderTest.serialize(event)) {
+      assertThat(record.size()).isGreaterThan(BUFFER_SIZE);
+      assertThat(bytesOf(record.data())).isEqualTo(gson.toJson(event).getBytes(UTF_8));
+    }
+  }
+
+  @Test
+  public void shouldReturnBuffersToThePool() throws IOException {
+    ProjectCreatedEvent event = new ProjectCreatedEvent();
+    event.projectName = "project";
+
+    PooledRecord record = objectUnderTest.serialize(event);
+    ByteBuffer buffer = record.data();
+    record.close();
+
+    assertThat(pool.available()).isEqualTo(1);
+    try (PooledRecord reused = objectUnderTest.serialize(event)) {
+      assertThat(reused.data()).isSameInstanceAs(buffer);
+    }
+  }
+
+  @Test
+  public void shouldSerializeEventAsCbor() throws IOException {
+    ProjectCreatedEvent event = new ProjectCreatedEvent();
+    event.projectName = "project";
+    event.instanceId = "instance-id";
+    EventSerializer cborSerializer = new EventSerializer(gson, pool, EventFormat.CBOR);
+
+    try (PooledRecord record = cborSerializer.serialize(event)) {
+      assertThat(CborTranscoder.isCbor(record.data())).isTrue();
+      assertThat(CborTranscoder.read(new ByteBufferInputStream(record.data().duplicate())))
+          .isEqualTo(gson.toJsonTree(event));
+    }
+  }
+
+  private static byte[] bytesOf(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,164 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class EventSpoolTest {
+  private static final String STREAM = "stream";
+  private static final int SEGMENT_SIZE = 256;
+  private static final long MAX_SIZE = 4 * SEGMENT_SIZE;
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private Path directory;
+  private EventSpool spool;
+
+  @Before
+  public void setup() throws IOException {
+    directory = temporaryFolder.getRoot().toPath().resolve(EventSpool.SPOOL_DIRECTORY);
+    spool = newSpool();
+  }
+
+  @After
+  public void teardown() {
+    spool.close();
+  }
+
+  @Test
+  public void shouldReturnRecordsInOrder() {
+    assertThat(spool.append(STREAM, "pk-1", data("first"))).isTrue();
+    assertThat(spool.append(STREAM, "pk-2", data("second"))).isTrue();
+
+    List<SpooledRecord> records = spool.peek(10);
+
+    assertThat(records).hasSize(2);
+    assertThat(records.get(0).streamName()).isEqualTo(STREAM);
+    assertThat(records.get(0).partitionKey()).isEqualTo("pk-1");
+    assertThat(text(records.get(0))).isEqualTo("first");
+    assertThat(records.get(1).partitionKey()).isEqualTo("pk-2");
+    assertThat(text(records.get(1))).isEqualTo("second");
+    assertThat(spool.depth()).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldRemoveOldestRecords() {
+    spool.append(STREAM, "pk-1", data("first"));
+    spool.append(STREAM, "pk-2", data("second"));
+
+    spool.remove(1);
+
+    List<SpooledRecord> records = spool.peek(10);
+    assertThat(records).hasSize(1);
+    assertThat(text(records.get(0))).isEqualTo("second");
+    assertThat(spool.depth()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldKeepRecordsAcrossRestarts() throws IOException {
+    spool.append(STREAM, "pk-1", data("first"));
+    spool.append(STREAM, "pk-2", data("second"));
+    spool.remove(1);
+    spool.close();
+
+    spool = newSpool();
+    spool.append(STREAM, "pk-3", data("third"));
+
+    List<SpooledRecord> records = spool.peek(10);
+    assertThat(records).hasSize(2);
+    assertThat(text(records.get(0))).isEqualTo("second");
+    assertThat(text(records.get(1))).isEqualTo("third");
+    assertThat(spool.depth()).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldRollSegmentsAndDeleteDrainedOnes() throws IOException {
+    for (int i = 0; i < 10; i++) {
+      assertThat(spool.append(STREAM, "pk-" + i, data(payload(i)))).isTrue();
+    }
+    assertThat(segments()).isGreaterThan(1L);
+
+    List<SpooledRecord> records = spool.peek(100);
+    assertThat(records).hasSize(10);
+    for (int i = 0; i < 10; i++) {
+      assertThat(text(records.get(i))).isEqualTo(payload(i));
+    }
+
+    spool.remove(10);
+    assertThat(spool.peek(100)).isEmpty();
+    assertThat(segments()).isEqualTo(1L);
+  }
+
+  @Test
+  public void shouldRejectRecordsWhenFull() {
+    int spooled = 0;
+    while (spool.append(STREAM, "pk", data(payload(spooled)))) {
+      spooled++;
+    }
+
+    assertThat(spooled).isGreaterThan(0);
+    assertThat(spool.depth()).isEqualTo(spooled);
+
+    spool.remove(spooled);
+    assertThat(spool.append(STREAM, "pk", data(payload(0)))).isTrue();
+  }
+
+  @Test
+  public void shouldRejectRecordsBiggerThanSegments() {
+    assertThat(spool.append(STREAM, "pk", ByteBuffer.allocate(SEGMENT_SIZE))).isFalse();
+  }
+
+  private EventSpool newSpool() throws IOException {
+    EventSpool eventSpool =
+        new EventSpool(true, directory, SEGMENT_SIZE, MAX_SIZE, new DisabledMetricMaker());
+    eventSpool.open();
+    return eventSpool;
+  }
+
+  private long segments() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.filter(p -> p.toString().endsWith(".seg")).count();
+    }
+  }
+
+  private static String payload(int i) {
+    return String.format("{\"type\":\"event-%02d\",\"padding\":\"%020d\"}", i, i);
+  }
+
+  private static ByteBuffer data(String payload) {
+    return ByteBuffer.wrap(payload.getBytes(UTF_8));
+  }
+
+  private static String text(SpooledRecord record) {
+    ByteBuffer data = record.data();
+    byte[] bytes = new byte[data.remaining()];
+    data.get(bytes);
+    return new String(bytes, UTF_8);
+  }
+}
@@ -0,0 +1,71 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+public class FingerprintCacheTest {
+  private static final long TTL_MS = 1000L;
+  private static final long NOW_MS = 1000000L;
+
+  @Test
+  public void shouldNotAddTheSameFingerprintTwice() {
+    FingerprintCache cache = new FingerprintCache(10, TTL_MS);
+
+    assertThat(cache.add(42L, NOW_MS)).isTrue();
+    assertThat(cache.add(42L, NOW_MS)).isFalse();
+    assertThat(cache.contains(42L, NOW_MS)).isTrue();
+    assertThat(cache.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldExpireFingerprintsAfterTtl() {
+    FingerprintCache cache = new FingerprintCache(10, TTL_MS);
+    cache.add(42L, NOW_MS);
+
+    assertThat(cache.contains(42L, NOW_MS + TTL_MS - 1)).isTrue();
+    assertThat(cache.contains(42L, NOW_MS + TTL_MS)).isFalse();
+    assertThat(cache.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldEvictTheOldestFingerprintsWhenFull() {
+    FingerprintCache cache = new FingerprintCache(3, TTL_MS);
+    for (long fingerprint = 1; fingerprint <= 4; fingerprint++) {
+      cache.add(fingerprint, NOW_MS);
+    }
+
+    assertThat(cache.contains(1L, NOW_MS)).isFalse();
+    assertThat(cache.contains(2L, NOW_MS)).isTrue();
+    assertThat(cache.contains(4L, NOW_MS)).isTrue();
+    assertThat(cache.size()).isEqualTo(3);
+  }
+
+  @Test
+  public void shouldFindCollidingFingerprintsAfterEvictions() {
+    FingerprintCache cache = new FingerprintCache(4, TTL_MS);
+    // Fingerprints sharing the low bits land in the same slot of the index
+    long[] colliding = {1L << 40, 2L << 40, 3L << 40, 4L << 40, 5L << 40, 6L << 40};
+    for (long fingerprint : colliding) {
+      cache.add(fingerprint, NOW_MS);
+    }
+
+    for (int i = 0; i < colliding.length; i++) {
+      assertThat(cache.contains(colliding[i], NOW_MS)).isEqualTo(i >= 2);
+    }
+  }
+}
@@ -0,0 +1,76 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class GroupCommitterTest {
+  private static final String STREAM = "stream";
+  private static final String OTHER_STREAM = "other-stream";
+  private static final long LONG_LINGER_MS = 60000L;
+  private static final long TIMEOUT_MS = 5000L;
+
+  @Mock RecordProducer recordProducer;
+
+  private GroupCommitter objectUnderTest;
+
+  @After
+  public void teardown() {
+    objectUnderTest.stop();
+  }
+
+  @Test
+  public void shouldFlushWhenGroupIsFull() {
+    objectUnderTest = new GroupCommitter(recordProducer, true, 3, LONG_LINGER_MS);
+
+    objectUnderTest.join(STREAM);
+    objectUnderTest.join(STREAM);
+    verify(recordProducer, never()).flush(STREAM);
+
+    objectUnderTest.join(STREAM);
+    verify(recordProducer, times(1)).flush(STREAM);
+  }
+
+  @Test
+  public void shouldFlushWhenLingerExpires() {
+    objectUnderTest = new GroupCommitter(recordProducer, true, 3, 10L);
+
+    objectUnderTest.join(STREAM);
+
+    verify(recordProducer, timeout(TIMEOUT_MS).times(1)).flush(STREAM);
+  }
+
+  @Test
+  public void shouldGroupRecordsPerStream() {
+    objectUnderTest = new GroupCommitter(recordProducer, true, 2, LONG_LINGER_MS);
+
+    objectUnderTest.join(STREAM);
+    objectUnderTest.join(OTHER_STREAM);
+    objectUnderTest.join(STREAM);
+
+    verify(recordProducer, times(1)).flush(STREAM);
+    verify(recordProducer, never()).flush(OTHER_STREAM);
+  }
+}
@@ -0,0 +1,122 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class InFlightLimiterTest {
+  private static final String STREAM = "stream";
+  private static final long TIMEOUT_MS = 5000L;
+
+  private final AtomicLong outstandingRecords = new AtomicLong();
+
+  @Test
+  public void shouldAcceptRecordsWithinLimits() throws Exception {
+    InFlightLimiter limiter = newLimiter(2, 100, BackpressurePolicy.DROP);
+
+    assertThat(limiter.acquire(STREAM, 50)).isTrue();
+    assertThat(limiter.acquire(STREAM, 50)).isTrue();
+  }
+
+  @Test
+  public void shouldDropRecordsOverTheBytesLimit() throws Exception {
+    InFlightLimiter limiter = newLimiter(10, 100, BackpressurePolicy.DROP);
+
+    assertThat(limiter.acquire(STREAM, 60)).isTrue();
+    assertThat(limiter.acquire(STREAM, 60)).isFalse();
+
+    limiter.release(60);
+    assertThat(limiter.acquire(STREAM, 60)).isTrue();
+  }
+
+  @Test
+  public void shouldDropRecordsOverTheOutstandingRecordsLimit() throws Exception {
+    InFlightLimiter limiter = newLimiter(1, 100, BackpressurePolicy.DROP);
+
+    outstandingRecords.set(1);
+    assertThat(limiter.acquire(STREAM, 1)).isFalse();
+  }
+
+  @Test
+  public void shouldAcceptOversizedRecordWhenNothingIsInFlight() throws Exception {
+    InFlightLimiter limiter = newLimiter(10, 100, BackpressurePolicy.DROP);
+
+    assertThat(limiter.acquire(STREAM, 1000)).isTrue();
+  }
+
+  @Test
+  public void shouldBlockUntilRecordsAreReleased() throws Exception {
+    InFlightLimiter limiter = newLimiter(10, 100, BackpressurePolicy.BLOCK);
+    assertThat(limiter.acquire(STREAM, 100)).isTrue();
+
+    CompletableFuture<Boolean> blocked =
+        CompletableFuture.supplyAsync(
+            () -> {
+              try {
+                return limiter.acquire(STREAM, 100);
+              } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+              }
+            });
+    Thread.sleep(100);
+    assertThat(blocked.isDone()).isFalse();
+
+    limiter.release(100);
+    assertThat(blocked.get(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isTrue();
+  }
+
+  @Test
+  public void shouldDropRecordsWhenBlockingTimesOut() throws Exception {
+    InFlightLimiter limiter =
+        new InFlightLimiter(
+            10,
+            100,
+            BackpressurePolicy.BLOCK,
+            50,
+            outstandingRecords::get,
+            new DisabledMetricMaker());
+
+    assertThat(limiter.acquire(STREAM, 100)).isTrue();
+    assertThat(limiter.acquire(STREAM, 100)).isFalse();
+  }
+
+  @Test
+  public void shouldReserveRoomOnlyWithinLimitsWhenTrying() throws Exception {
+    InFlightLimiter limiter = newLimiter(10, 100, BackpressurePolicy.BLOCK);
+
+    assertThat(limiter.tryAcquire(100)).isTrue();
+    assertThat(limiter.tryAcquire(1)).isFalse();
+
+    limiter.release(100);
+    assertThat(limiter.tryAcquire(1)).isTrue();
+    assertThat(limiter.acquire(STREAM, 99)).isTrue();
+  }
+
+  private InFlightLimiter newLimiter(long maxRecords, long maxBytes, BackpressurePolicy policy) {
+    return new InFlightLimiter(
+        maxRecords,
+        maxBytes,
+        policy,
+        TIMEOUT_MS,
+        outstandingRecords::get,
+        new DisabledMetricMaker());
+  }
+}
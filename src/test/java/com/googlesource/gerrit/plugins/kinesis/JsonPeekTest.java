@@ -0,0 +1,113 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+public class JsonPeekTest {
+  private static final byte[] TYPE = "type".getBytes(UTF_8);
+
+  @Test
+  public void shouldFindTopLevelStringField() {
+    ByteBuffer json =
+        json("{\"projectName\":\"foo\",\"type\":\"ref-updated\",\"instanceId\":\"i\"}");
+
+    assertThat(valueOf(json, TYPE)).isEqualTo("ref-updated");
+  }
+
+  @Test
+  public void shouldSkipNestedObjectsArraysAndLiterals() {
+    ByteBuffer json =
+        json(
+            "{ \"refUpdate\": {\"type\": \"nested\", \"a\": [1, {\"b\": \"]}\"}]},\n"
+                + "  \"eventCreatedOn\": 1234, \"ok\": true, \"n\": null,\n"
+                + "  \"type\" : \"ref-updated\" }");
+
+    assertThat(valueOf(json, TYPE)).isEqualTo("ref-updated");
+  }
+
+  @Test
+  public void shouldSkipStringsWithEscapedQuotes() {
+    ByteBuffer json = json("{\"subject\":\"say \\\"type\\\":\\\"x\\\"\",\"type\":\"y\"}");
+
+    assertThat(valueOf(json, TYPE)).isEqualTo("y");
+  }
+
+  @Test
+  public void shouldNotFindMissingField() {
+    assertThat(JsonPeek.findStringField(json("{\"header\":{\"type\":\"x\"}}"), TYPE))
+        .isEqualTo(JsonPeek.NOT_FOUND);
+  }
+
+  @Test
+  public void shouldNotFindNonStringField() {
+    assertThat(JsonPeek.findStringField(json("{\"type\":12}"), TYPE))
+        .isEqualTo(JsonPeek.NOT_FOUND);
+  }
+
+  @Test
+  public void shouldNotFindFieldWithEscapedValue() {
+    assertThat(JsonPeek.findStringField(json("{\"type\":\"a\\u0062\"}"), TYPE))
+        .isEqualTo(JsonPeek.NOT_FOUND);
+  }
+
+  @Test
+  public void shouldNotFindFieldInMalformedPayload() {
+    assertThat(JsonPeek.findStringField(json("[\"type\",\"x\"]"), TYPE))
+        .isEqualTo(JsonPeek.NOT_FOUND);
+    assertThat(JsonPeek.findStringField(json("{\"type\":\"x"), TYPE))
+        .isEqualTo(JsonPeek.NOT_FOUND);
+  }
+
+  @Test
+  public void shouldCompareValueWithoutMatchingPrefixes() {
+    ByteBuffer json = json("{\"type\":\"ref-updated\"}");
+    int start = JsonPeek.findStringField(json, TYPE);
+
+    assertThat(JsonPeek.valueEquals(json, start, "ref-updated".getBytes(UTF_8))).isTrue();
+    assertThat(JsonPeek.valueEquals(json, start, "ref".getBytes(UTF_8))).isFalse();
+    assertThat(JsonPeek.valueEquals(json, start, "ref-updated-2".getBytes(UTF_8))).isFalse();
+  }
+
+  @Test
+  public void shouldNotMoveTheBufferPosition() {
+    ByteBuffer json = json("  {\"type\":\"x\"}");
+    json.position(2);
+
+    JsonPeek.findStringField(json, TYPE);
+
+    assertThat(json.position()).isEqualTo(2);
+  }
+
+  private static ByteBuffer json(String json) {
+    return ByteBuffer.wrap(json.getBytes(UTF_8));
+  }
+
+  private static String valueOf(ByteBuffer json, byte[] field) {
+    int start = JsonPeek.findStringField(json, field);
+    assertThat(start).isNotEqualTo(JsonPeek.NOT_FOUND);
+    int end = start;
+    while (json.get(end) != '"') {
+      end++;
+    }
+    byte[] value = new byte[end - start];
+    json.duplicate().position(start).get(value);
+    return new String(value, UTF_8);
+  }
+}
@@ -0,0 +1,231 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.when;
+
+import com.google.gerrit.extensions.registration.RegistrationHandle;
+import com.google.gerrit.metrics.CallbackMetric;
+import com.google.gerrit.metrics.CallbackMetric1;
+import com.google.gerrit.metrics.Counter1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.Timer1;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import software.amazon.awssdk.services.cloudwatch.model.StandardUnit;
+import software.amazon.kinesis.metrics.MetricsLevel;
+import software.amazon.kinesis.metrics.MetricsScope;
+
+@RunWith(MockitoJUnitRunner.class)
+public class KclMetricsFactoryTest {
+  private static final String OPERATION = "ProcessTask";
+
+  @Mock Configuration configuration;
+
+  private FakeMetricMaker metricMaker;
+  private KclMetricsFactory objectUnderTest;
+
+  @Before
+  public void setup() {
+    when(configuration.getAwsMetricsLevel()).thenReturn(MetricsLevel.SUMMARY);
+    metricMaker = new FakeMetricMaker();
+    objectUnderTest = new KclMetricsFactory(metricMaker, configuration);
+  }
+
+  @Test
+  public void shouldReportMillisecondsAsTimers() {
+    report("Time", 12.6, StandardUnit.MILLISECONDS);
+
+    assertThat(metricMaker.descriptions.get("consumer/kcl/Time").isCumulative()).isTrue();
+    assertThat(metricMaker.timers.get("consumer/kcl/Time")).containsExactly(OPERATION + "=13");
+  }
+
+  @Test
+  public void shouldReportCountsAsRates() {
+    report("RecordsProcessed", 2, StandardUnit.COUNT);
+    report("RecordsProcessed", 3, StandardUnit.COUNT);
+    report("DataBytesProcessed", 1024, StandardUnit.BYTES);
+
+    assertThat(metricMaker.descriptions.get("consumer/kcl/RecordsProcessed").isRate()).isTrue();
+    assertThat(metricMaker.counters.get("consumer/kcl/RecordsProcessed").get(OPERATION))
+        .isEqualTo(5L);
+    assertThat(metricMaker.counters.get("consumer/kcl/DataBytesProcessed").get(OPERATION))
+        .isEqualTo(1024L);
+  }
+
+  @Test
+  public void shouldReportLevelsAsGaugesOfTheLastValue() {
+    report("TotalLeases", 4, StandardUnit.COUNT);
+    report("TotalLeases", 3, StandardUnit.COUNT);
+    report("Rate", 0.25, StandardUnit.PERCENT);
+
+    assertThat(metricMaker.counters).isEmpty();
+    assertThat(metricMaker.descriptions.get("consumer/kcl/TotalLeases").isGauge()).isTrue();
+    assertThat(metricMaker.gauge("consumer/kcl/TotalLeases")).containsExactly(OPERATION, 3d);
+    assertThat(metricMaker.gauge("consumer/kcl/Rate")).containsExactly(OPERATION, 0.25);
+  }
+
+  @Test
+  public void shouldReportMetricsForTheOperationOfTheScope() {
+    MetricsScope renewer = objectUnderTest.createMetrics();
+    renewer.addData("CurrentLeases", 2, StandardUnit.COUNT, MetricsLevel.SUMMARY);
+    renewer.addDimension("Operation", "LeaseRenewer");
+    renewer.addDimension("WorkerIdentifier", "worker");
+    renewer.end();
+    MetricsScope taker = objectUnderTest.createMetrics();
+    taker.addData("TakenLeases", 1, StandardUnit.COUNT, MetricsLevel.SUMMARY);
+    taker.end();
+
+    assertThat(metricMaker.gauge("consumer/kcl/CurrentLeases")).containsExactly("LeaseRenewer", 2d);
+    assertThat(metricMaker.counters.get("consumer/kcl/TakenLeases")).containsExactly("unknown", 1L);
+  }
+
+  @Test
+  public void shouldOnlyReportMetricsOfTheConfiguredLevel() {
+    MetricsScope scope = objectUnderTest.createMetrics();
+    scope.addDimension("Operation", OPERATION);
+    scope.addData("Summary", 1, StandardUnit.COUNT, MetricsLevel.SUMMARY);
+    scope.addData("Detailed", 1, StandardUnit.COUNT, MetricsLevel.DETAILED);
+    scope.addData("DetailedByDefault", 1, StandardUnit.COUNT);
+    scope.end();
+
+    assertThat(metricMaker.counters.keySet()).containsExactly("consumer/kcl/Summary");
+  }
+
+  @Test
+  public void shouldReplaceCharactersNotAllowedInMetricNames() {
+    report("Kinesis.Records Processed", 1, StandardUnit.COUNT);
+
+    assertThat(metricMaker.counters.keySet())
+        .containsExactly("consumer/kcl/Kinesis_Records_Processed");
+  }
+
+  @Test
+  public void shouldShareTheMetricOfNamesDifferingByCharactersNotAllowed() {
+    report("Records.Processed", 1, StandardUnit.COUNT);
+    report("Records_Processed", 2, StandardUnit.COUNT);
+
+    assertThat(metricMaker.counters.get("consumer/kcl/Records_Processed").get(OPERATION))
+        .isEqualTo(3L);
+  }
+
+  @Test
+  public void shouldNotReportMetricsCollidingWithAMetricOfAnotherKind() {
+    report("Records.Time", 10, StandardUnit.MILLISECONDS);
+    report("Records_Time", 2, StandardUnit.COUNT);
+
+    assertThat(metricMaker.timers.get("consumer/kcl/Records_Time"))
+        .containsExactly(OPERATION + "=10");
+    assertThat(metricMaker.counters).isEmpty();
+  }
+
+  private void report(String name, double value, StandardUnit unit) {
+    MetricsScope scope = objectUnderTest.createMetrics();
+    scope.addDimension("Operation", OPERATION);
+    scope.addData(name, value, unit, MetricsLevel.SUMMARY);
+    scope.end();
+  }
+
+  /** Records the metrics created and their values, failing like Gerrit on duplicate names. */
+  private static class FakeMetricMaker extends DisabledMetricMaker {
+    final Map<String, Description> descriptions = new HashMap<>();
+    final Map<String, Map<Object, Long>> counters = new HashMap<>();
+    final Map<String, List<String>> timers = new HashMap<>();
+    final Map<String, Map<Object, Object>> gauges = new HashMap<>();
+    final List<Runnable> triggers = new ArrayList<>();
+
+    @Override
+    public <F1> Counter1<F1> newCounter(String name, Description desc, Field<F1> field1) {
+      define(name, desc);
+      Map<Object, Long> values = new HashMap<>();
+      counters.put(name, values);
+      return new Counter1<>() {
+        @Override
+        public void incrementBy(F1 field, long value) {
+          values.merge(field, value, Long::sum);
+        }
+
+        @Override
+        public void remove() {}
+      };
+    }
+
+    @Override
+    public <F1> Timer1<F1> newTimer(String name, Description desc, Field<F1> field1) {
+      define(name, desc);
+      List<String> values = new ArrayList<>();
+      timers.put(name, values);
+      return new Timer1<>(name, field1) {
+        @Override
+        protected void doRecord(F1 field, long value, TimeUnit unit) {
+          values.add(field + "=" + unit.toMillis(value));
+        }
+
+        @Override
+        public void remove() {}
+      };
+    }
+
+    @Override
+    public <F1, V> CallbackMetric1<F1, V> newCallbackMetric(
+        String name, Class<V> valueClass, Description desc, Field<F1> field1) {
+      define(name, desc);
+      Map<Object, Object> values = new HashMap<>();
+      gauges.put(name, values);
+      return new CallbackMetric1<>() {
+        @Override
+        public void set(F1 field, V value) {
+          values.put(field, value);
+        }
+
+        @Override
+        public void forceCreate(F1 field) {}
+
+        @Override
+        public void remove() {}
+      };
+    }
+
+    @Override
+    public RegistrationHandle newTrigger(Set<CallbackMetric<?>> metrics, Runnable trigger) {
+      triggers.add(trigger);
+      return () -> triggers.remove(trigger);
+    }
+
+    /** @return the values of the gauge, as read when metrics are reported */
+    Map<Object, Object> gauge(String name) {
+      triggers.forEach(Runnable::run);
+      return gauges.get(name);
+    }
+
+    private void define(String name, Description desc) {
+      if (descriptions.putIfAbsent(name, desc) != null) {
+        throw new IllegalArgumentException("Metric " + name + " already defined");
+      }
+    }
+  }
+}
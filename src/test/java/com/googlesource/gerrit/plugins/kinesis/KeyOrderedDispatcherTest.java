@@ -0,0 +1,182 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import software.amazon.kinesis.retrieval.kpl.ExtendedSequenceNumber;
+
+public class KeyOrderedDispatcherTest {
+  private static final long TIMEOUT_MS = 5000L;
+
+  private ExecutorService executor;
+  private KeyOrderedDispatcher objectUnderTest;
+
+  @Before
+  public void setup() {
+    executor = Executors.newFixedThreadPool(4);
+    objectUnderTest = new KeyOrderedDispatcher(executor, 100);
+  }
+
+  @After
+  public void teardown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void shouldProcessRecordsWithTheSameKeyInOrder() throws Exception {
+    List<Integer> processed = new CopyOnWriteArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      int record = i;
+      objectUnderTest.dispatch("key", sequenceNumber(i), () -> processed.add(record));
+    }
+
+    assertThat(objectUnderTest.awaitCompletion(TIMEOUT_MS)).isTrue();
+    assertThat(processed).isInOrder();
+    assertThat(processed).hasSize(50);
+  }
+
+  @Test
+  public void shouldProcessRecordsWithDifferentKeysInParallel() throws Exception {
+    CountDownLatch blocked = new CountDownLatch(1);
+    CountDownLatch otherKeyProcessed = new CountDownLatch(1);
+    objectUnderTest.dispatch("slow", sequenceNumber(1), () -> await(blocked));
+    objectUnderTest.dispatch("fast", sequenceNumber(2), otherKeyProcessed::countDown);
+
+    assertThat(otherKeyProcessed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isTrue();
+    blocked.countDown();
+    assertThat(objectUnderTest.awaitCompletion(TIMEOUT_MS)).isTrue();
+  }
+
+  @Test
+  public void shouldOnlyCompleteUpToTheFirstRecordStillInFlight() throws Exception {
+    CountDownLatch blocked = new CountDownLatch(1);
+    objectUnderTest.dispatch("a", sequenceNumber(1), () -> {});
+    objectUnderTest.awaitCompletion(TIMEOUT_MS);
+    objectUnderTest.dispatch("slow", sequenceNumber(2), () -> await(blocked));
+    objectUnderTest.dispatch("b", sequenceNumber(3), () -> {});
+
+    waitUntil(() -> objectUnderTest.inFlight() == 2);
+    assertThat(objectUnderTest.completedUpTo()).isEqualTo(Optional.of(sequenceNumber(1)));
+
+    blocked.countDown();
+    assertThat(objectUnderTest.awaitCompletion(TIMEOUT_MS)).isTrue();
+    assertThat(objectUnderTest.completedUpTo()).isEqualTo(Optional.of(sequenceNumber(3)));
+  }
+
+  @Test
+  public void shouldNotCompletePastARecordWhoseProcessingFailed() throws Exception {
+    List<Integer> processed = new CopyOnWriteArrayList<>();
+    objectUnderTest.dispatch("other", sequenceNumber(1), () -> processed.add(1));
+    objectUnderTest.awaitCompletion(TIMEOUT_MS);
+    objectUnderTest.dispatch(
+        "key",
+        sequenceNumber(2),
+        () -> {
+          throw new IllegalStateException("test");
+        });
+    objectUnderTest.dispatch("key", sequenceNumber(3), () -> processed.add(3));
+
+    assertThat(objectUnderTest.awaitCompletion(TIMEOUT_MS)).isTrue();
+    assertThat(processed).containsExactly(1, 3).inOrder();
+    assertThat(objectUnderTest.isFailed()).isTrue();
+    assertThat(objectUnderTest.completedUpTo()).isEqualTo(Optional.of(sequenceNumber(1)));
+  }
+
+  @Test
+  public void shouldNotCompletePastARecordRejectedByTheExecutor() throws Exception {
+    CountDownLatch blocked = new CountDownLatch(1);
+    AtomicBoolean rejecting = new AtomicBoolean();
+    Executor rejectingExecutor =
+        task -> {
+          if (rejecting.get()) {
+            throw new RejectedExecutionException("shutting down");
+          }
+          executor.execute(task);
+        };
+    objectUnderTest = new KeyOrderedDispatcher(rejectingExecutor, 100);
+    objectUnderTest.dispatch("other", sequenceNumber(1), () -> {});
+    objectUnderTest.awaitCompletion(TIMEOUT_MS);
+    objectUnderTest.dispatch("key", sequenceNumber(2), () -> await(blocked));
+    List<Integer> processed = new CopyOnWriteArrayList<>();
+    // Chained after the pending record of the same key: only submitted once that one completes
+    objectUnderTest.dispatch("key", sequenceNumber(3), () -> processed.add(3));
+    rejecting.set(true);
+    blocked.countDown();
+
+    assertThat(objectUnderTest.awaitCompletion(TIMEOUT_MS)).isTrue();
+    assertThat(processed).isEmpty();
+    assertThat(objectUnderTest.isFailed()).isTrue();
+    assertThat(objectUnderTest.completedUpTo()).isEqualTo(Optional.of(sequenceNumber(2)));
+  }
+
+  @Test
+  public void shouldBlockWhenTooManyRecordsAreInFlight() throws Exception {
+    objectUnderTest = new KeyOrderedDispatcher(executor, 1);
+    CountDownLatch blocked = new CountDownLatch(1);
+    CountDownLatch dispatched = new CountDownLatch(1);
+    objectUnderTest.dispatch("a", sequenceNumber(1), () -> await(blocked));
+
+    Thread dispatcher =
+        new Thread(
+            () -> {
+              try {
+                objectUnderTest.dispatch("b", sequenceNumber(2), () -> {});
+                dispatched.countDown();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            });
+    dispatcher.start();
+
+    assertThat(dispatched.await(100, TimeUnit.MILLISECONDS)).isFalse();
+    blocked.countDown();
+    assertThat(dispatched.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isTrue();
+    dispatcher.join(TIMEOUT_MS);
+  }
+
+  private static ExtendedSequenceNumber sequenceNumber(int sequenceNumber) {
+    return new ExtendedSequenceNumber(Integer.toString(sequenceNumber), 0L);
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void waitUntil(java.util.function.BooleanSupplier condition)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+}
@@ -39,6 +39,11 @@ public class KinesisProducerProviderTest {
   public void setup() {
     long aRequestTimeout = 1000L;
     when(configuration.getPublishSingleRequestTimeoutMs()).thenReturn(aRequestTimeout);
+    when(configuration.isAggregationEnabled()).thenReturn(true);
+    when(configuration.getAggregationMaxCount())
+        .thenReturn(Configuration.DEFAULT_AGGREGATION_MAX_COUNT);
+    when(configuration.getAggregationMaxSize())
+        .thenReturn(Configuration.DEFAULT_AGGREGATION_MAX_SIZE);
     objectUnderTest = new KinesisProducerProvider(configuration, regionProvider);
   }
 
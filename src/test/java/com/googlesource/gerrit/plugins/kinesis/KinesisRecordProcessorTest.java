@@ -15,7 +15,10 @@
 package com.googlesource.gerrit.plugins.kinesis;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.only;
 import static org.mockito.Mockito.times;
@@ -23,15 +26,46 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.gerritforge.gerrit.eventbroker.EventDeserializer;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gerrit.entities.Account;
+import com.google.gerrit.entities.BranchNameKey;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.extensions.registration.DynamicMap;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.data.ApprovalAttribute;
+import com.google.gerrit.server.events.CommentAddedEvent;
 import com.google.gerrit.server.events.Event;
 import com.google.gerrit.server.events.EventGsonProvider;
 import com.google.gerrit.server.events.ProjectCreatedEvent;
+import com.google.gerrit.server.events.RefUpdatedEvent;
 import com.google.gerrit.server.util.ManualRequestContext;
+import com.google.gerrit.server.util.time.TimeUtil;
 import com.google.gerrit.server.util.OneOffRequestContext;
 import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.google.protobuf.ByteString;
+import com.googlesource.gerrit.plugins.kinesis.api.EventTypeFilter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -43,27 +77,40 @@ import org.mockito.junit.MockitoJUnitRunner;
 import software.amazon.awssdk.core.SdkBytes;
 import software.amazon.awssdk.services.kinesis.model.Record;
 import software.amazon.kinesis.lifecycle.events.InitializationInput;
+import software.amazon.kinesis.lifecycle.events.LeaseLostInput;
 import software.amazon.kinesis.lifecycle.events.ProcessRecordsInput;
+import software.amazon.kinesis.processor.RecordProcessorCheckpointer;
 import software.amazon.kinesis.retrieval.KinesisClientRecord;
 import software.amazon.kinesis.retrieval.kpl.ExtendedSequenceNumber;
+import software.amazon.kinesis.retrieval.kpl.Messages;
 
 @RunWith(MockitoJUnitRunner.class)
 public class KinesisRecordProcessorTest {
+  private static final String INSTANCE_ID = "local-instance";
+  private static final String STREAM_NAME = "gerrit";
+  private static final String GROUP_ID = "group";
+  private static final byte[] KPL_AGGREGATED_RECORD_MAGIC =
+      new byte[] {(byte) 0xF3, (byte) 0x89, (byte) 0x9A, (byte) 0xC2};
+
   private KinesisRecordProcessor objectUnderTest;
+  private ConsumerMetrics consumerMetrics = new ConsumerMetrics(new DisabledMetricMaker());
   private Gson gson = new EventGsonProvider().get();
   private EventDeserializer eventDeserializer = new EventDeserializer(gson);
+  private RecordDeduplicator deduplicator =
+      new RecordDeduplicator(null, DedupKey.SEQUENCE, new DisabledMetricMaker());
 
   @Mock Consumer<Event> succeedingConsumer;
   @Captor ArgumentCaptor<Event> eventMessageCaptor;
   @Mock OneOffRequestContext oneOffCtx;
   @Mock ManualRequestContext requestContext;
   @Mock Configuration configuration;
+  @Mock RecordProcessorCheckpointer checkpointer;
+  @Mock RecordProducer recordProducer;
 
   @Before
   public void setup() {
     when(oneOffCtx.open()).thenReturn(requestContext);
-    objectUnderTest =
-        new KinesisRecordProcessor(succeedingConsumer, oneOffCtx, eventDeserializer, configuration);
+    objectUnderTest = newRecordProcessor(succeedingConsumer);
   }
 
   @Test
@@ -82,10 +129,11 @@ public class KinesisRecordProcessorTest {
 
   @Test
   public void shouldCheckpointAfterIntervalIsExpired() throws InterruptedException {
-    when(configuration.getCheckpointIntervalMs()).thenReturn(0L);
+    when(configuration.getCheckpointIntervalMs()).thenReturn(1L);
     Event event = new ProjectCreatedEvent();
 
     initializeRecordProcessor();
+    Thread.sleep(2);
 
     ProcessRecordsInput kinesisInput = sampleMessage(gson.toJson(event));
     ProcessRecordsInput processRecordsInputSpy = Mockito.spy(kinesisInput);
@@ -178,6 +226,405 @@ public class KinesisRecordProcessorTest {
     verify(succeedingConsumer, only()).accept(any(Event.class));
   }
 
+  @Test
+  public void shouldProcessEachUserRecordOfAnAggregatedRecord() throws Exception {
+    ProjectCreatedEvent event1 = new ProjectCreatedEvent();
+    event1.projectName = "project-1";
+    ProjectCreatedEvent event2 = new ProjectCreatedEvent();
+    event2.projectName = "project-2";
+
+    ProcessRecordsInput kinesisInput = aggregatedMessage(gson.toJson(event1), gson.toJson(event2));
+    objectUnderTest.processRecords(kinesisInput);
+
+    verify(succeedingConsumer, times(2)).accept(eventMessageCaptor.capture());
+    assertThat(
+            eventMessageCaptor.getAllValues().stream()
+                .map(e -> ((ProjectCreatedEvent) e).projectName)
+                .collect(Collectors.toList()))
+        .containsExactly("project-1", "project-2")
+        .inOrder();
+  }
+
+  @Test
+  public void shouldProcessCborAndJsonRecordsSideBySide() throws Exception {
+    ProjectCreatedEvent cborEvent = new ProjectCreatedEvent();
+    cborEvent.projectName = "cbor-project";
+    ProjectCreatedEvent jsonEvent = new ProjectCreatedEvent();
+    jsonEvent.projectName = "json-project";
+
+    ByteArrayOutputStream cborPayload = new ByteArrayOutputStream();
+    CborTranscoder.write(gson.toJsonTree(cborEvent), cborPayload);
+    ProcessRecordsInput kinesisInput =
+        ProcessRecordsInput.builder()
+            .records(
+                Arrays.asList(
+                    KinesisClientRecord.fromRecord(
+                        Record.builder()
+                            .data(SdkBytes.fromByteArray(cborPayload.toByteArray()))
+                            .build()),
+                    KinesisClientRecord.fromRecord(
+                        Record.builder()
+                            .data(SdkBytes.fromUtf8String(gson.toJson(jsonEvent)))
+                            .build())))
+            .build();
+    objectUnderTest.processRecords(kinesisInput);
+
+    verify(succeedingConsumer, times(2)).accept(eventMessageCaptor.capture());
+    assertThat(
+            eventMessageCaptor.getAllValues().stream()
+                .map(e -> ((ProjectCreatedEvent) e).projectName)
+                .collect(Collectors.toList()))
+        .containsExactly("cbor-project", "json-project")
+        .inOrder();
+  }
+
+  @Test
+  public void shouldDeliverAllEventsOfABatchWithinOneRequestContext() throws Exception {
+    List<List<Event>> batches = new ArrayList<>();
+    objectUnderTest = newRecordProcessor(new BatchEventConsumer(batches::add));
+    ProjectCreatedEvent event1 = new ProjectCreatedEvent();
+    event1.projectName = "project-1";
+    ProjectCreatedEvent event2 = new ProjectCreatedEvent();
+    event2.projectName = "project-2";
+
+    ProcessRecordsInput kinesisInput = aggregatedMessage(gson.toJson(event1), gson.toJson(event2));
+    objectUnderTest.processRecords(kinesisInput);
+
+    verify(oneOffCtx, times(1)).open();
+    assertThat(batches).hasSize(1);
+    assertThat(
+            batches.get(0).stream()
+                .map(e -> ((ProjectCreatedEvent) e).projectName)
+                .collect(Collectors.toList()))
+        .containsExactly("project-1", "project-2")
+        .inOrder();
+  }
+
+  @Test
+  public void shouldSkipEventsOfTypesNotAcceptedByTheConsumer() throws Exception {
+    List<Event> consumed = new ArrayList<>();
+    AtomicInteger deserialized = new AtomicInteger();
+    EventDeserializer deserializer = Mockito.spy(new EventDeserializer(gson));
+    objectUnderTest =
+        newRecordProcessor(
+            StreamSubscribers.of(new ProjectCreatedConsumer(consumed)),
+            new RecordDecoder(
+                new PayloadCodecs(DynamicMap.emptyMap()),
+                deserializer,
+                countingEventsGson(deserialized)));
+    ProjectCreatedEvent projectCreated = new ProjectCreatedEvent();
+    projectCreated.projectName = "project";
+
+    objectUnderTest.processRecords(aggregatedMessage(gson.toJson(new RefUpdatedEvent())));
+    objectUnderTest.processRecords(aggregatedMessage(gson.toJson(projectCreated)));
+
+    verify(oneOffCtx, times(1)).open();
+    verify(deserializer, never()).deserialize(any());
+    assertThat(deserialized.get()).isEqualTo(1);
+    assertThat(consumed).hasSize(1);
+    assertThat(((ProjectCreatedEvent) consumed.get(0)).projectName).isEqualTo("project");
+  }
+
+  @Test
+  public void shouldSkipEventsByTheirTopLevelTypeOnly() throws Exception {
+    List<Event> consumed = new ArrayList<>();
+    AtomicInteger deserialized = new AtomicInteger();
+    objectUnderTest =
+        newRecordProcessor(
+            StreamSubscribers.of(new ProjectCreatedConsumer(consumed)),
+            new RecordDecoder(
+                new PayloadCodecs(DynamicMap.emptyMap()),
+                eventDeserializer,
+                countingEventsGson(deserialized)));
+    ApprovalAttribute approval = new ApprovalAttribute();
+    approval.type = new ProjectCreatedEvent().getType();
+    approval.value = "1";
+    CommentAddedEvent commentAdded =
+        new CommentAddedEvent(
+            new Change(
+                Change.key("I" + "0".repeat(40)),
+                Change.id(1),
+                Account.id(1000000),
+                BranchNameKey.create("project", "master"),
+                TimeUtil.nowTs()));
+    commentAdded.approvals = () -> new ApprovalAttribute[] {approval};
+    String json = gson.toJson(commentAdded);
+    // Gson writes the fields of the subclass before the type, declared by Event
+    assertThat(json.indexOf("\"approvals\"")).isLessThan(json.lastIndexOf("\"type\""));
+
+    objectUnderTest.processRecords(aggregatedMessage(json));
+
+    verify(oneOffCtx, never()).open();
+    assertThat(deserialized.get()).isEqualTo(0);
+    assertThat(consumed).isEmpty();
+  }
+
+  /** @return the Gson of the events, counting the events it deserializes */
+  private Gson countingEventsGson(AtomicInteger deserialized) {
+    return gson.newBuilder()
+        .registerTypeAdapterFactory(
+            new TypeAdapterFactory() {
+              @Override
+              public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+                if (!Event.class.equals(type.getRawType())) {
+                  return null;
+                }
+                TypeAdapter<T> delegate = gson.getDelegateAdapter(this, type);
+                return new TypeAdapter<T>() {
+                  @Override
+                  public void write(JsonWriter out, T value) throws IOException {
+                    delegate.write(out, value);
+                  }
+
+                  @Override
+                  public T read(JsonReader in) throws IOException {
+                    deserialized.incrementAndGet();
+                    return delegate.read(in);
+                  }
+                };
+              }
+            })
+        .create();
+  }
+
+  private static class ProjectCreatedConsumer implements Consumer<Event>, EventTypeFilter {
+    private final List<Event> consumed;
+
+    ProjectCreatedConsumer(List<Event> consumed) {
+      this.consumed = consumed;
+    }
+
+    @Override
+    public void accept(Event event) {
+      consumed.add(event);
+    }
+
+    @Override
+    public Set<String> acceptedEventTypes() {
+      return Collections.singleton(new ProjectCreatedEvent().getType());
+    }
+  }
+
+  @Test
+  public void shouldReportShardMetricsForTheConsumerGroup() {
+    consumerMetrics = Mockito.spy(new ConsumerMetrics(new DisabledMetricMaker()));
+    objectUnderTest = newRecordProcessor(succeedingConsumer);
+    initializeRecordProcessor();
+
+    objectUnderTest.processRecords(sampleMessage(gson.toJson(new ProjectCreatedEvent())));
+    objectUnderTest.leaseLost(LeaseLostInput.builder().build());
+
+    String shard = GROUP_ID + "/" + STREAM_NAME + "/shard-0000";
+    verify(consumerMetrics).recordConsumed(eq(shard), eq(1), anyLong(), any());
+    verify(consumerMetrics).recordShardReleased(shard);
+  }
+
+  private KinesisRecordProcessor newRecordProcessor(Consumer<Event> recordProcessor) {
+    return newRecordProcessor(StreamSubscribers.of(recordProcessor));
+  }
+
+  private KinesisRecordProcessor newRecordProcessor(StreamSubscribers subscribers) {
+    return newRecordProcessor(
+        subscribers,
+        new RecordDecoder(new PayloadCodecs(DynamicMap.emptyMap()), eventDeserializer, gson));
+  }
+
+  private KinesisRecordProcessor newRecordProcessor(
+      StreamSubscribers subscribers, RecordDecoder recordDecoder) {
+    return new KinesisRecordProcessor(
+        STREAM_NAME,
+        GROUP_ID,
+        subscribers,
+        oneOffCtx,
+        configuration,
+        recordDecoder,
+        MoreExecutors::newDirectExecutorService,
+        INSTANCE_ID,
+        consumerMetrics,
+        new CheckpointWriter(MoreExecutors.directExecutor(), consumerMetrics),
+        new DeadLetterPublisher(recordProducer, configuration, INSTANCE_ID),
+        deduplicator);
+  }
+
+  @Test
+  public void shouldDeliverEachEventToAllSubscribersOfTheStream() throws Exception {
+    List<List<Event>> batches = new ArrayList<>();
+    List<Event> projectsCreated = new ArrayList<>();
+    StreamSubscribers subscribers = StreamSubscribers.of(succeedingConsumer);
+    subscribers.add(new BatchEventConsumer(batches::add));
+    subscribers.add(new ProjectCreatedConsumer(projectsCreated));
+    objectUnderTest = newRecordProcessor(subscribers);
+
+    objectUnderTest.processRecords(
+        aggregatedMessage(
+            gson.toJson(new ProjectCreatedEvent()), gson.toJson(new RefUpdatedEvent())));
+
+    verify(succeedingConsumer, times(2)).accept(any());
+    assertThat(batches).hasSize(1);
+    assertThat(batches.get(0)).hasSize(2);
+    assertThat(projectsCreated).hasSize(1);
+  }
+
+  @Test
+  public void shouldCheckpointRecordsOfBatchSubscribersWhenProcessingInParallel()
+      throws Exception {
+    when(configuration.getProcessingThreads()).thenReturn(1);
+    when(configuration.getProcessingMaxInFlightRecords()).thenReturn(10);
+    when(configuration.getCheckpointMaxRecords()).thenReturn(1L);
+    List<List<Event>> batches = new ArrayList<>();
+    StreamSubscribers subscribers = StreamSubscribers.of(succeedingConsumer);
+    subscribers.add(new BatchEventConsumer(batches::add));
+    objectUnderTest = newRecordProcessor(subscribers);
+    initializeRecordProcessor();
+    ProjectCreatedEvent event = new ProjectCreatedEvent();
+
+    objectUnderTest.processRecords(
+        aggregatedMessage(gson.toJson(event), gson.toJson(event)).toBuilder()
+            .checkpointer(checkpointer)
+            .build());
+
+    assertThat(batches).hasSize(1);
+    verify(checkpointer).checkpoint("0001", 1L);
+  }
+
+  @Test
+  public void shouldNotDeliverAgainToOtherSubscribersWhenRetryingOne() throws Exception {
+    when(configuration.getProcessingMaxRetries()).thenReturn(2);
+    when(configuration.getProcessingRetryBackoffMs()).thenReturn(1L);
+    when(configuration.getProcessingRetryMaxBackoffMs()).thenReturn(1L);
+    List<Event> consumed = new ArrayList<>();
+    Consumer<Event> failingConsumer =
+        e -> {
+          throw new IllegalStateException("boom");
+        };
+    StreamSubscribers subscribers = StreamSubscribers.of(failingConsumer);
+    subscribers.add(consumed::add);
+    objectUnderTest = newRecordProcessor(subscribers);
+    initializeRecordProcessor();
+
+    objectUnderTest.processRecords(aggregatedMessage(gson.toJson(new ProjectCreatedEvent())));
+
+    assertThat(consumed).hasSize(1);
+  }
+
+  @Test
+  public void shouldCheckpointTheLastProcessedRecord() throws Exception {
+    when(configuration.getCheckpointMaxRecords()).thenReturn(1L);
+    initializeRecordProcessor();
+    ProjectCreatedEvent event = new ProjectCreatedEvent();
+
+    ProcessRecordsInput kinesisInput =
+        aggregatedMessage(gson.toJson(event), gson.toJson(event)).toBuilder()
+            .checkpointer(checkpointer)
+            .build();
+    objectUnderTest.processRecords(kinesisInput);
+
+    verify(checkpointer).checkpoint("0001", 1L);
+  }
+
+  @Test
+  public void shouldDropSelfOriginatedRecordsBeforeDecoding() throws Exception {
+    when(configuration.isSkipSelfOriginatedRecords()).thenReturn(true);
+    objectUnderTest = newRecordProcessor(succeedingConsumer);
+    ProjectCreatedEvent event = new ProjectCreatedEvent();
+    event.projectName = "project";
+
+    objectUnderTest.processRecords(recordWithOrigin(INSTANCE_ID, gson.toJson(event)));
+    verify(succeedingConsumer, never()).accept(any());
+
+    objectUnderTest.processRecords(recordWithOrigin("other-instance", gson.toJson(event)));
+    verify(succeedingConsumer, only()).accept(any());
+  }
+
+  @Test
+  public void shouldPublishRecordsToTheDeadLetterStreamWhenRetriesAreExhausted() throws Exception {
+    when(configuration.getProcessingMaxRetries()).thenReturn(2);
+    when(configuration.getProcessingRetryBackoffMs()).thenReturn(1L);
+    when(configuration.getProcessingRetryMaxBackoffMs()).thenReturn(1L);
+    when(configuration.getPublishTimeoutMs()).thenReturn(1000L);
+    when(configuration.getDeadLetterStream()).thenReturn(Optional.of("dead-letters"));
+    when(recordProducer.addUserRecord(eq("dead-letters"), eq("partition-key"), any()))
+        .thenReturn(Futures.immediateFuture(null));
+    doThrow(new IllegalStateException("boom")).when(succeedingConsumer).accept(any());
+    objectUnderTest = newRecordProcessor(succeedingConsumer);
+    initializeRecordProcessor();
+    ProjectCreatedEvent event = new ProjectCreatedEvent();
+
+    objectUnderTest.processRecords(aggregatedMessage(gson.toJson(event)));
+
+    verify(succeedingConsumer, times(3)).accept(any());
+    ArgumentCaptor<ByteBuffer> deadLetterCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
+    verify(recordProducer)
+        .addUserRecord(eq("dead-letters"), eq("partition-key"), deadLetterCaptor.capture());
+    DeadLetter deadLetter =
+        DeadLetterPublisher.GSON.fromJson(
+            StandardCharsets.UTF_8.decode(deadLetterCaptor.getValue()).toString(),
+            DeadLetter.class);
+    assertThat(deadLetter.sourceStream).isEqualTo(STREAM_NAME);
+    assertThat(deadLetter.attempts).isEqualTo(3);
+    assertThat(deadLetter.error).contains("boom");
+    assertThat(new String(Base64.getDecoder().decode(deadLetter.payload), StandardCharsets.UTF_8))
+        .isEqualTo(gson.toJson(event));
+  }
+
+  @Test
+  public void shouldSkipRecordsAlreadyProcessed() throws Exception {
+    deduplicator =
+        new RecordDeduplicator(
+            new FingerprintCache(10, 60000L), DedupKey.SEQUENCE, new DisabledMetricMaker());
+    objectUnderTest = newRecordProcessor(succeedingConsumer);
+    initializeRecordProcessor();
+    ProjectCreatedEvent event = new ProjectCreatedEvent();
+
+    objectUnderTest.processRecords(aggregatedMessage(gson.toJson(event)));
+    objectUnderTest.processRecords(aggregatedMessage(gson.toJson(event)));
+
+    verify(succeedingConsumer, only()).accept(any());
+  }
+
+  private ProcessRecordsInput recordWithOrigin(String origin, String message) {
+    ByteBufferPool pool = new ByteBufferPool(1, 1024, new DisabledMetricMaker());
+    try (PooledByteBufferOutputStream out = new PooledByteBufferOutputStream(pool)) {
+      RecordHeader.write(out, RecordHeader.NO_CODEC, RecordHeader.origin(origin));
+      byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+      out.write(payload, 0, payload.length);
+      ByteBuffer data = out.toRecord().data();
+      Record kinesisRecord =
+          Record.builder().sequenceNumber("0001").data(SdkBytes.fromByteBuffer(data)).build();
+      return ProcessRecordsInput.builder()
+          .records(Collections.singletonList(KinesisClientRecord.fromRecord(kinesisRecord)))
+          .build();
+    }
+  }
+
+  private ProcessRecordsInput aggregatedMessage(String... messages) throws Exception {
+    Messages.AggregatedRecord.Builder aggregatedRecord =
+        Messages.AggregatedRecord.newBuilder().addPartitionKeyTable("partition-key");
+    for (String message : messages) {
+      aggregatedRecord.addRecords(
+          Messages.Record.newBuilder()
+              .setPartitionKeyIndex(0)
+              .setData(ByteString.copyFromUtf8(message)));
+    }
+    byte[] protobufMessage = aggregatedRecord.build().toByteArray();
+    byte[] md5 = MessageDigest.getInstance("MD5").digest(protobufMessage);
+
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    data.write(KPL_AGGREGATED_RECORD_MAGIC);
+    data.write(protobufMessage);
+    data.write(md5);
+
+    Record kinesisRecord =
+        Record.builder()
+            .partitionKey("partition-key")
+            .sequenceNumber("0001")
+            .data(SdkBytes.fromByteArray(data.toByteArray()))
+            .build();
+    return ProcessRecordsInput.builder()
+        .records(Collections.singletonList(KinesisClientRecord.fromRecord(kinesisRecord)))
+        .build();
+  }
+
   private ProcessRecordsInput sampleMessage(String message) {
     Record kinesisRecord = Record.builder().data(SdkBytes.fromUtf8String(message)).build();
     ProcessRecordsInput kinesisInput =
@@ -0,0 +1,348 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.same;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Collectors;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.awssdk.services.kinesis.model.DescribeStreamSummaryRequest;
+import software.amazon.awssdk.services.kinesis.model.DescribeStreamSummaryResponse;
+import software.amazon.awssdk.services.kinesis.model.ResourceNotFoundException;
+import software.amazon.awssdk.services.kinesis.model.StreamDescriptionSummary;
+import software.amazon.kinesis.common.InitialPositionInStream;
+import software.amazon.kinesis.common.InitialPositionInStreamExtended;
+import software.amazon.kinesis.common.StreamConfig;
+import software.amazon.kinesis.common.StreamIdentifier;
+import software.amazon.kinesis.coordinator.Scheduler;
+import software.amazon.kinesis.lifecycle.events.ProcessRecordsInput;
+import software.amazon.kinesis.lifecycle.events.ShutdownRequestedInput;
+import software.amazon.kinesis.processor.MultiStreamTracker;
+import software.amazon.kinesis.processor.RecordProcessorCheckpointer;
+import software.amazon.kinesis.processor.ShardRecordProcessor;
+import software.amazon.kinesis.processor.ShardRecordProcessorFactory;
+
+@RunWith(MockitoJUnitRunner.class)
+public class MultiStreamSchedulersTest {
+  private static final String ACCOUNT_ID = "123456789012";
+  private static final Instant CREATED_AT = Instant.parse("2021-06-01T10:15:30Z");
+  private static final String GROUP_ID = "group";
+  private static final InitialPositionInStreamExtended LATEST =
+      InitialPositionInStreamExtended.newInitialPosition(InitialPositionInStream.LATEST);
+
+  @Mock SchedulerProvider.Factory schedulerFactory;
+  @Mock SchedulerProvider schedulerProvider;
+  @Mock Scheduler scheduler;
+  @Mock KinesisRecordProcessor.Factory processorFactory;
+  @Mock KinesisRecordProcessor recordProcessor;
+  @Mock KinesisAsyncClient kinesisClient;
+  @Mock Configuration configuration;
+  @Mock ExecutorService executor;
+  @Mock RecordProcessorCheckpointer checkpointer;
+
+  private MultiStreamSchedulers objectUnderTest;
+
+  @Before
+  public void setup() {
+    objectUnderTest =
+        new MultiStreamSchedulers(
+            schedulerFactory, processorFactory, kinesisClient, configuration, executor);
+  }
+
+  @Test
+  public void shouldStartTheSchedulerOfTheGroupWithTheFirstStream() {
+    givenStreams();
+    givenScheduler();
+
+    assertThat(register("stream-a")).isTrue();
+
+    verify(schedulerFactory).create(eq(GROUP_ID), any(), any());
+    verify(executor).execute(scheduler);
+    StreamConfig streamConfig = trackedStreams().get(0);
+    assertThat(streamConfig.streamIdentifier().serialize())
+        .isEqualTo(ACCOUNT_ID + ":stream-a:" + CREATED_AT.getEpochSecond());
+    assertThat(streamConfig.initialPositionInStreamExtended()).isEqualTo(LATEST);
+  }
+
+  @Test
+  public void shouldAddFurtherStreamsToTheRunningScheduler() {
+    givenStreams();
+    givenScheduler();
+
+    register("stream-a");
+    register("stream-b");
+
+    verify(schedulerFactory, times(1)).create(anyString(), any(), any());
+    verify(scheduler, never()).startGracefulShutdown();
+    assertThat(trackedStreamNames()).containsExactly("stream-a", "stream-b");
+  }
+
+  @Test
+  public void shouldStartASchedulerPerGroup() {
+    givenStreams();
+    givenScheduler();
+
+    register("stream-a");
+    objectUnderTest.register("stream-a", "other-group", LATEST, new StreamSubscribers());
+
+    verify(schedulerFactory).create(eq(GROUP_ID), any(), any());
+    verify(schedulerFactory).create(eq("other-group"), any(), any());
+    verify(executor, times(2)).execute(scheduler);
+  }
+
+  @Test
+  public void shouldNotTrackAStreamThatCannotBeDescribed() {
+    when(kinesisClient.describeStreamSummary(any(DescribeStreamSummaryRequest.class)))
+        .thenReturn(
+            CompletableFuture.failedFuture(
+                ResourceNotFoundException.builder().message("not found").build()));
+
+    assertThat(register("stream-a")).isFalse();
+
+    verify(schedulerFactory, never()).create(anyString(), any(), any());
+  }
+
+  @Test
+  public void shouldRestartTheSchedulerWhenAStreamIsUnregistered() {
+    givenStreams();
+    givenScheduler();
+    givenGracefulShutdown();
+    register("stream-a");
+    register("stream-b");
+
+    objectUnderTest.unregister("stream-a", GROUP_ID);
+
+    verify(scheduler).startGracefulShutdown();
+    verify(schedulerFactory, times(2)).create(eq(GROUP_ID), any(), any());
+    verify(executor, times(2)).execute(scheduler);
+    assertThat(trackedStreamNames()).containsExactly("stream-b");
+  }
+
+  @Test
+  public void shouldStopTheSchedulerWhenTheLastStreamIsUnregistered() {
+    givenStreams();
+    givenScheduler();
+    givenGracefulShutdown();
+    register("stream-a");
+
+    objectUnderTest.unregister("stream-a", GROUP_ID);
+
+    verify(scheduler).startGracefulShutdown();
+    verify(schedulerFactory, times(1)).create(anyString(), any(), any());
+
+    register("stream-a");
+
+    verify(schedulerFactory, times(2)).create(eq(GROUP_ID), any(), any());
+  }
+
+  @Test
+  public void shouldIgnoreUnregisteringAStreamNotConsumed() {
+    givenStreams();
+    givenScheduler();
+    register("stream-a");
+
+    objectUnderTest.unregister("stream-b", GROUP_ID);
+    objectUnderTest.unregister("stream-a", "other-group");
+
+    verify(scheduler, never()).startGracefulShutdown();
+    assertThat(trackedStreamNames()).containsExactly("stream-a");
+  }
+
+  @Test
+  public void shouldIdentifyStreamsAsTheLeasesResetByCheckpointResetter() {
+    givenStreams();
+    givenScheduler();
+    register("stream-a");
+
+    String leaseKey =
+        trackedStreams().get(0).streamIdentifier().serialize() + ":shardId-000000000000";
+
+    assertThat(CheckpointResetter.isLeaseOfStream(leaseKey, "stream-a")).isTrue();
+    assertThat(CheckpointResetter.isLeaseOfStream(leaseKey, "stream-b")).isFalse();
+  }
+
+  @Test
+  public void shouldCreateRecordProcessorsWithTheSubscribersOfTheStream() {
+    givenStreams();
+    givenScheduler();
+    StreamSubscribers subscribers = new StreamSubscribers();
+    objectUnderTest.register("stream-a", GROUP_ID, LATEST, subscribers);
+    when(processorFactory.create(eq("stream-a"), eq(GROUP_ID), same(subscribers)))
+        .thenReturn(recordProcessor);
+
+    StreamIdentifier streamIdentifier = trackedStreams().get(0).streamIdentifier();
+
+    assertThat(recordProcessorFactory().shardRecordProcessor(streamIdentifier))
+        .isSameInstanceAs(recordProcessor);
+  }
+
+  @Test
+  public void shouldNeitherDeliverNorCheckpointRecordsOfStreamsNoLongerConsumed() {
+    givenStreams();
+    givenScheduler();
+    register("stream-a");
+
+    ShardRecordProcessor processor =
+        recordProcessorFactory()
+            .shardRecordProcessor(
+                StreamIdentifier.multiStreamInstance(ACCOUNT_ID + ":stream-b:1622542530"));
+    processor.processRecords(
+        ProcessRecordsInput.builder()
+            .records(Collections.emptyList())
+            .checkpointer(checkpointer)
+            .build());
+    processor.shutdownRequested(
+        ShutdownRequestedInput.builder().checkpointer(checkpointer).build());
+
+    assertThat(processor).isInstanceOf(MultiStreamSchedulers.UntrackedShardProcessor.class);
+    verify(processorFactory, never()).create(anyString(), anyString(), any());
+    verifyNoInteractions(checkpointer);
+  }
+
+  @Test
+  public void shouldRestartTheSchedulerWhenAStreamIsRegisteredAgain() {
+    givenStreams();
+    givenScheduler();
+    givenGracefulShutdown();
+    register("stream-a");
+    register("stream-b");
+    objectUnderTest.unregister("stream-a", GROUP_ID);
+    StreamIdentifier streamA = trackedStreamIdentifier("stream-a");
+    // The lease of stream-a is still in the lease table, and taken by the restarted scheduler
+    assertThat(recordProcessorFactory().shardRecordProcessor(streamA))
+        .isInstanceOf(MultiStreamSchedulers.UntrackedShardProcessor.class);
+
+    StreamSubscribers subscribers = new StreamSubscribers();
+    objectUnderTest.register("stream-a", GROUP_ID, LATEST, subscribers);
+
+    verify(scheduler, times(2)).startGracefulShutdown();
+    verify(schedulerFactory, times(3)).create(eq(GROUP_ID), any(), any());
+    assertThat(trackedStreamNames()).containsExactly("stream-a", "stream-b");
+    when(processorFactory.create(eq("stream-a"), eq(GROUP_ID), same(subscribers)))
+        .thenReturn(recordProcessor);
+    assertThat(recordProcessorFactory().shardRecordProcessor(streamA))
+        .isSameInstanceAs(recordProcessor);
+  }
+
+  @Test
+  public void shouldNotRestartTheSchedulerWhenAStreamNotConsumedMeanwhileIsRegisteredAgain() {
+    givenStreams();
+    givenScheduler();
+    givenGracefulShutdown();
+    register("stream-a");
+    register("stream-b");
+    objectUnderTest.unregister("stream-a", GROUP_ID);
+
+    register("stream-a");
+
+    verify(scheduler, times(1)).startGracefulShutdown();
+    verify(schedulerFactory, times(2)).create(eq(GROUP_ID), any(), any());
+  }
+
+  @Test
+  public void shouldNotCreateRecordProcessorsWithoutAStream() {
+    givenStreams();
+    givenScheduler();
+    register("stream-a");
+
+    assertThrows(
+        UnsupportedOperationException.class,
+        () -> recordProcessorFactory().shardRecordProcessor());
+  }
+
+  private boolean register(String streamName) {
+    return objectUnderTest.register(streamName, GROUP_ID, LATEST, new StreamSubscribers());
+  }
+
+  private void givenStreams() {
+    when(kinesisClient.describeStreamSummary(any(DescribeStreamSummaryRequest.class)))
+        .thenAnswer(
+            i -> {
+              String streamName = i.<DescribeStreamSummaryRequest>getArgument(0).streamName();
+              return CompletableFuture.completedFuture(
+                  DescribeStreamSummaryResponse.builder()
+                      .streamDescriptionSummary(
+                          StreamDescriptionSummary.builder()
+                              .streamName(streamName)
+                              .streamARN(
+                                  "arn:aws:kinesis:us-east-1:"
+                                      + ACCOUNT_ID
+                                      + ":stream/"
+                                      + streamName)
+                              .streamCreationTimestamp(CREATED_AT)
+                              .build())
+                      .build());
+            });
+  }
+
+  private void givenScheduler() {
+    when(schedulerFactory.create(anyString(), any(), any())).thenReturn(schedulerProvider);
+    when(schedulerProvider.get()).thenReturn(scheduler);
+  }
+
+  private void givenGracefulShutdown() {
+    when(configuration.getShutdownTimeoutMs()).thenReturn(1000L);
+    when(scheduler.startGracefulShutdown()).thenReturn(CompletableFuture.completedFuture(true));
+  }
+
+  private StreamIdentifier trackedStreamIdentifier(String streamName) {
+    return StreamIdentifier.multiStreamInstance(
+        ACCOUNT_ID + ":" + streamName + ":" + CREATED_AT.getEpochSecond());
+  }
+
+  /** @return the streams tracked by the latest scheduler started */
+  private List<StreamConfig> trackedStreams() {
+    ArgumentCaptor<MultiStreamTracker> tracker = ArgumentCaptor.forClass(MultiStreamTracker.class);
+    verify(schedulerFactory, atLeastOnce())
+        .create(anyString(), tracker.capture(), any());
+    return tracker.getValue().streamConfigList();
+  }
+
+  private List<String> trackedStreamNames() {
+    return trackedStreams().stream()
+        .map(s -> s.streamIdentifier().streamName())
+        .collect(Collectors.toList());
+  }
+
+  private ShardRecordProcessorFactory recordProcessorFactory() {
+    ArgumentCaptor<ShardRecordProcessorFactory> factory =
+        ArgumentCaptor.forClass(ShardRecordProcessorFactory.class);
+    verify(schedulerFactory, atLeastOnce())
+        .create(anyString(), any(), factory.capture());
+    return factory.getValue();
+  }
+}
@@ -0,0 +1,49 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+public class ProcessingRetryPolicyTest {
+
+  @Test
+  public void shouldNotRetryByDefault() {
+    ProcessingRetryPolicy policy = new ProcessingRetryPolicy(0, 100L, 5000L);
+
+    assertThat(policy.shouldRetry(1)).isFalse();
+  }
+
+  @Test
+  public void shouldRetryUpToTheMaximumNumberOfRetries() {
+    ProcessingRetryPolicy policy = new ProcessingRetryPolicy(2, 100L, 5000L);
+
+    assertThat(policy.shouldRetry(1)).isTrue();
+    assertThat(policy.shouldRetry(2)).isTrue();
+    assertThat(policy.shouldRetry(3)).isFalse();
+  }
+
+  @Test
+  public void shouldBackOffExponentiallyUpToTheMaximum() {
+    ProcessingRetryPolicy policy = new ProcessingRetryPolicy(10, 100L, 1000L);
+
+    assertThat(policy.backoffMs(1)).isEqualTo(100L);
+    assertThat(policy.backoffMs(2)).isEqualTo(200L);
+    assertThat(policy.backoffMs(4)).isEqualTo(800L);
+    assertThat(policy.backoffMs(5)).isEqualTo(1000L);
+    assertThat(policy.backoffMs(100)).isEqualTo(1000L);
+  }
+}
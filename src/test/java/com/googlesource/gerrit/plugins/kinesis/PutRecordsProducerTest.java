@@ -0,0 +1,205 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.amazonaws.services.kinesis.producer.UserRecordFailedException;
+import com.amazonaws.services.kinesis.producer.UserRecordResult;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequest;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequestEntry;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsResponse;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsResultEntry;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PutRecordsProducerTest {
+  private static final String STREAM = "stream";
+  private static final long LINGER_MS = 50L;
+  private static final long LONG_LINGER_MS = 60000L;
+  private static final long TIMEOUT_MS = 5000L;
+
+  @Mock KinesisAsyncClient kinesisClient;
+
+  private PutRecordsProducer objectUnderTest;
+
+  @After
+  public void teardown() {
+    if (objectUnderTest != null) {
+      objectUnderTest.stop();
+    }
+  }
+
+  @Test
+  public void shouldSendBatchWhenMaxCountIsReached() throws Exception {
+    when(kinesisClient.putRecords(any(PutRecordsRequest.class)))
+        .thenAnswer(i -> succeeded(i.getArgument(0)));
+    objectUnderTest = newProducer(2, LONG_LINGER_MS, TIMEOUT_MS);
+
+    ListenableFuture<UserRecordResult> first =
+        objectUnderTest.addUserRecord(STREAM, "pk-1", data());
+    ListenableFuture<UserRecordResult> second =
+        objectUnderTest.addUserRecord(STREAM, "pk-2", data());
+
+    assertThat(first.get(TIMEOUT_MS, TimeUnit.MILLISECONDS).isSuccessful()).isTrue();
+    assertThat(second.get(TIMEOUT_MS, TimeUnit.MILLISECONDS).isSuccessful()).isTrue();
+    assertThat(partitionKeys(sentRequests(1).get(0))).containsExactly("pk-1", "pk-2").inOrder();
+  }
+
+  @Test
+  public void shouldSendBatchWhenLingerExpires() throws Exception {
+    when(kinesisClient.putRecords(any(PutRecordsRequest.class)))
+        .thenAnswer(i -> succeeded(i.getArgument(0)));
+    objectUnderTest = newProducer(10, LINGER_MS, TIMEOUT_MS);
+
+    ListenableFuture<UserRecordResult> result = objectUnderTest.addUserRecord(STREAM, "pk", data());
+
+    UserRecordResult userRecordResult = result.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    assertThat(userRecordResult.isSuccessful()).isTrue();
+    assertThat(userRecordResult.getShardId()).isEqualTo("shard-0");
+  }
+
+  @Test
+  public void shouldSendBatchWhenFlushed() throws Exception {
+    when(kinesisClient.putRecords(any(PutRecordsRequest.class)))
+        .thenAnswer(i -> succeeded(i.getArgument(0)));
+    objectUnderTest = newProducer(10, LONG_LINGER_MS, TIMEOUT_MS);
+
+    ListenableFuture<UserRecordResult> result = objectUnderTest.addUserRecord(STREAM, "pk", data());
+    objectUnderTest.flush(STREAM);
+
+    assertThat(result.get(TIMEOUT_MS, TimeUnit.MILLISECONDS).isSuccessful()).isTrue();
+    assertThat(partitionKeys(sentRequests(1).get(0))).containsExactly("pk");
+  }
+
+  @Test
+  public void shouldRetryOnlyFailedRecords() throws Exception {
+    when(kinesisClient.putRecords(any(PutRecordsRequest.class)))
+        .thenAnswer(i -> failingSecond(i.getArgument(0)))
+        .thenAnswer(i -> succeeded(i.getArgument(0)));
+    objectUnderTest = newProducer(2, LONG_LINGER_MS, TIMEOUT_MS);
+
+    ListenableFuture<UserRecordResult> first =
+        objectUnderTest.addUserRecord(STREAM, "pk-1", data());
+    ListenableFuture<UserRecordResult> second =
+        objectUnderTest.addUserRecord(STREAM, "pk-2", data());
+
+    assertThat(first.get(TIMEOUT_MS, TimeUnit.MILLISECONDS).getAttempts()).hasSize(1);
+    assertThat(second.get(TIMEOUT_MS, TimeUnit.MILLISECONDS).getAttempts()).hasSize(2);
+    List<PutRecordsRequest> requests = sentRequests(2);
+    assertThat(partitionKeys(requests.get(1))).containsExactly("pk-2");
+  }
+
+  @Test
+  public void shouldFailRecordsOnceThePublishTimeoutExpires() throws Exception {
+    when(kinesisClient.putRecords(any(PutRecordsRequest.class)))
+        .thenAnswer(i -> failingSecond(i.getArgument(0)));
+    objectUnderTest = newProducer(2, LONG_LINGER_MS, 0L);
+
+    objectUnderTest.addUserRecord(STREAM, "pk-1", data());
+    ListenableFuture<UserRecordResult> second =
+        objectUnderTest.addUserRecord(STREAM, "pk-2", data());
+
+    ExecutionException e =
+        assertThrows(
+            ExecutionException.class, () -> second.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    assertThat(e).hasCauseThat().isInstanceOf(UserRecordFailedException.class);
+    assertThat(((UserRecordFailedException) e.getCause()).getResult().getAttempts()).hasSize(1);
+  }
+
+  @Test
+  public void shouldRejectRecordsBiggerThanTheKinesisLimit() {
+    objectUnderTest = newProducer(2, LONG_LINGER_MS, TIMEOUT_MS);
+
+    ListenableFuture<UserRecordResult> result =
+        objectUnderTest.addUserRecord(
+            STREAM, "pk", ByteBuffer.allocate(PutRecordsProducer.MAX_RECORD_BYTES));
+
+    assertThrows(ExecutionException.class, result::get);
+  }
+
+  private PutRecordsProducer newProducer(int maxCount, long lingerMs, long publishTimeoutMs) {
+    return new PutRecordsProducer(
+        kinesisClient,
+        maxCount,
+        PutRecordsProducer.MAX_BATCH_BYTES,
+        lingerMs,
+        TIMEOUT_MS,
+        publishTimeoutMs,
+        TIMEOUT_MS);
+  }
+
+  private List<PutRecordsRequest> sentRequests(int count) {
+    ArgumentCaptor<PutRecordsRequest> captor = ArgumentCaptor.forClass(PutRecordsRequest.class);
+    verify(kinesisClient, timeout(TIMEOUT_MS).times(count)).putRecords(captor.capture());
+    verify(kinesisClient, times(count)).putRecords(any(PutRecordsRequest.class));
+    return captor.getAllValues();
+  }
+
+  private static List<String> partitionKeys(PutRecordsRequest request) {
+    return request.records().stream()
+        .map(PutRecordsRequestEntry::partitionKey)
+        .collect(Collectors.toList());
+  }
+
+  private static CompletableFuture<PutRecordsResponse> succeeded(PutRecordsRequest request) {
+    return CompletableFuture.completedFuture(
+        PutRecordsResponse.builder()
+            .records(request.records().stream().map(r -> success()).collect(Collectors.toList()))
+            .failedRecordCount(0)
+            .build());
+  }
+
+  private static CompletableFuture<PutRecordsResponse> failingSecond(PutRecordsRequest request) {
+    return CompletableFuture.completedFuture(
+        PutRecordsResponse.builder()
+            .records(
+                success(),
+                PutRecordsResultEntry.builder()
+                    .errorCode("ProvisionedThroughputExceededException")
+                    .errorMessage("Rate exceeded")
+                    .build())
+            .failedRecordCount(1)
+            .build());
+  }
+
+  private static PutRecordsResultEntry success() {
+    return PutRecordsResultEntry.builder().shardId("shard-0").sequenceNumber("1").build();
+  }
+
+  private static ByteBuffer data() {
+    return ByteBuffer.wrap("{\"type\":\"test\"}".getBytes(UTF_8));
+  }
+}
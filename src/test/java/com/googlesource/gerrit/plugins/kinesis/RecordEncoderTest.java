@@ -0,0 +1,168 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
+import static org.mockito.Mockito.when;
+
+import com.gerritforge.gerrit.eventbroker.EventDeserializer;
+import com.google.gerrit.extensions.registration.DynamicMap;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.events.EventGsonProvider;
+import com.google.gerrit.server.events.ProjectCreatedEvent;
+import com.google.gson.Gson;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RecordEncoderTest {
+  private static final int COMPRESSION_THRESHOLD_BYTES = 256;
+  private static final String INSTANCE_ID = "instance-1";
+
+  private final Gson gson = new EventGsonProvider().get();
+  private final ByteBufferPool pool = new ByteBufferPool(4, 1024, new DisabledMetricMaker());
+  private final PayloadCodecs codecs = new PayloadCodecs(DynamicMap.emptyMap());
+  private final EventSerializer eventSerializer =
+      new EventSerializer(gson, pool, EventFormat.JSON);
+  private final RecordDecoder recordDecoder =
+      new RecordDecoder(codecs, new EventDeserializer(gson), gson);
+
+  @Mock Configuration configuration;
+
+  @Before
+  public void setup() {
+    when(configuration.getCompressionThresholdBytes()).thenReturn(COMPRESSION_THRESHOLD_BYTES);
+  }
+
+  @Test
+  public void shouldCompressWithGzip() throws IOException {
+    shouldRoundTripCompressedEvent(GzipCodec.NAME);
+  }
+
+  @Test
+  public void shouldCompressWithDeflate() throws IOException {
+    shouldRoundTripCompressedEvent(DeflateCodec.NAME);
+  }
+
+  @Test
+  public void shouldNotCompressEventsBelowThreshold() throws IOException {
+    when(configuration.getCompressionCodec()).thenReturn(Optional.of(GzipCodec.NAME));
+    ProjectCreatedEvent event = projectCreatedEvent("small-project");
+
+    try (PooledRecord record = encoder().encode(eventSerializer.serialize(event))) {
+      assertThat(RecordHeader.isPresent(record.data())).isFalse();
+      assertThat(gson.toJson(recordDecoder.decode(record.data()))).isEqualTo(gson.toJson(event));
+    }
+  }
+
+  @Test
+  public void shouldNotCompressWhenNoCodecIsConfigured() throws IOException {
+    when(configuration.getCompressionCodec()).thenReturn(Optional.empty());
+    ProjectCreatedEvent event = projectCreatedEvent("project-".repeat(100));
+
+    try (PooledRecord record = encoder().encode(eventSerializer.serialize(event))) {
+      assertThat(RecordHeader.isPresent(record.data())).isFalse();
+    }
+  }
+
+  private void shouldRoundTripCompressedEvent(String codecName) throws IOException {
+    when(configuration.getCompressionCodec()).thenReturn(Optional.of(codecName));
+    ProjectCreatedEvent event = projectCreatedEvent("project-".repeat(100));
+    String json = gson.toJson(event);
+
+    try (PooledRecord record = encoder().encode(eventSerializer.serialize(event))) {
+      assertThat(RecordHeader.isPresent(record.data())).isTrue();
+      assertThat(record.size()).isLessThan(json.length());
+      assertThat(gson.toJson(recordDecoder.decode(record.data()))).isEqualTo(json);
+    }
+  }
+
+  @Test
+  public void shouldWriteOriginHeaderIntoUncompressedRecords() throws IOException {
+    when(configuration.getCompressionCodec()).thenReturn(Optional.empty());
+    when(configuration.isPublishOriginHeader()).thenReturn(true);
+    ProjectCreatedEvent event = projectCreatedEvent("project");
+
+    try (PooledRecord record = encoder(INSTANCE_ID).encode(eventSerializer.serialize(event))) {
+      assertThat(RecordHeader.isFrom(record.data(), RecordHeader.origin(INSTANCE_ID))).isTrue();
+      assertThat(RecordHeader.isFrom(record.data(), RecordHeader.origin("other"))).isFalse();
+      assertThat(gson.toJson(recordDecoder.decode(record.data()))).isEqualTo(gson.toJson(event));
+    }
+  }
+
+  @Test
+  public void shouldWriteOriginHeaderIntoCompressedRecords() throws IOException {
+    when(configuration.getCompressionCodec()).thenReturn(Optional.of(GzipCodec.NAME));
+    when(configuration.isPublishOriginHeader()).thenReturn(true);
+    ProjectCreatedEvent event = projectCreatedEvent("project-".repeat(100));
+    String json = gson.toJson(event);
+
+    try (PooledRecord record = encoder(INSTANCE_ID).encode(eventSerializer.serialize(event))) {
+      assertThat(RecordHeader.isFrom(record.data(), RecordHeader.origin(INSTANCE_ID))).isTrue();
+      assertThat(record.size()).isLessThan(json.length());
+      assertThat(gson.toJson(recordDecoder.decode(record.data()))).isEqualTo(json);
+    }
+  }
+
+  @Test
+  public void shouldNotCompressWhenCompressedRecordIsNotSmallerOnTheWire() throws IOException {
+    when(configuration.getCompressionCodec()).thenReturn(Optional.of(GzipCodec.NAME));
+    when(configuration.getCompressionThresholdBytes()).thenReturn(0);
+    ProjectCreatedEvent event = projectCreatedEvent("p");
+    int jsonSize = gson.toJson(event).length();
+
+    try (PooledRecord record = encoder().encode(eventSerializer.serialize(event))) {
+      assertThat(RecordHeader.isPresent(record.data())).isFalse();
+      assertThat(record.size()).isEqualTo(jsonSize);
+    }
+  }
+
+  @Test
+  public void shouldFailRecordsDecompressingBeyondTheMaximumPayloadSize() throws IOException {
+    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    payload.write(new byte[] {RecordHeader.MAGIC, RecordHeader.VERSION, GzipCodec.ID});
+    try (OutputStream out = new GzipCodec().compress(payload)) {
+      out.write(new byte[RecordDecoder.MAX_DECOMPRESSED_BYTES + 1]);
+    }
+
+    IOException e =
+        assertThrows(
+            IOException.class, () -> recordDecoder.decode(ByteBuffer.wrap(payload.toByteArray())));
+    assertThat(e).hasMessageThat().contains("exceeds the maximum");
+  }
+
+  private RecordEncoder encoder() {
+    return encoder(null);
+  }
+
+  private RecordEncoder encoder(String instanceId) {
+    return new RecordEncoder(pool, codecs, configuration, instanceId);
+  }
+
+  private static ProjectCreatedEvent projectCreatedEvent(String projectName) {
+    ProjectCreatedEvent event = new ProjectCreatedEvent();
+    event.projectName = projectName;
+    return event;
+  }
+}
@@ -0,0 +1,172 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import com.google.gerrit.sshd.BaseCommand.UnloggedFailure;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.function.Consumer;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.kohsuke.args4j.CmdLineParser;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RedriveDeadLettersCommandTest {
+  private static final String DEAD_LETTER_STREAM = "dead-letters";
+
+  @Mock DeadLetterRedriver redriver;
+  @Mock Configuration configuration;
+
+  private final StringWriter output = new StringWriter();
+  private TestCommand objectUnderTest;
+
+  @Before
+  public void setup() {
+    objectUnderTest = new TestCommand(redriver, configuration);
+  }
+
+  @Test
+  public void shouldRedriveTheConfiguredDeadLetterStream() throws Exception {
+    when(configuration.getDeadLetterStream()).thenReturn(Optional.of(DEAD_LETTER_STREAM));
+    givenRedriven(3, 1, 0);
+
+    run();
+
+    verify(redriver)
+        .redrive(eq(DEAD_LETTER_STREAM), eq(Optional.empty()), eq(10d), eq(0), eq(false), any());
+    assertThat(output.toString()).isEqualTo("Re-driven 3 record(s), skipped 1, failed 0\n");
+  }
+
+  @Test
+  public void shouldPassTheOptionsToTheRedriver() throws Exception {
+    givenRedriven(2, 0, 0);
+
+    run(
+        "--stream",
+        "other-dead-letters",
+        "--since",
+        "2021-06-01T10:15:30Z",
+        "--rate",
+        "5",
+        "--limit",
+        "2",
+        "--dry-run");
+
+    verify(redriver)
+        .redrive(
+            eq("other-dead-letters"),
+            eq(Optional.of(Instant.parse("2021-06-01T10:15:30Z"))),
+            eq(5d),
+            eq(2),
+            eq(true),
+            any());
+    assertThat(output.toString()).isEqualTo("Would re-drive 2 record(s), skipped 0, failed 0\n");
+  }
+
+  @Test
+  public void shouldPrintTheProgressOfTheRedriver() throws Exception {
+    when(configuration.getDeadLetterStream()).thenReturn(Optional.of(DEAD_LETTER_STREAM));
+    when(redriver.redrive(
+            anyString(), any(), anyDouble(), anyInt(), anyBoolean(), any()))
+        .thenAnswer(
+            i -> {
+              i.<Consumer<String>>getArgument(5).accept("Re-driven record 1");
+              return result(1, 0, 0);
+            });
+
+    run();
+
+    assertThat(output.toString())
+        .isEqualTo("Re-driven record 1\nRe-driven 1 record(s), skipped 0, failed 0\n");
+  }
+
+  @Test
+  public void shouldFailWhenNoDeadLetterStreamIsConfigured() throws Exception {
+    when(configuration.getDeadLetterStream()).thenReturn(Optional.empty());
+
+    UnloggedFailure failure = assertThrows(UnloggedFailure.class, () -> run());
+
+    assertThat(failure).hasMessageThat().contains("--stream");
+    verifyNoInteractions(redriver);
+  }
+
+  @Test
+  public void shouldFailOnInvalidSince() throws Exception {
+    UnloggedFailure failure =
+        assertThrows(
+            UnloggedFailure.class, () -> run("--stream", DEAD_LETTER_STREAM, "--since", "today"));
+
+    assertThat(failure).hasMessageThat().contains("Invalid --since timestamp");
+    verifyNoInteractions(redriver);
+  }
+
+  @Test
+  public void shouldFailOnNonPositiveRate() throws Exception {
+    UnloggedFailure failure =
+        assertThrows(
+            UnloggedFailure.class, () -> run("--stream", DEAD_LETTER_STREAM, "--rate", "0"));
+
+    assertThat(failure).hasMessageThat().contains("--rate");
+    verifyNoInteractions(redriver);
+  }
+
+  private void run(String... args) throws Exception {
+    new CmdLineParser(objectUnderTest).parseArgument(args);
+    objectUnderTest.run(new PrintWriter(output, true));
+  }
+
+  private void givenRedriven(int redriven, int skipped, int failed) throws Exception {
+    DeadLetterRedriver.Result result = result(redriven, skipped, failed);
+    when(redriver.redrive(
+            anyString(), any(), anyDouble(), anyInt(), anyBoolean(), any()))
+        .thenReturn(result);
+  }
+
+  private static DeadLetterRedriver.Result result(int redriven, int skipped, int failed) {
+    DeadLetterRedriver.Result result = new DeadLetterRedriver.Result();
+    result.redriven = redriven;
+    result.skipped = skipped;
+    result.failed = failed;
+    return result;
+  }
+
+  private static class TestCommand extends RedriveDeadLettersCommand {
+    TestCommand(DeadLetterRedriver redriver, Configuration configuration) {
+      super(redriver, configuration);
+    }
+
+    void run(PrintWriter stdout) throws Exception {
+      this.stdout = stdout;
+      run();
+    }
+  }
+}
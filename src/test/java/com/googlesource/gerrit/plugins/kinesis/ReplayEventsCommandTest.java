@@ -0,0 +1,143 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.kinesis;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.gerritforge.gerrit.eventbroker.BrokerApi;
+import com.gerritforge.gerrit.eventbroker.TopicSubscriber;
+import com.gerritforge.gerrit.eventbroker.TopicSubscriberWithGroupId;
+import com.google.gerrit.extensions.registration.DynamicItem;
+import com.google.gerrit.sshd.BaseCommand.UnloggedFailure;
+import com.googlesource.gerrit.plugins.kinesis.api.BatchBrokerApi;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.Collections;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ReplayEventsCommandTest {
+  private static final String TOPIC = "gerrit";
+
+  @Mock BatchBrokerApi brokerApi;
+  @Mock TopicSubscriberWithGroupId subscriberWithGroupId;
+  @Mock TopicSubscriber subscriber;
+
+  private final StringWriter output = new StringWriter();
+
+  @Test
+  public void shouldReplayAllEventsOfTheTopic() throws Exception {
+    givenConsumedTopic(TOPIC);
+
+    run(brokerApi, "--topic", TOPIC);
+
+    verify(brokerApi).replayAllEvents(TOPIC);
+    verify(brokerApi, never()).replayEventsSince(anyString(), any());
+    assertThat(output.toString()).isEqualTo("Replaying all the events of topic gerrit\n");
+  }
+
+  @Test
+  public void shouldReplayEventsOfTheTopicSinceTheInstant() throws Exception {
+    givenConsumedTopic(TOPIC);
+
+    run(brokerApi, "--topic", TOPIC, "--since", "2021-06-01T10:15:30Z");
+
+    verify(brokerApi).replayEventsSince(TOPIC, Instant.parse("2021-06-01T10:15:30Z"));
+    verify(brokerApi, never()).replayAllEvents(anyString());
+    assertThat(output.toString())
+        .isEqualTo("Replaying the events of topic gerrit since 2021-06-01T10:15:30Z\n");
+  }
+
+  @Test
+  public void shouldFailForATopicNotConsumed() throws Exception {
+    givenConsumedTopic("other-topic");
+
+    UnloggedFailure failure =
+        assertThrows(UnloggedFailure.class, () -> run(brokerApi, "--topic", TOPIC));
+
+    assertThat(failure).hasMessageThat().contains("not consumed");
+    verify(brokerApi, never()).replayAllEvents(anyString());
+  }
+
+  @Test
+  public void shouldFailOnInvalidSince() throws Exception {
+    givenConsumedTopic(TOPIC);
+
+    UnloggedFailure failure =
+        assertThrows(
+            UnloggedFailure.class, () -> run(brokerApi, "--topic", TOPIC, "--since", "today"));
+
+    assertThat(failure).hasMessageThat().contains("Invalid --since timestamp");
+    verify(brokerApi, never()).replayEventsSince(anyString(), any());
+  }
+
+  @Test
+  public void shouldFailToReplaySinceAnInstantWithAnotherBroker() throws Exception {
+    BrokerApi otherBroker = mock(BrokerApi.class);
+    when(otherBroker.topicSubscribersWithGroupId())
+        .thenReturn(Collections.singleton(subscriberWithGroupId));
+    when(subscriberWithGroupId.topicSubscriber()).thenReturn(subscriber);
+    when(subscriber.topic()).thenReturn(TOPIC);
+
+    UnloggedFailure failure =
+        assertThrows(
+            UnloggedFailure.class,
+            () -> run(otherBroker, "--topic", TOPIC, "--since", "2021-06-01T10:15:30Z"));
+
+    assertThat(failure).hasMessageThat().contains("cannot replay events since an instant");
+  }
+
+  @Test
+  public void shouldRequireTheTopic() {
+    assertThrows(CmdLineException.class, () -> run(brokerApi));
+  }
+
+  private void givenConsumedTopic(String topic) {
+    when(brokerApi.topicSubscribersWithGroupId())
+        .thenReturn(Collections.singleton(subscriberWithGroupId));
+    when(subscriberWithGroupId.topicSubscriber()).thenReturn(subscriber);
+    when(subscriber.topic()).thenReturn(topic);
+  }
+
+  private void run(BrokerApi broker, String... args) throws Exception {
+    TestCommand command = new TestCommand(DynamicItem.itemOf(BrokerApi.class, broker));
+    new CmdLineParser(command).parseArgument(args);
+    command.run(new PrintWriter(output, true));
+  }
+
+  private static class TestCommand extends ReplayEventsCommand {
+    TestCommand(DynamicItem<BrokerApi> brokerApi) {
+      super(brokerApi);
+    }
+
+    void run(PrintWriter stdout) throws Exception {
+      this.stdout = stdout;
+      run();
+    }
+  }
+}